@@ -0,0 +1,628 @@
+package edu.usfca.cs272;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fetches HTML without blocking a thread per request, so a few threads can keep
+ * hundreds of requests in flight. Built on {@link HttpClient}, whose selector
+ * thread multiplexes all of the open connections; the few threads of its own
+ * small work queue only run the callbacks when responses arrive. Returns the
+ * same HTML as {@link HtmlFetcher#fetch(URL, int)} for the same response, and
+ * only downloads the body when the response is HTML.
+ *
+ * <p>
+ * At most the given number of requests are in flight at once; any more wait in
+ * a queue without holding a thread until a request completes.
+ *
+ * <p>
+ * Like {@link HtmlFetcher}, HTML is decoded as it arrives and cut off at a
+ * maximum number of bytes, requests that take longer than the deadline are
+ * aborted, and the bodies of other responses are dropped after a few bytes.
+ *
+ * @see HtmlFetcher
+ *
+ * @author troy
+ *
+ */
+public class AsyncFetcher implements Closeable {
+
+	/**
+	 * Default maximum number of requests in flight at once
+	 */
+	public static final int DEFAULT_IN_FLIGHT = 256;
+
+	/**
+	 * Number of threads that handle responses as they arrive
+	 */
+	public static final int THREADS = 2;
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Runs the client's callbacks, which only hand the responses off
+	 */
+	private final WorkQueue callbacks;
+
+	/**
+	 * The non-blocking HTTP client
+	 */
+	private final HttpClient client;
+
+	/**
+	 * Maximum number of requests in flight at once
+	 */
+	private final int maxInFlight;
+
+	/**
+	 * Number of requests in flight
+	 */
+	private final AtomicInteger inFlight;
+
+	/**
+	 * Requests waiting for others to complete before they are sent
+	 */
+	private final ConcurrentLinkedQueue<Runnable> waiting;
+
+	/**
+	 * Number of HTTP requests sent, counting each redirect followed
+	 */
+	private final LongAdder requests;
+
+	/**
+	 * Most requests in flight at once so far
+	 */
+	private final LongAccumulator peak;
+
+	/**
+	 * Most bytes of a page to download
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Milliseconds a request may take
+	 */
+	private final long deadline;
+
+	/**
+	 * Number of pages cut off at the maximum bytes
+	 */
+	private final LongAdder truncated;
+
+	/**
+	 * Number of requests aborted at the deadline
+	 */
+	private final LongAdder aborted;
+
+	/**
+	 * Number of pages sent compressed
+	 */
+	private final LongAdder compressed;
+
+	/**
+	 * Number of conditional requests answered 304 Not Modified
+	 */
+	private final LongAdder notModified;
+
+	/**
+	 * Initializes a fetcher with the default number of requests in flight
+	 */
+	public AsyncFetcher() {
+		this(DEFAULT_IN_FLIGHT);
+	}
+
+	/**
+	 * Initializes a fetcher with the default limits on each request
+	 *
+	 * @param maxInFlight the maximum number of requests in flight at once
+	 */
+	public AsyncFetcher(int maxInFlight) {
+		this(maxInFlight, HtmlFetcher.DEFAULT_MAX_BYTES, HtmlFetcher.DEFAULT_DEADLINE);
+	}
+
+	/**
+	 * Initializes a fetcher
+	 *
+	 * @param maxInFlight the maximum number of requests in flight at once
+	 * @param maxBytes    most bytes of a page to download before cutting it off
+	 * @param deadline    milliseconds a request may take before it is aborted
+	 */
+	public AsyncFetcher(int maxInFlight, long maxBytes, long deadline) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Need at least one request in flight");
+		}
+
+		if (maxBytes < 1 || deadline < 1) {
+			throw new IllegalArgumentException("Limits must be positive");
+		}
+
+		this.callbacks = new WorkQueue(THREADS);
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NEVER) // followed here to count and limit them
+				.connectTimeout(Duration.ofMillis(ConnectionPool.READ_TIMEOUT))
+				.executor(callbacks)
+				.build();
+
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new AtomicInteger();
+		this.waiting = new ConcurrentLinkedQueue<>();
+		this.requests = new LongAdder();
+		this.peak = new LongAccumulator(Long::max, 0);
+		this.maxBytes = maxBytes;
+		this.deadline = deadline;
+		this.truncated = new LongAdder();
+		this.aborted = new LongAdder();
+		this.compressed = new LongAdder();
+		this.notModified = new LongAdder();
+	}
+
+	/**
+	 * Fetches the URL without blocking. If the status code is 200 and the content
+	 * type is HTML, completes with the HTML as a single string. If the response
+	 * is a redirect, follows it if the number of redirects is greater than 0.
+	 * Otherwise, completes with {@code null}.
+	 *
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future for the html, or {@code null} if unable to fetch the
+	 *         resource or the resource is not html
+	 *
+	 * @see HtmlFetcher#fetch(URL, int)
+	 */
+	public CompletableFuture<String> fetch(URL url, int redirects) {
+		return fetchHtml(url, redirects).exceptionally(e -> null);
+	}
+
+	/**
+	 * Fetches the URL like {@link #fetch(URL, int)}, but completes exceptionally
+	 * instead of with {@code null} if the request failed or the server was too
+	 * busy to answer it, so callers can tell a failure apart from a page that is
+	 * not HTML.
+	 *
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future for the html, or {@code null} if the resource is not html
+	 *
+	 * @see HtmlFetcher#fetchHtml(URL, int)
+	 * @see HtmlFetcher#isError(int)
+	 */
+	public CompletableFuture<String> fetchHtml(URL url, int redirects) {
+		return fetchPage(url, redirects, null, null).thenApply(HtmlFetcher.Page::html);
+	}
+
+	/**
+	 * Fetches the URL like {@link #fetchHtml(URL, int)}, but sends the validators
+	 * from an earlier fetch so the server can answer 304 Not Modified instead of
+	 * sending the page again. The validators are only sent to the URL itself, not
+	 * to where it redirects.
+	 *
+	 * @param url          the url to fetch
+	 * @param redirects    the number of times to follow redirects
+	 * @param etag         the ETag from an earlier fetch, or null
+	 * @param lastModified the Last-Modified header from an earlier fetch, or null
+	 * @return a future for the page, with null HTML if the resource is not html
+	 *         or was not modified
+	 *
+	 * @see HtmlFetcher#fetchPage(URL, int, String, String)
+	 */
+	public CompletableFuture<HtmlFetcher.Page> fetchPage(URL url, int redirects, String etag, String lastModified) {
+		CompletableFuture<HtmlFetcher.Page> page = new CompletableFuture<>();
+		schedule(() -> send(url, redirects, etag, lastModified, page));
+		return page;
+	}
+
+	/**
+	 * Returns the number of HTTP requests sent so far, counting each redirect
+	 * followed as another request
+	 *
+	 * @return the number of HTTP requests sent
+	 */
+	public long requests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Returns the most requests that were in flight at once
+	 *
+	 * @return the peak number of requests in flight
+	 */
+	public long peakInFlight() {
+		return peak.get();
+	}
+
+	/**
+	 * Returns the maximum number of requests in flight at once
+	 *
+	 * @return the limit on requests in flight
+	 */
+	public int maxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Returns the number of pages cut off at the maximum bytes
+	 *
+	 * @return the number of truncated pages
+	 */
+	public long truncated() {
+		return truncated.sum();
+	}
+
+	/**
+	 * Returns the number of requests aborted because they took too long
+	 *
+	 * @return the number of aborted requests
+	 */
+	public long aborted() {
+		return aborted.sum();
+	}
+
+	/**
+	 * Returns the number of pages the server sent compressed
+	 *
+	 * @return the number of compressed pages
+	 */
+	public long compressed() {
+		return compressed.sum();
+	}
+
+	/**
+	 * Returns the number of conditional requests the server answered with 304 Not
+	 * Modified
+	 *
+	 * @return the number of pages not modified
+	 */
+	public long notModified() {
+		return notModified.sum();
+	}
+
+	/**
+	 * Stops the threads that handle responses. Requests still in flight may not
+	 * complete.
+	 */
+	@Override
+	public void close() {
+		callbacks.shutdown();
+	}
+
+	/**
+	 * Sends the request now if fewer than the maximum are in flight, or else
+	 * leaves it waiting for a request to complete
+	 *
+	 * @param request the request to send
+	 */
+	private void schedule(Runnable request) {
+		waiting.add(request);
+		drain();
+	}
+
+	/**
+	 * Sends waiting requests while fewer than the maximum are in flight
+	 */
+	private void drain() {
+		while (!waiting.isEmpty()) {
+			int current = inFlight.get();
+			if (current >= maxInFlight) {
+				return;
+			}
+
+			if (inFlight.compareAndSet(current, current + 1)) {
+				Runnable request = waiting.poll();
+				if (request == null) {
+					inFlight.decrementAndGet();
+				} else {
+					peak.accumulate(current + 1);
+					request.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks a request as no longer in flight and sends the next waiting request
+	 */
+	private void done() {
+		inFlight.decrementAndGet();
+		drain();
+	}
+
+	/**
+	 * Sends one request and completes the future with the page, or schedules the
+	 * redirect
+	 *
+	 * @param url          the url to fetch
+	 * @param redirects    the number of redirects left to follow
+	 * @param etag         the ETag to send, or null
+	 * @param lastModified the Last-Modified date to send, or null
+	 * @param html         the future to complete
+	 */
+	private void send(URL url, int redirects, String etag, String lastModified,
+			CompletableFuture<HtmlFetcher.Page> html) {
+		HttpRequest request;
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(url.toURI())
+					.timeout(Duration.ofMillis(Math.min(ConnectionPool.READ_TIMEOUT, deadline))) // until the headers
+					.header("Accept-Encoding", ContentDecoder.ACCEPT)
+					.GET();
+			if (etag != null) {
+				builder.header("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				builder.header("If-Modified-Since", lastModified);
+			}
+			request = builder.build();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			log.catching(Level.DEBUG, e);
+			html.completeExceptionally(e);
+			done();
+			return;
+		}
+
+		requests.increment();
+		CompletableFuture<HttpResponse<String>> sent;
+		try {
+			sent = client.sendAsync(request, htmlOnly(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline)));
+		} catch (IllegalArgumentException e) { // for example, not http or https
+			log.catching(Level.DEBUG, e);
+			html.completeExceptionally(e);
+			done();
+			return;
+		}
+
+		sent.whenComplete((response, e) -> {
+			done();
+
+			if (e != null) {
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				if (cause instanceof HttpTimeoutException || cause instanceof TimeoutException) {
+					aborted.increment();
+				}
+
+				log.catching(Level.DEBUG, e);
+				html.completeExceptionally(e);
+				return;
+			}
+
+			if (HtmlFetcher.isError(response.statusCode())) {
+				html.completeExceptionally(new IOException("Status " + response.statusCode() + " from " + url));
+				return;
+			}
+
+			if (response.statusCode() == 304) {
+				notModified.increment();
+				html.complete(new HtmlFetcher.Page(null, etag, lastModified, true));
+				return;
+			}
+
+			URL redirect = redirect(url, response);
+			if (redirect != null) {
+				if (redirects > 0) {
+					schedule(() -> send(redirect, redirects - 1, null, null, html));
+				} else {
+					html.complete(new HtmlFetcher.Page(null, null, null, false));
+				}
+				return;
+			}
+
+			html.complete(new HtmlFetcher.Page(response.body(), response.headers().firstValue("ETag").orElse(null),
+					response.headers().firstValue("Last-Modified").orElse(null), false));
+		});
+	}
+
+	/**
+	 * Returns a body handler that only downloads the body of a 200 HTML response
+	 * in an encoding it can decode, with the lines joined the same way as
+	 * {@link HtmlFetcher}, and drops any other body
+	 *
+	 * @param deadline when to abort the request, in {@link System#nanoTime()}
+	 * @return the body handler
+	 */
+	private BodyHandler<String> htmlOnly(long deadline) {
+		return info -> {
+			Optional<String> type = info.headers().firstValue("Content-Type");
+			String encoding = info.headers().firstValue("Content-Encoding").orElse(null);
+			boolean html = info.statusCode() == 200 && type.isPresent() && type.get().startsWith("text/html")
+					&& ContentDecoder.supports(encoding);
+
+			if (html && ContentDecoder.isCompressed(encoding)) {
+				compressed.increment();
+			}
+			return new PageBody(html ? encoding : null, html, deadline);
+		};
+	}
+
+	/**
+	 * Receives a body as it arrives. Decompresses and decodes HTML until the
+	 * maximum decoded bytes, or drops any other body until {@link ConnectionPool#DRAIN_LIMIT} bytes, and
+	 * then cancels the rest of the download. Fails if the body has not arrived by
+	 * the deadline.
+	 */
+	private class PageBody implements BodySubscriber<String> {
+		/**
+		 * Whether the body is HTML to decode, rather than drop
+		 */
+		private final boolean html;
+
+		/**
+		 * When to abort the request, in {@link System#nanoTime()}
+		 */
+		private final long deadline;
+
+		/**
+		 * The page decoded so far
+		 */
+		private final PageWriter page;
+
+		/**
+		 * Decompresses the HTML into the page, up to the maximum bytes
+		 */
+		private final ContentDecoder decoder;
+
+		/**
+		 * Completed with the page, or null if it was not HTML
+		 */
+		private final CompletableFuture<String> body;
+
+		/**
+		 * The subscription to the body
+		 */
+		private volatile Flow.Subscription subscription;
+
+		/**
+		 * Number of bytes of another body received
+		 */
+		private long bytes;
+
+		/**
+		 * Initializes the body
+		 *
+		 * @param encoding the Content-Encoding of the HTML, or null if there is none
+		 * @param html     whether the body is HTML to decode
+		 * @param deadline when to abort the request, in {@link System#nanoTime()}
+		 */
+		private PageBody(String encoding, boolean html, long deadline) {
+			this.html = html;
+			this.deadline = deadline;
+			this.page = new PageWriter();
+			this.decoder = html ? new ContentDecoder(encoding, page, maxBytes) : null;
+			this.body = new CompletableFuture<>();
+			this.bytes = 0;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+
+			// the timer is cancelled once the body completes, so it does not keep the page
+			body.orTimeout(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+					.whenComplete((page, e) -> {
+						if (e instanceof TimeoutException) {
+							subscription.cancel();
+						}
+					});
+
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			if (body.isDone()) {
+				return;
+			}
+
+			try {
+				for (ByteBuffer buffer : buffers) {
+					if (html) {
+						decoder.write(buffer);
+						if (decoder.truncated()) {
+							subscription.cancel();
+							truncated.increment();
+							complete();
+							return;
+						}
+					} else {
+						bytes += buffer.remaining();
+						if (bytes > ConnectionPool.DRAIN_LIMIT) {
+							subscription.cancel();
+							body.complete(null);
+							return;
+						}
+					}
+				}
+			} catch (IOException e) {
+				subscription.cancel();
+				decoder.close();
+				body.completeExceptionally(e);
+				return;
+			}
+
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			if (decoder != null) {
+				decoder.close();
+			}
+			body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			if (html) {
+				complete();
+			} else {
+				body.complete(null);
+			}
+		}
+
+		/**
+		 * Completes the body with the page decoded so far
+		 */
+		private void complete() {
+			decoder.close();
+			body.complete(page.text());
+		}
+
+		@Override
+		public CompletionStage<String> getBody() {
+			return body;
+		}
+	}
+
+	/**
+	 * Returns where a redirect response points to
+	 *
+	 * @param url      the url that was fetched
+	 * @param response the response
+	 * @return the absolute url to redirect to, or {@code null} if the response
+	 *         is not a redirect
+	 */
+	private static URL redirect(URL url, HttpResponse<String> response) {
+		int status = response.statusCode();
+		Optional<String> location = response.headers().firstValue("Location");
+
+		if (status < 300 || status > 399 || location.isEmpty()) {
+			return null;
+		}
+
+		try {
+			return new URL(url, location.get());
+		} catch (MalformedURLException e) {
+			log.catching(Level.DEBUG, e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,1059 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps HTTP/1.1 connections open between requests to the same host, so
+ * fetching many pages from one site only pays for the TCP and TLS handshakes
+ * once per connection instead of once per page. Responses are framed by their
+ * Content-Length or chunked encoding so the connection can be reused; responses
+ * without either are read until the server closes the connection.
+ *
+ * <p>
+ * At most {@link #maxPerHost()} connections are open to each host at once, and
+ * threads wait for one to free up past that. Connections left idle longer than
+ * the idle timeout are closed the next time the pool is used. If a reused
+ * connection turns out to have been closed by the server, the request is sent
+ * again once on a new connection.
+ *
+ * <p>
+ * Bodies can be streamed to a sink as they arrive, with a cap on their size
+ * and a deadline for the whole request. Requests accept gzip and deflate
+ * bodies, which are decoded on the way to the sink with the cap applied to the
+ * decoded bytes. Bodies the caller does not want, or in an encoding that
+ * cannot be decoded, are skipped: read and dropped if they are small, or else
+ * left unread and the connection closed.
+ *
+ * @see HttpsFetcher#openConnection(URL)
+ *
+ * @author troy
+ *
+ */
+public class ConnectionPool implements Closeable {
+
+	/**
+	 * Default maximum number of open connections per host
+	 */
+	public static final int DEFAULT_MAX_PER_HOST = 6;
+
+	/**
+	 * Default milliseconds a connection may sit idle before it is closed
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+
+	/**
+	 * Milliseconds to wait for the server before giving up on a read
+	 */
+	public static final int READ_TIMEOUT = 30000;
+
+	/**
+	 * Most bytes of an unwanted body read just to reuse the connection
+	 */
+	public static final int DRAIN_LIMIT = 64 * 1024;
+
+	/**
+	 * Most bytes in a single status, header, chunk size or trailer line
+	 */
+	public static final int LINE_LIMIT = 8 * 1024;
+
+	/**
+	 * Most bytes in the status line and headers of a response, or in the
+	 * trailers after the last chunk
+	 */
+	public static final int HEADER_LIMIT = 64 * 1024;
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Maximum number of open connections per host
+	 */
+	private final int maxPerHost;
+
+	/**
+	 * Nanoseconds a connection may sit idle before it is closed
+	 */
+	private final long idleTimeout;
+
+	/**
+	 * The connections for each host, keyed by protocol, host and port. Also used
+	 * as the lock for all of the connection counts.
+	 */
+	private final HashMap<String, Host> hosts;
+
+	/**
+	 * When all hosts were last checked for idle connections
+	 */
+	private long lastSweep;
+
+	/**
+	 * Whether the pool was closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Number of connections opened
+	 */
+	private final LongAdder opened;
+
+	/**
+	 * Number of requests sent on a reused connection
+	 */
+	private final LongAdder reused;
+
+	/**
+	 * Initializes a pool with the default limits
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Initializes a pool
+	 *
+	 * @param maxPerHost  maximum number of open connections per host
+	 * @param idleTimeout milliseconds a connection may sit idle before it is
+	 *                    closed
+	 */
+	public ConnectionPool(int maxPerHost, long idleTimeout) {
+		if (maxPerHost < 1) {
+			throw new IllegalArgumentException("Need at least one connection per host");
+		}
+
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.hosts = new HashMap<>();
+		this.lastSweep = System.nanoTime();
+		this.closed = false;
+		this.opened = new LongAdder();
+		this.reused = new LongAdder();
+	}
+
+	/**
+	 * The connections to one host
+	 */
+	private static class Host {
+		/**
+		 * Idle connections, most recently used first
+		 */
+		private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+		/**
+		 * Number of idle and busy connections open to the host
+		 */
+		private int open = 0;
+	}
+
+	/**
+	 * An open socket and its streams
+	 */
+	private static class Connection {
+		/**
+		 * The socket connected to the host
+		 */
+		private final Socket socket;
+
+		/**
+		 * Buffered input from the socket
+		 */
+		private final InputStream in;
+
+		/**
+		 * Output to the socket
+		 */
+		private final OutputStream out;
+
+		/**
+		 * When the connection was returned to the pool
+		 */
+		private long idleSince;
+
+		/**
+		 * Whether a request was already sent on this connection
+		 */
+		private boolean used;
+
+		/**
+		 * Opens a connection to the host of the URL
+		 *
+		 * @param url      the url to connect to
+		 * @param deadline when to give up, in {@link System#nanoTime()}
+		 * @throws IOException if unable to connect before the deadline
+		 */
+		private Connection(URL url, long deadline) throws IOException {
+			socket = HttpsFetcher.openConnection(url, deadline);
+			socket.setSoTimeout(READ_TIMEOUT);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			used = false;
+		}
+
+		/**
+		 * Closes the socket, ignoring any errors
+		 */
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.catching(Level.DEBUG, e);
+			}
+		}
+	}
+
+	/**
+	 * The status line, headers and body of a response
+	 */
+	public static class Response {
+		/**
+		 * The headers, with the status line under the {@code null} key
+		 */
+		private final Map<String, List<String>> headers;
+
+		/**
+		 * The body of the response
+		 */
+		private final byte[] body;
+
+		/**
+		 * Whether the body was cut off at the size cap
+		 */
+		private final boolean truncated;
+
+		/**
+		 * Initializes a response
+		 *
+		 * @param headers the headers, with the status line under {@code null}
+		 * @param body    the body of the response
+		 */
+		public Response(Map<String, List<String>> headers, byte[] body) {
+			this(headers, body, false);
+		}
+
+		/**
+		 * Initializes a response
+		 *
+		 * @param headers   the headers, with the status line under {@code null}
+		 * @param body      the body of the response
+		 * @param truncated whether the body was cut off at the size cap
+		 */
+		public Response(Map<String, List<String>> headers, byte[] body, boolean truncated) {
+			this.headers = headers;
+			this.body = body;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * Returns the headers, with the status line under the {@code null} key in
+		 * the same format as {@link HttpsFetcher#getHeaderFields}
+		 *
+		 * @return the headers of the response
+		 */
+		public Map<String, List<String>> headers() {
+			return headers;
+		}
+
+		/**
+		 * Returns the body of the response
+		 *
+		 * @return the body bytes
+		 */
+		public byte[] body() {
+			return body;
+		}
+
+		/**
+		 * Returns the body of the response decoded as UTF-8
+		 *
+		 * @return the body text
+		 */
+		public String text() {
+			return new String(body, UTF_8);
+		}
+
+		/**
+		 * Returns whether the body was cut off at the size cap
+		 *
+		 * @return true if the body was truncated
+		 */
+		public boolean truncated() {
+			return truncated;
+		}
+	}
+
+	/**
+	 * Sends a GET request for the URL and reads the whole response, reusing an
+	 * idle connection to the same host if there is one
+	 *
+	 * @param url the url to fetch
+	 * @return the response
+	 * @throws IOException if unable to connect, send the request or read the
+	 *                     response
+	 */
+	public Response get(URL url) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Response response = get(url, headers -> true, body, Long.MAX_VALUE, 0);
+		return new Response(response.headers(), body.toByteArray());
+	}
+
+	/**
+	 * Sends a GET request for the URL and streams the body to the sink as it
+	 * arrives, reusing an idle connection to the same host if there is one. Stops
+	 * reading the body at the size cap, and gives up once the timeout passes.
+	 *
+	 * @param url      the url to fetch
+	 * @param wanted   whether to read the body, given the headers; other bodies
+	 *                 are skipped
+	 * @param sink     where to write the decoded body
+	 * @param maxBytes the most decoded bytes of the body to write
+	 * @param timeout  milliseconds the whole request may take, or 0 for no limit
+	 *                 besides the read timeout
+	 * @return the response, with an empty body since it was written to the sink
+	 * @throws SocketTimeoutException if the timeout passes first
+	 * @throws IOException            if unable to connect, send the request or
+	 *                                read the response
+	 */
+	public Response get(URL url, Predicate<Map<String, List<String>>> wanted, OutputStream sink, long maxBytes,
+			long timeout) throws IOException {
+		return get(url, Map.of(), wanted, sink, maxBytes, timeout);
+	}
+
+	/**
+	 * Sends a GET request for the URL with extra request headers, like
+	 * {@link #get(URL, Predicate, OutputStream, long, long)}. Useful for
+	 * conditional requests.
+	 *
+	 * @param url      the url to fetch
+	 * @param request  extra headers to send with the request, by name
+	 * @param wanted   whether to read the body, given the headers; other bodies
+	 *                 are skipped
+	 * @param sink     where to write the decoded body
+	 * @param maxBytes the most decoded bytes of the body to write
+	 * @param timeout  milliseconds the whole request may take, or 0 for no limit
+	 *                 besides the read timeout
+	 * @return the response, with an empty body since it was written to the sink
+	 * @throws SocketTimeoutException if the timeout passes first
+	 * @throws IOException            if unable to connect, send the request or
+	 *                                read the response
+	 */
+	public Response get(URL url, Map<String, String> request, Predicate<Map<String, List<String>>> wanted,
+			OutputStream sink, long maxBytes, long timeout) throws IOException {
+		long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+		String key = key(url);
+		Connection connection = acquire(key, url, deadline);
+		boolean keep = false;
+
+		try {
+			Map<String, List<String>> headers;
+			try {
+				headers = send(connection, url, request, deadline);
+			} catch (SocketTimeoutException e) {
+				throw e;
+			} catch (IOException e) {
+				if (!connection.used) {
+					throw e;
+				}
+
+				// the server closed the idle connection, so try once more on a new one
+				log.debug("Reopening stale connection to {}", key);
+				connection.close();
+				connection = new Connection(url, deadline);
+				opened.increment();
+				headers = send(connection, url, request, deadline);
+			}
+
+			connection.used = true;
+			boolean truncated = false;
+			boolean finished; // whether the whole body was read, so the next response can follow
+
+			String encoding = header(headers, "Content-Encoding");
+			if (wanted.test(headers) && ContentDecoder.supports(encoding)) {
+				try (ContentDecoder decoder = new ContentDecoder(encoding, sink, maxBytes)) {
+					truncated = copy(connection, body(connection.in, headers), decoder, deadline);
+				}
+				finished = !truncated;
+			} else {
+				finished = skip(connection, headers, deadline);
+			}
+
+			keep = finished && keepAlive(headers) && (isChunked(headers)
+					|| header(headers, "Content-Length") != null || !hasBody(headers));
+
+			return new Response(headers, new byte[0], truncated);
+		} finally {
+			release(key, connection, keep);
+		}
+	}
+
+	/**
+	 * Copies the body to the decoder until it ends or the decoded body reaches
+	 * the size cap
+	 *
+	 * @param connection the connection being read
+	 * @param body       the body as sent
+	 * @param decoder    decodes the body and writes it to the sink
+	 * @param deadline   when to give up, in {@link System#nanoTime()}
+	 * @return true if the body was cut off at the size cap
+	 * @throws IOException if unable to read or decode the body in time
+	 */
+	private static boolean copy(Connection connection, InputStream body, ContentDecoder decoder, long deadline)
+			throws IOException {
+		byte[] buffer = new byte[8192];
+
+		while (true) {
+			timeout(connection, deadline);
+			int n = body.read(buffer);
+			if (n < 0) {
+				return false;
+			}
+
+			decoder.write(buffer, 0, n);
+			if (decoder.truncated()) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads and drops a small body so the connection can be reused
+	 *
+	 * @param connection the connection being read
+	 * @param headers    the headers of the response
+	 * @param deadline   when to give up, in {@link System#nanoTime()}
+	 * @return true if the whole body was read, false if it was too big or only
+	 *         ends when the connection closes
+	 * @throws IOException if unable to read the body in time
+	 */
+	private static boolean skip(Connection connection, Map<String, List<String>> headers, long deadline)
+			throws IOException {
+		if (!hasBody(headers)) {
+			return true;
+		}
+
+		if (!isChunked(headers) && header(headers, "Content-Length") == null) {
+			return false;
+		}
+
+		InputStream body = body(connection.in, headers);
+		byte[] buffer = new byte[8192];
+		long skipped = 0;
+
+		while (skipped <= DRAIN_LIMIT) {
+			timeout(connection, deadline);
+			int n = body.read(buffer);
+			if (n < 0) {
+				return true;
+			}
+			skipped += n;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Limits the next read from the connection to the time left before the
+	 * deadline
+	 *
+	 * @param connection the connection about to be read
+	 * @param deadline   when to give up, in {@link System#nanoTime()}
+	 * @throws IOException if the deadline already passed
+	 */
+	private static void timeout(Connection connection, long deadline) throws IOException {
+		connection.socket.setSoTimeout(HttpsFetcher.remaining(deadline, READ_TIMEOUT));
+	}
+
+	/**
+	 * Returns the maximum number of open connections per host
+	 *
+	 * @return the maximum connections per host
+	 */
+	public int maxPerHost() {
+		return maxPerHost;
+	}
+
+	/**
+	 * Returns the number of connections opened so far
+	 *
+	 * @return the number of connections opened
+	 */
+	public long opened() {
+		return opened.sum();
+	}
+
+	/**
+	 * Returns the number of requests sent on a connection that was already used
+	 *
+	 * @return the number of reused connections
+	 */
+	public long reused() {
+		return reused.sum();
+	}
+
+	/**
+	 * Returns the number of idle connections in the pool
+	 *
+	 * @return the number of idle connections
+	 */
+	public int idle() {
+		synchronized (hosts) {
+			int idle = 0;
+			for (Host host : hosts.values()) {
+				idle += host.idle.size();
+			}
+			return idle;
+		}
+	}
+
+	/**
+	 * Closes every idle connection that has been idle longer than the timeout
+	 */
+	public void evictIdle() {
+		synchronized (hosts) {
+			long now = System.nanoTime();
+			lastSweep = now;
+
+			Iterator<Host> iterator = hosts.values().iterator();
+			while (iterator.hasNext()) {
+				Host host = iterator.next();
+				evictIdle(host, now);
+				if (host.open == 0) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops connections in use from being
+	 * returned to the pool
+	 */
+	@Override
+	public void close() {
+		synchronized (hosts) {
+			closed = true;
+			for (Host host : hosts.values()) {
+				for (Connection connection : host.idle) {
+					connection.close();
+					host.open--;
+				}
+				host.idle.clear();
+			}
+			hosts.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the key for the connections to the host of the URL
+	 *
+	 * @param url the url
+	 * @return the protocol, host and port of the URL
+	 */
+	private static String key(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Closes the connections to a host that have been idle longer than the
+	 * timeout. Must be called while synchronized on hosts.
+	 *
+	 * @param host the connections to the host
+	 * @param now  the current time in nanoseconds
+	 */
+	private void evictIdle(Host host, long now) {
+		// the oldest connections are at the end
+		while (!host.idle.isEmpty() && now - host.idle.peekLast().idleSince > idleTimeout) {
+			host.idle.removeLast().close();
+			host.open--;
+		}
+	}
+
+	/**
+	 * Takes an idle connection to the host, or opens a new one if there are fewer
+	 * than the maximum open, or else waits for one to be released
+	 *
+	 * @param key      the key for the host
+	 * @param url      the url to connect to
+	 * @param deadline when to give up connecting, in {@link System#nanoTime()}
+	 * @return a connection to the host
+	 * @throws IOException if unable to open a new connection
+	 */
+	private Connection acquire(String key, URL url, long deadline) throws IOException {
+		synchronized (hosts) {
+			long now = System.nanoTime();
+			if (now - lastSweep > idleTimeout) {
+				evictIdle();
+			}
+
+			Host host = hosts.computeIfAbsent(key, k -> new Host());
+
+			try {
+				while (true) {
+					if (closed) {
+						throw new IOException("Connection pool closed");
+					}
+
+					evictIdle(host, System.nanoTime());
+
+					if (!host.idle.isEmpty()) {
+						reused.increment();
+						return host.idle.removeFirst();
+					}
+
+					if (host.open < maxPerHost) {
+						host.open++;
+						break;
+					}
+
+					hosts.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection to " + key, e);
+			}
+		}
+
+		// connects outside the lock so other hosts are not held up
+		try {
+			Connection connection = new Connection(url, deadline);
+			opened.increment();
+			return connection;
+		} catch (IOException | RuntimeException e) {
+			release(key, null, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool, or closes it if it cannot be reused
+	 *
+	 * @param key        the key for the host
+	 * @param connection the connection, or null if it failed to open
+	 * @param keep       whether the connection can be reused
+	 */
+	private void release(String key, Connection connection, boolean keep) {
+		synchronized (hosts) {
+			Host host = hosts.get(key);
+
+			if (keep && !closed && host != null) {
+				connection.idleSince = System.nanoTime();
+				host.idle.addFirst(connection);
+			} else {
+				if (connection != null) {
+					connection.close();
+				}
+				if (host != null) {
+					host.open--;
+				}
+			}
+
+			hosts.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes a GET request that asks to keep the connection open and accepts
+	 * compressed bodies, and reads the status line and headers of the response
+	 *
+	 * @param connection the connection to use
+	 * @param url        the url to fetch
+	 * @param extra      extra headers to send, by name
+	 * @param deadline   when to give up, in {@link System#nanoTime()}
+	 * @return the headers, with the status line under {@code null}
+	 * @throws IOException if unable to send the request or read the headers
+	 */
+	private static Map<String, List<String>> send(Connection connection, URL url, Map<String, String> extra,
+			long deadline) throws IOException {
+		timeout(connection, deadline);
+
+		// the port is part of the host unless it is the default, so redirects keep it
+		String host = url.getPort() < 0 ? url.getHost() : url.getHost() + ":" + url.getPort();
+		String resource = url.getFile().isBlank() ? "/" : url.getFile();
+
+		StringBuilder request = new StringBuilder();
+		request.append(String.format("GET %s HTTP/1.1\r\nHost: %s\r\nAccept-Encoding: %s\r\nConnection: keep-alive\r\n",
+				resource, host, ContentDecoder.ACCEPT));
+		for (var header : extra.entrySet()) {
+			request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		request.append("\r\n");
+
+		connection.out.write(request.toString().getBytes(ISO_8859_1));
+		connection.out.flush();
+
+		return readHeaders(connection, deadline);
+	}
+
+	/**
+	 * Reads the status line and headers of a response, giving up at the deadline
+	 * or once a line is longer than {@link #LINE_LIMIT} or the headers longer
+	 * than {@link #HEADER_LIMIT}
+	 *
+	 * @param connection the connection to read from
+	 * @param deadline   when to give up, in {@link System#nanoTime()}
+	 * @return the headers, with the status line under {@code null}
+	 * @throws IOException if the connection closed before the headers ended, the
+	 *                     headers are too long, or the deadline passed
+	 */
+	private static Map<String, List<String>> readHeaders(Connection connection, long deadline) throws IOException {
+		timeout(connection, deadline);
+		String line = readLine(connection.in);
+		if (line == null) {
+			throw new EOFException("Connection closed before the response");
+		}
+
+		Map<String, List<String>> headers = new HashMap<>();
+		headers.put(null, List.of(line));
+		long total = line.length();
+
+		while (true) {
+			timeout(connection, deadline);
+			line = readLine(connection.in);
+			if (line == null || line.isBlank()) {
+				break;
+			}
+
+			total += line.length();
+			if (total > HEADER_LIMIT) {
+				throw new IOException("Response headers longer than " + HEADER_LIMIT + " bytes");
+			}
+
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				String name = line.substring(0, colon).strip();
+				headers.computeIfAbsent(name, k -> new ArrayList<>()).add(line.substring(colon + 1).strip());
+			}
+		}
+
+		if (line == null) {
+			throw new EOFException("Connection closed in the response headers");
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Reads the body of a response framed by the headers: chunked, a
+	 * Content-Length, or everything until the connection closes
+	 *
+	 * @param in      the socket input, just past the headers
+	 * @param headers the headers of the response
+	 * @return the body bytes
+	 * @throws IOException if the connection closed early
+	 */
+	public static byte[] readBody(InputStream in, Map<String, List<String>> headers) throws IOException {
+		return body(in, headers).readAllBytes();
+	}
+
+	/**
+	 * Returns the body of a response framed by the headers as a stream that ends
+	 * where the body ends: after the last chunk, after the Content-Length, or
+	 * when the connection closes. The stream reads from the socket input as the
+	 * caller reads from it, and closing it does nothing.
+	 *
+	 * @param in      the socket input, just past the headers
+	 * @param headers the headers of the response
+	 * @return the body
+	 * @throws IOException if the Content-Length is not a number
+	 */
+	public static InputStream body(InputStream in, Map<String, List<String>> headers) throws IOException {
+		if (!hasBody(headers)) {
+			return InputStream.nullInputStream();
+		}
+
+		if (isChunked(headers)) {
+			return new ChunkedInputStream(in);
+		}
+
+		String length = header(headers, "Content-Length");
+		if (length != null) {
+			try {
+				return new LengthInputStream(in, Long.parseLong(length.strip()));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad Content-Length: " + length, e);
+			}
+		}
+
+		return new LengthInputStream(in, -1);
+	}
+
+	/**
+	 * A body with a known length, or one that lasts until the connection closes
+	 */
+	private static class LengthInputStream extends InputStream {
+		/**
+		 * The socket input
+		 */
+		private final InputStream in;
+
+		/**
+		 * The length of the body, or -1 if it lasts until the connection closes
+		 */
+		private final long length;
+
+		/**
+		 * Number of bytes left, or -1 if the body lasts until the connection closes
+		 */
+		private long remaining;
+
+		/**
+		 * Initializes the body
+		 *
+		 * @param in     the socket input
+		 * @param length the length of the body, or -1 if it lasts until the
+		 *               connection closes
+		 */
+		private LengthInputStream(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining < 0) {
+				return in.read(b, off, len);
+			}
+
+			if (remaining == 0) {
+				return -1;
+			}
+
+			if (len == 0) {
+				return 0;
+			}
+
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) {
+				throw new EOFException("Connection closed after " + (length - remaining) + " of " + length + " bytes");
+			}
+
+			remaining -= n;
+			return n;
+		}
+	}
+
+	/**
+	 * A body sent in chunks, which ends after the last chunk and any trailing
+	 * headers
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		/**
+		 * The socket input
+		 */
+		private final InputStream in;
+
+		/**
+		 * Number of bytes left in the current chunk
+		 */
+		private long remaining;
+
+		/**
+		 * Whether the last chunk was read
+		 */
+		private boolean done;
+
+		/**
+		 * Initializes the body
+		 *
+		 * @param in the socket input, at the first chunk size
+		 */
+		private ChunkedInputStream(InputStream in) {
+			this.in = in;
+			this.remaining = 0;
+			this.done = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (remaining == 0 && !nextChunk()) {
+				return -1;
+			}
+
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) {
+				throw new EOFException("Connection closed in a chunk");
+			}
+
+			remaining -= n;
+			if (remaining == 0) {
+				readLine(in); // the line break after the chunk
+			}
+			return n;
+		}
+
+		/**
+		 * Reads the size of the next chunk, or the trailing headers after the last
+		 *
+		 * @return true if there is another chunk, false if the body ended
+		 * @throws IOException if the chunk size is malformed or the connection
+		 *                     closed early
+		 */
+		private boolean nextChunk() throws IOException {
+			String line = readLine(in);
+			if (line == null) {
+				throw new EOFException("Connection closed before the last chunk");
+			}
+
+			int semicolon = line.indexOf(';'); // ignores chunk extensions
+			String hex = (semicolon < 0 ? line : line.substring(0, semicolon)).strip();
+
+			try {
+				remaining = Long.parseLong(hex, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad chunk size: " + line, e);
+			}
+
+			if (remaining < 0) {
+				throw new IOException("Bad chunk size: " + line);
+			}
+
+			if (remaining > 0) {
+				return true;
+			}
+
+			// trailing headers end with a blank line
+			long total = 0;
+			while ((line = readLine(in)) != null && !line.isEmpty()) {
+				total += line.length();
+				if (total > HEADER_LIMIT) {
+					throw new IOException("Chunk trailers longer than " + HEADER_LIMIT + " bytes");
+				}
+			}
+
+			done = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a line ending in a line feed, without the carriage return and line
+	 * feed
+	 *
+	 * @param in the input to read from
+	 * @return the line, or {@code null} if the input ended first
+	 * @throws IOException if unable to read or the line is longer than
+	 *                     {@link #LINE_LIMIT}
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (line.size() >= LINE_LIMIT) {
+				throw new IOException("Line longer than " + LINE_LIMIT + " bytes");
+			}
+			line.write(b);
+		}
+
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+
+		int size = line.size();
+		String text = line.toString(ISO_8859_1);
+		return size > 0 && text.charAt(size - 1) == '\r' ? text.substring(0, size - 1) : text;
+	}
+
+	/**
+	 * Returns the first value of a header, ignoring the case of its name
+	 *
+	 * @param headers the headers to search
+	 * @param name    the name of the header
+	 * @return the first value, or {@code null} if there is no such header
+	 */
+	public static String header(Map<String, List<String>> headers, String name) {
+		for (var entry : headers.entrySet()) {
+			if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+				return entry.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determines whether the response has a body, which it does not for
+	 * informational, 204 No Content and 304 Not Modified responses
+	 *
+	 * @param headers the headers of the response
+	 * @return true if a body follows the headers
+	 */
+	private static boolean hasBody(Map<String, List<String>> headers) {
+		int status = HtmlFetcher.getStatusCode(headers);
+		return status >= 200 && status != 204 && status != 304;
+	}
+
+	/**
+	 * Determines whether the body is sent in chunks
+	 *
+	 * @param headers the headers of the response
+	 * @return true if the transfer encoding is chunked
+	 */
+	private static boolean isChunked(Map<String, List<String>> headers) {
+		String encoding = header(headers, "Transfer-Encoding");
+		return encoding != null && encoding.toLowerCase().contains("chunked");
+	}
+
+	/**
+	 * Determines whether the server will keep the connection open after the
+	 * response
+	 *
+	 * @param headers the headers of the response
+	 * @return true if the connection can be reused
+	 */
+	private static boolean keepAlive(Map<String, List<String>> headers) {
+		String connection = header(headers, "Connection");
+		String status = headers.get(null).get(0);
+
+		if (status.startsWith("HTTP/1.0")) {
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+		}
+		return connection == null || !connection.equalsIgnoreCase("close");
+	}
+}
@@ -0,0 +1,547 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a body sent with a gzip or deflate Content-Encoding as its bytes are
+ * written, and writes the decoded bytes to a sink. Bodies without an encoding
+ * are written to the sink as they are. The bytes are pushed in rather than read
+ * from a stream, so the same decoder works for bodies read from a socket and
+ * bodies handed over in buffers by {@link java.net.http.HttpClient}.
+ *
+ * <p>
+ * Only the first maximum bytes of the decoded body reach the sink, and nothing
+ * more is decoded after that, so a small compressed body that decodes to
+ * gigabytes is cut off like any other long page. A body that ends before its
+ * encoding does keeps whatever was decoded.
+ *
+ * <p>
+ * Deflate bodies are meant to be zlib streams, but some servers send raw
+ * deflate data instead; both are accepted, told apart by the zlib header.
+ *
+ * @author troy
+ *
+ */
+public class ContentDecoder extends OutputStream {
+
+	/**
+	 * The encodings to list in the Accept-Encoding header of a request
+	 */
+	public static final String ACCEPT = "gzip, deflate";
+
+	/**
+	 * Size of the decoding buffer
+	 */
+	private static final int BUFFER = 8192;
+
+	/**
+	 * Most bytes of gzip header to buffer, since file names and comments can be
+	 * any length
+	 */
+	private static final int MAX_HEADER = 64 * 1024;
+
+	/**
+	 * Gzip header flag for a header checksum
+	 */
+	private static final int FHCRC = 2;
+
+	/**
+	 * Gzip header flag for extra fields
+	 */
+	private static final int FEXTRA = 4;
+
+	/**
+	 * Gzip header flag for a file name
+	 */
+	private static final int FNAME = 8;
+
+	/**
+	 * Gzip header flag for a comment
+	 */
+	private static final int FCOMMENT = 16;
+
+	/**
+	 * Bytes in the gzip trailer: the CRC-32 and size of the decoded member
+	 */
+	private static final int TRAILER = 8;
+
+	/**
+	 * Where the decoder is in the body
+	 */
+	private static enum State {
+		/** Copying bytes that are not encoded */
+		IDENTITY,
+
+		/** Reading a gzip header, or the first bytes of a deflate body */
+		HEADER,
+
+		/** Inflating compressed data */
+		INFLATE,
+
+		/** Reading the trailer of a gzip member */
+		TRAILER,
+
+		/** Past the end of the encoded data, or past the size cap */
+		DONE
+	}
+
+	/**
+	 * Where to write the decoded body
+	 */
+	private final OutputStream sink;
+
+	/**
+	 * Most decoded bytes to write to the sink
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Whether the body is gzip, rather than deflate or identity
+	 */
+	private final boolean gzip;
+
+	/**
+	 * Where the decoder is in the body
+	 */
+	private State state;
+
+	/**
+	 * The header or trailer bytes read so far
+	 */
+	private byte[] header;
+
+	/**
+	 * Number of bytes in the header buffer
+	 */
+	private int headerLength;
+
+	/**
+	 * Number of gzip members decoded
+	 */
+	private int members;
+
+	/**
+	 * Inflates the compressed data, or null until the header is read
+	 */
+	private Inflater inflater;
+
+	/**
+	 * Checksum of the decoded bytes of the current gzip member
+	 */
+	private final CRC32 crc;
+
+	/**
+	 * Holds the inflated bytes before they are written to the sink
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Number of encoded bytes written to the decoder
+	 */
+	private long encoded;
+
+	/**
+	 * Number of decoded bytes written to the sink
+	 */
+	private long decoded;
+
+	/**
+	 * Whether the decoded body went past the size cap
+	 */
+	private boolean truncated;
+
+	/**
+	 * Initializes a decoder
+	 *
+	 * @param encoding the Content-Encoding of the body, or null if there is none
+	 * @param sink     where to write the decoded body
+	 * @param maxBytes the most decoded bytes to write to the sink
+	 * @throws IllegalArgumentException if the encoding is not supported
+	 *
+	 * @see #supports(String)
+	 */
+	public ContentDecoder(String encoding, OutputStream sink, long maxBytes) {
+		if (!supports(encoding)) {
+			throw new IllegalArgumentException("Unsupported Content-Encoding: " + encoding);
+		}
+
+		String name = normalize(encoding);
+		this.sink = sink;
+		this.maxBytes = maxBytes;
+		this.gzip = name.equals("gzip") || name.equals("x-gzip");
+		this.state = isCompressed(name) ? State.HEADER : State.IDENTITY;
+		this.header = new byte[16];
+		this.headerLength = 0;
+		this.members = 0;
+		this.inflater = null;
+		this.crc = new CRC32();
+		this.buffer = state == State.IDENTITY ? null : new byte[BUFFER];
+		this.encoded = 0;
+		this.decoded = 0;
+		this.truncated = false;
+	}
+
+	/**
+	 * Determines whether bodies with the Content-Encoding can be decoded
+	 *
+	 * @param encoding the Content-Encoding of the body, or null if there is none
+	 * @return true if the encoding is gzip, deflate or none at all
+	 */
+	public static boolean supports(String encoding) {
+		switch (normalize(encoding)) {
+			case "":
+			case "identity":
+			case "gzip":
+			case "x-gzip":
+			case "deflate":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns the encoding in lowercase without surrounding spaces
+	 *
+	 * @param encoding the Content-Encoding, or null
+	 * @return the normalized encoding, or an empty string for null
+	 */
+	private static String normalize(String encoding) {
+		return encoding == null ? "" : encoding.strip().toLowerCase();
+	}
+
+	/**
+	 * Determines whether the Content-Encoding means the body is compressed
+	 *
+	 * @param encoding the Content-Encoding of the body, or null if there is none
+	 * @return true if the encoding is gzip or deflate
+	 */
+	public static boolean isCompressed(String encoding) {
+		String name = normalize(encoding);
+		return !name.isEmpty() && !name.equals("identity");
+	}
+
+	/**
+	 * Returns whether the decoded body went past the size cap, in which case
+	 * nothing more is decoded
+	 *
+	 * @return true if the body was cut off
+	 */
+	public boolean truncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the number of encoded bytes written to the decoder so far
+	 *
+	 * @return the number of encoded bytes
+	 */
+	public long encoded() {
+		return encoded;
+	}
+
+	/**
+	 * Returns the number of decoded bytes written to the sink so far
+	 *
+	 * @return the number of decoded bytes
+	 */
+	public long decoded() {
+		return decoded;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * Decodes all of the remaining bytes in the buffer
+	 *
+	 * @param bytes the encoded bytes
+	 * @throws IOException if the body is not validly encoded or the sink fails
+	 */
+	public void write(ByteBuffer bytes) throws IOException {
+		if (bytes.hasArray()) {
+			write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			bytes.position(bytes.limit());
+		} else {
+			byte[] copy = new byte[bytes.remaining()];
+			bytes.get(copy);
+			write(copy, 0, copy.length);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		encoded += len;
+		int end = off + len;
+
+		while (off < end && state != State.DONE) {
+			switch (state) {
+				case IDENTITY:
+					emit(b, off, end - off);
+					off = end;
+					break;
+
+				case HEADER:
+					off = header(b, off, end);
+					break;
+
+				case INFLATE:
+					off = inflate(b, off, end);
+					break;
+
+				case TRAILER:
+					off = trailer(b, off, end);
+					break;
+
+				default:
+					off = end;
+			}
+		}
+	}
+
+	/**
+	 * Buffers header bytes until the whole header is read, then starts inflating
+	 *
+	 * @param b   the encoded bytes
+	 * @param off where the unread bytes start
+	 * @param end where the bytes end
+	 * @return where the unread bytes start now
+	 * @throws IOException if the header is not valid
+	 */
+	private int header(byte[] b, int off, int end) throws IOException {
+		if (gzip && members > 0 && headerLength == 0 && (b[off] & 0xFF) != 0x1F) {
+			// anything after the last member is ignored
+			finish();
+			return end;
+		}
+
+		int needed = gzip ? gzipHeaderLength() : 2;
+		while (needed < 0 || headerLength < needed) {
+			if (off == end) {
+				return off;
+			}
+
+			if (headerLength == header.length) {
+				if (header.length >= MAX_HEADER) {
+					throw new IOException("Gzip header too long");
+				}
+				header = Arrays.copyOf(header, header.length * 2);
+			}
+
+			header[headerLength++] = b[off++];
+			if (gzip) {
+				needed = gzipHeaderLength();
+			}
+		}
+
+		if (gzip) {
+			inflater = inflater == null ? new Inflater(true) : inflater;
+			inflater.reset();
+			crc.reset();
+		} else {
+			// a zlib header is a deflate method byte with a checksum that is a multiple of 31
+			int cmf = header[0] & 0xFF;
+			int flg = header[1] & 0xFF;
+			boolean zlib = (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+			inflater = new Inflater(!zlib);
+			inflater.setInput(header, 0, headerLength);
+		}
+
+		headerLength = 0;
+		state = State.INFLATE;
+
+		if (!gzip) {
+			inflate(b, off, off); // the two header bytes may hold data for raw deflate
+		}
+		return off;
+	}
+
+	/**
+	 * Returns the length of the gzip header in the buffer, once enough of it is
+	 * read to tell
+	 *
+	 * @return the header length, or -1 if more bytes are needed to know it
+	 * @throws IOException if the bytes are not a gzip header
+	 */
+	private int gzipHeaderLength() throws IOException {
+		if (headerLength >= 1 && (header[0] & 0xFF) != 0x1F || headerLength >= 2 && (header[1] & 0xFF) != 0x8B) {
+			throw new IOException("Not in gzip format");
+		}
+
+		if (headerLength < 10) {
+			return -1;
+		}
+
+		if (header[2] != 8) {
+			throw new IOException("Unsupported gzip compression method");
+		}
+
+		int flags = header[3] & 0xFF;
+		int length = 10;
+
+		if ((flags & FEXTRA) != 0) {
+			if (headerLength < length + 2) {
+				return -1;
+			}
+			length += 2 + ((header[length] & 0xFF) | (header[length + 1] & 0xFF) << 8);
+		}
+
+		if ((flags & FNAME) != 0) {
+			length = afterZero(length);
+			if (length < 0) {
+				return -1;
+			}
+		}
+
+		if ((flags & FCOMMENT) != 0) {
+			length = afterZero(length);
+			if (length < 0) {
+				return -1;
+			}
+		}
+
+		if ((flags & FHCRC) != 0) {
+			length += 2;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Finds the end of a zero-terminated field in the header buffer
+	 *
+	 * @param start where the field starts
+	 * @return where the field ends, past the zero, or -1 if the zero is not read
+	 *         yet
+	 */
+	private int afterZero(int start) {
+		for (int i = start; i < headerLength; i++) {
+			if (header[i] == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Inflates compressed bytes and writes them to the sink
+	 *
+	 * @param b   the encoded bytes
+	 * @param off where the unread bytes start
+	 * @param end where the bytes end
+	 * @return where the unread bytes start now
+	 * @throws IOException if the compressed data is corrupt
+	 */
+	private int inflate(byte[] b, int off, int end) throws IOException {
+		if (off < end) {
+			inflater.setInput(b, off, end - off);
+		}
+
+		try {
+			while (state == State.INFLATE) {
+				int n = inflater.inflate(buffer);
+				if (n > 0) {
+					crc.update(buffer, 0, n);
+					emit(buffer, 0, n);
+				} else if (inflater.finished()) {
+					if (gzip) {
+						state = State.TRAILER;
+					} else {
+						finish();
+					}
+				} else if (inflater.needsInput()) {
+					return end;
+				} else if (inflater.needsDictionary()) {
+					throw new IOException("Deflate body needs a preset dictionary");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt " + (gzip ? "gzip" : "deflate") + " body", e);
+		}
+
+		// bytes the inflater did not need belong to the trailer or after the body
+		return state == State.DONE ? end : end - inflater.getRemaining();
+	}
+
+	/**
+	 * Reads the gzip trailer and checks it against the decoded member, then
+	 * expects another member in case the body has more than one
+	 *
+	 * @param b   the encoded bytes
+	 * @param off where the unread bytes start
+	 * @param end where the bytes end
+	 * @return where the unread bytes start now
+	 * @throws IOException if the trailer does not match the decoded bytes
+	 */
+	private int trailer(byte[] b, int off, int end) throws IOException {
+		while (headerLength < TRAILER && off < end) {
+			header[headerLength++] = b[off++];
+		}
+
+		if (headerLength < TRAILER) {
+			return off;
+		}
+
+		long checksum = (header[0] & 0xFFL) | (header[1] & 0xFFL) << 8 | (header[2] & 0xFFL) << 16
+				| (header[3] & 0xFFL) << 24;
+		long size = (header[4] & 0xFFL) | (header[5] & 0xFFL) << 8 | (header[6] & 0xFFL) << 16
+				| (header[7] & 0xFFL) << 24;
+
+		if (checksum != crc.getValue() || size != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+			throw new IOException("Corrupt gzip trailer");
+		}
+
+		headerLength = 0;
+		state = State.HEADER; // another member may follow
+		members++;
+		return off;
+	}
+
+	/**
+	 * Writes decoded bytes to the sink, up to the size cap
+	 *
+	 * @param b   the decoded bytes
+	 * @param off where the bytes start
+	 * @param len the number of bytes
+	 * @throws IOException if the sink fails
+	 */
+	private void emit(byte[] b, int off, int len) throws IOException {
+		int n = (int) Math.min(len, maxBytes - decoded);
+		if (n > 0) {
+			sink.write(b, off, n);
+			decoded += n;
+		}
+
+		if (n < len) {
+			truncated = true;
+			finish();
+		}
+	}
+
+	/**
+	 * Stops decoding and releases the inflater; later bytes are ignored
+	 */
+	private void finish() {
+		state = State.DONE;
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Releases the inflater, without closing the sink
+	 */
+	@Override
+	public void close() {
+		finish();
+	}
+}
@@ -0,0 +1,442 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Saves the progress of a crawl so it can continue after the process dies. The
+ * crawl is recorded as an append-only log of the URLs it claimed and the pages
+ * it finished, with the stems of each page indexed. Together these hold the
+ * seen set (every claimed URL), the frontier (claimed URLs not finished yet)
+ * and the index built so far (the stems of the finished pages), so resuming
+ * never fetches a finished page again.
+ *
+ * <p>
+ * Workers only add records to a buffer in memory. A background thread appends
+ * the buffer to the log and forces it to disk every interval, so each
+ * checkpoint only writes what changed since the last one and the workers never
+ * wait on the disk. A record cut off by a crash is dropped when the log is
+ * loaded.
+ *
+ * @author troy
+ *
+ */
+public class CrawlCheckpoint implements Closeable {
+
+	/**
+	 * Default milliseconds between checkpoints
+	 */
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	/**
+	 * Name of the log file in the checkpoint directory
+	 */
+	public static final String LOG = "crawl.log";
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Record of a claimed URL
+	 */
+	private static final String CLAIMED = "C";
+
+	/**
+	 * Record of a finished URL that was not indexed
+	 */
+	private static final String SKIPPED = "S";
+
+	/**
+	 * Record of a finished URL that was indexed, with its location and stems
+	 */
+	private static final String PAGE = "P";
+
+	/**
+	 * Record of a page taken out of the index again after it was indexed
+	 */
+	private static final String REMOVED = "R";
+
+	/**
+	 * Milliseconds between checkpoints
+	 */
+	private final long interval;
+
+	/**
+	 * The log file
+	 */
+	private final Path file;
+
+	/**
+	 * Guards the buffer and whether the checkpoint was closed
+	 */
+	private final Object lock;
+
+	/**
+	 * Records not written yet
+	 */
+	private ArrayList<String> buffer;
+
+	/**
+	 * Every URL claimed before this run, in the order claimed
+	 */
+	private final ArrayList<String> seen;
+
+	/**
+	 * The URLs claimed before this run but not finished, in the order claimed
+	 */
+	private final LinkedHashSet<String> pending;
+
+	/**
+	 * The pages indexed before this run, until they are replayed
+	 */
+	private InvertedIndex pages;
+
+	/**
+	 * The locations of the pages indexed before this run
+	 */
+	private final ArrayList<String> locations;
+
+	/**
+	 * Number of pages indexed before this run
+	 */
+	private int resumed;
+
+	/**
+	 * Appends to the log file
+	 */
+	private final FileOutputStream out;
+
+	/**
+	 * Writes the records to the log file
+	 */
+	private final BufferedWriter writer;
+
+	/**
+	 * Number of records written this run
+	 */
+	private long written;
+
+	/**
+	 * Number of checkpoints taken this run
+	 */
+	private long checkpoints;
+
+	/**
+	 * Whether the checkpoint was closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Writes the buffered records in the background
+	 */
+	private final Thread flusher;
+
+	/**
+	 * Opens the checkpoint in the directory with the default interval
+	 *
+	 * @param directory the directory to keep the checkpoint in
+	 * @param resume    whether to load the progress already saved there, instead
+	 *                  of starting over
+	 * @throws IOException if unable to read or create the checkpoint
+	 */
+	public CrawlCheckpoint(Path directory, boolean resume) throws IOException {
+		this(directory, resume, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Opens the checkpoint in the directory
+	 *
+	 * @param directory the directory to keep the checkpoint in
+	 * @param resume    whether to load the progress already saved there, instead
+	 *                  of starting over
+	 * @param interval  milliseconds between checkpoints
+	 * @throws IOException if unable to read or create the checkpoint
+	 */
+	public CrawlCheckpoint(Path directory, boolean resume, long interval) throws IOException {
+		this.interval = Math.max(interval, 1);
+		this.file = directory.resolve(LOG);
+		this.lock = new Object();
+		this.buffer = new ArrayList<>();
+		this.seen = new ArrayList<>();
+		this.pending = new LinkedHashSet<>();
+		this.pages = new InvertedIndex();
+		this.locations = new ArrayList<>();
+		this.resumed = 0;
+		this.written = 0;
+		this.checkpoints = 0;
+		this.closed = false;
+
+		Files.createDirectories(directory);
+		if (resume && Files.exists(file)) {
+			load();
+		}
+
+		this.out = new FileOutputStream(file.toFile(), resume);
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+
+		this.flusher = new Thread(this::flushLoop, "Checkpoint");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Loads the saved progress, first cutting off a record the last run did not
+	 * finish writing
+	 *
+	 * @throws IOException if unable to read the log
+	 */
+	private void load() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			long end = raf.length();
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			raf.setLength(end);
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 4);
+
+				if (parts.length == 2 && parts[0].equals(CLAIMED)) {
+					if (pending.add(parts[1])) {
+						seen.add(parts[1]);
+					}
+				} else if (parts.length == 2 && parts[0].equals(SKIPPED)) {
+					pending.remove(parts[1]);
+				} else if (parts.length == 2 && parts[0].equals(REMOVED)) {
+					if (locations.remove(parts[1])) {
+						pages.remove(parts[1]);
+						resumed--;
+					}
+				} else if (parts.length == 4 && parts[0].equals(PAGE)) {
+					pending.remove(parts[1]);
+					locations.add(parts[2]);
+					resumed++;
+
+					if (!parts[3].isEmpty()) {
+						int position = 1;
+						for (String stem : parts[3].split(" ")) {
+							pages.add(stem, parts[2], position++);
+						}
+					}
+				} else {
+					log.warn("Skipping unreadable checkpoint record: {}", line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns every URL claimed before this run, in the order claimed
+	 *
+	 * @return the URLs claimed before
+	 */
+	public List<String> seen() {
+		return seen;
+	}
+
+	/**
+	 * Returns the URLs claimed before this run that never finished, in the order
+	 * claimed
+	 *
+	 * @return the URLs to crawl again
+	 */
+	public List<String> pending() {
+		return new ArrayList<>(pending);
+	}
+
+	/**
+	 * Returns the locations of the pages indexed before this run
+	 *
+	 * @return the locations the pages were indexed under
+	 */
+	public List<String> locations() {
+		return locations;
+	}
+
+	/**
+	 * Returns the number of pages indexed before this run
+	 *
+	 * @return the number of pages resumed
+	 */
+	public int resumed() {
+		return resumed;
+	}
+
+	/**
+	 * Adds the pages indexed before this run to the index. Only adds them once.
+	 *
+	 * @param index the index to add the pages to
+	 */
+	public void replay(ThreadSafeInvertedIndex index) {
+		InvertedIndex replayed;
+		synchronized (this) {
+			replayed = pages;
+			pages = new InvertedIndex();
+		}
+		index.addAll(replayed);
+	}
+
+	/**
+	 * Records that the crawl claimed the URL
+	 *
+	 * @param url the URL as it was queued
+	 */
+	public void claimed(String url) {
+		record(CLAIMED + "\t" + url);
+	}
+
+	/**
+	 * Records that the URL finished without adding anything to the index,
+	 * because it failed or was not HTML
+	 *
+	 * @param url the URL as it was queued
+	 */
+	public void skipped(String url) {
+		record(SKIPPED + "\t" + url);
+	}
+
+	/**
+	 * Records that the URL finished and its stems were indexed
+	 *
+	 * @param url      the URL as it was queued
+	 * @param location the location the stems were indexed under
+	 * @param stems    the stems in order
+	 */
+	public void indexed(String url, String location, List<String> stems) {
+		record(PAGE + "\t" + url + "\t" + location + "\t" + String.join(" ", stems));
+	}
+
+	/**
+	 * Records that a page indexed earlier was taken out of the index again,
+	 * because a near-duplicate of it became the original
+	 *
+	 * @param location the location the stems were indexed under
+	 */
+	public void removed(String location) {
+		record(REMOVED + "\t" + location);
+	}
+
+	/**
+	 * Adds a record to the buffer for the next checkpoint
+	 *
+	 * @param record the record
+	 */
+	private void record(String record) {
+		synchronized (lock) {
+			if (!closed) {
+				buffer.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Takes a checkpoint every interval until closed
+	 */
+	private void flushLoop() {
+		try {
+			while (true) {
+				synchronized (lock) {
+					if (!closed) {
+						lock.wait(interval);
+					}
+					if (closed) {
+						return;
+					}
+				}
+				checkpoint();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends the buffered records to the log and forces them to disk. Only one
+	 * checkpoint is taken at a time.
+	 */
+	public synchronized void checkpoint() {
+		ArrayList<String> records;
+		synchronized (lock) {
+			if (buffer.isEmpty()) {
+				return;
+			}
+			records = buffer;
+			buffer = new ArrayList<>();
+		}
+
+		try {
+			for (String record : records) {
+				writer.write(record);
+				writer.newLine();
+			}
+			writer.flush();
+			out.getChannel().force(false);
+
+			written += records.size();
+			checkpoints++;
+		} catch (IOException e) {
+			log.catching(Level.WARN, e);
+		}
+	}
+
+	/**
+	 * Returns a summary of the checkpoints taken this run
+	 *
+	 * @return the checkpoint report
+	 */
+	public synchronized String report() {
+		return String.format("Checkpoint: %d pages resumed, %d records written in %d checkpoints to %s%n", resumed,
+				written, checkpoints, file);
+	}
+
+	/**
+	 * Takes a last checkpoint and closes the log. Records added after this are
+	 * ignored.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+
+		checkpoint();
+
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(1));
+			synchronized (this) {
+				writer.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.catching(Level.WARN, e);
+		}
+	}
+}
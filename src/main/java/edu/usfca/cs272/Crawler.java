@@ -1,19 +1,69 @@
 package edu.usfca.cs272;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
- * Crawls through a given URL
+ * Crawls through a given URL. Each page is fetched once, and the same
+ * downloaded HTML is used to find links and to extract the text to index.
+ * 
+ * Pages are fetched by the worker threads with {@link HtmlFetcher}, or if given
+ * an {@link AsyncFetcher}, fetched without blocking and only handed to the
+ * worker threads to be parsed and indexed once they have downloaded. A crawl
+ * only has as many pages fetching or waiting to be parsed as the WorkQueue has
+ * room for, so fetching cannot run ahead of parsing.
+ * 
+ * Every URL found waits in a {@link Frontier} until its host allows another
+ * request, so the crawl spreads its requests across hosts instead of bursting
+ * whichever host a page links to most.
+ * 
+ * The URLs a crawl has claimed are kept in a {@link SeenSet} of fingerprints of
+ * their text, so checking a link never resolves its host and threads finding
+ * links at the same time do not wait on one lock.
+ * 
+ * Given a {@link CrawlCheckpoint}, a crawl records its progress as it goes and
+ * can pick up where a crawl that died left off.
+ * 
+ * Given a {@link ValidatorStore}, a crawl starts from the index of the last
+ * crawl and sends conditional requests, so only the pages that changed since
+ * then are parsed and have their stems replaced in the index.
+ * 
+ * Given a second {@link WorkQueue} to fetch on, pages are fetched on its
+ * workers and handed to the first one to be parsed and indexed, so each can be
+ * sized for its own half of the work.
+ * 
+ * Given a {@link DuplicateDetector}, pages whose text is the same or nearly the
+ * same as a page already indexed still have their links followed, but their
+ * stems are not added to the index.
  * 
  * @author troy
  *
  */
 public class Crawler {
 
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Milliseconds to wait before handing a fetched page to a full WorkQueue again
+	 */
+	public static final long RETRY = 10;
+
 	/**
 	 * WorkQueue object to use
 	 */
@@ -24,6 +74,38 @@ public class Crawler {
 	 */
 	private final ThreadSafeInvertedIndex data;
 
+	/**
+	 * Fetches pages without blocking the workers, or null to fetch them on the
+	 * workers
+	 */
+	private final AsyncFetcher fetcher;
+
+	/**
+	 * Fetches pages on its own workers so the WorkQueue only parses and indexes
+	 * them, or null to fetch them on the WorkQueue
+	 */
+	private final WorkQueue io;
+
+	/**
+	 * Decides when each URL's host allows it to be fetched
+	 */
+	private final Frontier frontier;
+
+	/**
+	 * Finds pages that copy a page already indexed, or null to index every page
+	 */
+	private final DuplicateDetector duplicates;
+
+	/**
+	 * Number of pages this crawler has fetched
+	 */
+	private final LongAdder fetches;
+
+	/**
+	 * Number of fetched pages that were HTML and added to the index
+	 */
+	private final LongAdder indexed;
+
 	/**
 	 * Contructor for Crawler object that sets the ThreadSafeInvertedIndex and
 	 * WorkQueue
@@ -32,8 +114,81 @@ public class Crawler {
 	 * @param queue WorkQueue to set
 	 */
 	public Crawler(ThreadSafeInvertedIndex data, WorkQueue queue) {
+		this(data, queue, null);
+	}
+
+	/**
+	 * Contructor for Crawler object that fetches pages without blocking the
+	 * WorkQueue and only uses it to parse and index the pages
+	 * 
+	 * @param data    ThreadSafeInvertedIndex object to set
+	 * @param queue   WorkQueue to set
+	 * @param fetcher AsyncFetcher to fetch pages with, or null to fetch them on
+	 *                the WorkQueue
+	 */
+	public Crawler(ThreadSafeInvertedIndex data, WorkQueue queue, AsyncFetcher fetcher) {
+		this(data, queue, fetcher, new Frontier());
+	}
+
+	/**
+	 * Contructor for Crawler object that schedules the requests to each host with
+	 * the given frontier
+	 * 
+	 * @param data     ThreadSafeInvertedIndex object to set
+	 * @param queue    WorkQueue to set
+	 * @param fetcher  AsyncFetcher to fetch pages with, or null to fetch them on
+	 *                 the WorkQueue
+	 * @param frontier Frontier that decides when each host can be fetched from
+	 */
+	public Crawler(ThreadSafeInvertedIndex data, WorkQueue queue, AsyncFetcher fetcher, Frontier frontier) {
+		this(data, queue, fetcher, frontier, null);
+	}
+
+	/**
+	 * Contructor for Crawler object that skips pages whose text is the same or
+	 * nearly the same as a page already indexed
+	 * 
+	 * @param data       ThreadSafeInvertedIndex object to set
+	 * @param queue      WorkQueue to set
+	 * @param fetcher    AsyncFetcher to fetch pages with, or null to fetch them on
+	 *                   the WorkQueue
+	 * @param frontier   Frontier that decides when each host can be fetched from
+	 * @param duplicates DuplicateDetector that finds copies of pages already
+	 *                   indexed, or null to index every page
+	 */
+	public Crawler(ThreadSafeInvertedIndex data, WorkQueue queue, AsyncFetcher fetcher, Frontier frontier,
+			DuplicateDetector duplicates) {
+		this(data, queue, fetcher, frontier, duplicates, null);
+	}
+
+	/**
+	 * Contructor for Crawler object that fetches pages on a separate WorkQueue
+	 * sized for waiting on the network, so the WorkQueue only parses and indexes
+	 * them. Each fetched page is handed to the WorkQueue, so a fetch worker waits
+	 * for room once the WorkQueue is at capacity instead of fetching ahead of the
+	 * parsers. An AsyncFetcher already fetches without a worker per request, so
+	 * the fetch queue is not used with one.
+	 * 
+	 * @param data       ThreadSafeInvertedIndex object to set
+	 * @param queue      WorkQueue to parse and index the pages on
+	 * @param fetcher    AsyncFetcher to fetch pages with, or null to fetch them on
+	 *                   a WorkQueue
+	 * @param frontier   Frontier that decides when each host can be fetched from
+	 * @param duplicates DuplicateDetector that finds copies of pages already
+	 *                   indexed, or null to index every page
+	 * @param io         WorkQueue to fetch the pages on, or null to fetch them on
+	 *                   the same WorkQueue that parses them
+	 */
+	public Crawler(ThreadSafeInvertedIndex data, WorkQueue queue, AsyncFetcher fetcher, Frontier frontier,
+			DuplicateDetector duplicates, WorkQueue io) {
 		this.data = data;
 		this.queue = queue;
+		this.fetcher = fetcher;
+		this.io = fetcher == null ? io : null;
+		this.frontier = frontier;
+		this.duplicates = duplicates;
+		this.fetches = new LongAdder();
+		this.indexed = new LongAdder();
 	}
 
 	/**
@@ -48,6 +203,65 @@ public class Crawler {
 		return FileStemmer.listStems(html);
 	}
 
+	/**
+	 * Returns an ArrayList of stems of HTML that already had its block elements
+	 * stripped, so the same HTML can be used to find links first
+	 * 
+	 * @param html HTML without comments or block elements
+	 * @return Returns the stems of the HTML after being stripped
+	 * 
+	 * @see HtmlCleaner#stripBlockElements(String)
+	 */
+	public static ArrayList<String> parseStripped(String html) {
+		html = HtmlCleaner.stripTags(html);
+		html = HtmlCleaner.stripEntities(html);
+		return FileStemmer.listStems(html);
+	}
+
+	/**
+	 * Returns the number of pages this crawler has fetched
+	 * 
+	 * @return the number of pages fetched
+	 */
+	public long fetches() {
+		return fetches.sum();
+	}
+
+	/**
+	 * Returns the number of fetched pages that were HTML and added to the index
+	 * 
+	 * @return the number of pages indexed
+	 */
+	public long indexed() {
+		return indexed.sum();
+	}
+
+	/**
+	 * Returns a summary of how many pages were fetched and indexed, how many HTTP
+	 * requests were made for them, how many came compressed, how many were not
+	 * modified and how many were cut short, and how many were near-duplicates
+	 * 
+	 * @return the crawl report
+	 */
+	public String report() {
+		String report = duplicates == null ? "" : duplicates.report();
+		if (fetcher != null) {
+			return String.format("Crawler: %d pages fetched, %d indexed, %d HTTP requests including redirects, "
+					+ "%d most in flight, %d pages compressed, %d not modified, %d truncated, %d requests aborted%n",
+					fetches(), indexed(), fetcher.requests(), fetcher.peakInFlight(), fetcher.compressed(),
+					fetcher.notModified(), fetcher.truncated(), fetcher.aborted()) + frontier.report() + report;
+		}
+
+		ConnectionPool pool = HtmlFetcher.pool();
+		return String.format(
+				"Crawler: %d pages fetched, %d indexed, %d HTTP requests including redirects, "
+						+ "%d connections opened, %d reused, %d pages compressed, %d not modified, %d truncated, "
+						+ "%d requests aborted%n",
+				fetches(), indexed(), HtmlFetcher.requests(), pool.opened(), pool.reused(), HtmlFetcher.compressed(),
+				HtmlFetcher.notModified(), HtmlFetcher.truncated(), HtmlFetcher.aborted()) + HttpsFetcher.hosts().report()
+				+ frontier.report() + report;
+	}
+
 	/**
 	 * Converts a seed URL to URL type then strips HTML string found from fetching
 	 * the URL. The String is then stemmed to get each individual stem in the string
@@ -60,7 +274,9 @@ public class Crawler {
 	public void crawl(String seedUrl) throws MalformedURLException, URISyntaxException {
 		URL url = new URL(seedUrl);
 		url = LinkFinder.normalize(url);
+		fetches.increment();
 		ArrayList<String> parsed = parseHtml(url);
+		indexed.increment();
 		int counter = 1;
 		for (String word : parsed) {
 			data.add(word, url.toString(), counter++);
@@ -77,12 +293,364 @@ public class Crawler {
 	 * @throws URISyntaxException    If this error occurs
 	 */
 	public void multiThreadCrawl(String seedUrl, int max) throws MalformedURLException, URISyntaxException {
-		// int maxCounter = 1;
-		HashSet<URL> crawled = new HashSet<>(); // O(1) lookup time
+		startCrawl(seedUrl, max).finish();
+	}
+
+	/**
+	 * Starts crawling from the seedUrl in its own task group without waiting for
+	 * the crawl to finish, so other work can share the same WorkQueue
+	 * 
+	 * @param seedUrl URL to crawl
+	 * @param max     Max number of URLs to crawl
+	 * @return the task group to wait on for the crawl to finish
+	 * @throws MalformedURLException If this error occurs
+	 * @throws URISyntaxException    If this error occurs
+	 */
+	public WorkQueue.TaskGroup startCrawl(String seedUrl, int max) throws MalformedURLException, URISyntaxException {
+		return startCrawl(seedUrl, max, null);
+	}
+
+	/**
+	 * Starts crawling from the seedUrl like {@link #startCrawl(String, int)}, but
+	 * records the progress in the checkpoint. If the checkpoint holds progress
+	 * from before, adds the pages already crawled to the index and continues with
+	 * the URLs that were claimed but not finished instead of starting from the
+	 * seedUrl.
+	 * 
+	 * @param seedUrl    URL to crawl
+	 * @param max        Max number of URLs to crawl
+	 * @param checkpoint Checkpoint to record the crawl in, or null to not record it
+	 * @return the task group to wait on for the crawl to finish
+	 * @throws MalformedURLException If this error occurs
+	 * @throws URISyntaxException    If this error occurs
+	 */
+	public WorkQueue.TaskGroup startCrawl(String seedUrl, int max, CrawlCheckpoint checkpoint)
+			throws MalformedURLException, URISyntaxException {
+		return startCrawl(seedUrl, max, checkpoint, null);
+	}
+
+	/**
+	 * Starts crawling from the seedUrl like
+	 * {@link #startCrawl(String, int, CrawlCheckpoint)}, but first adds the pages
+	 * from the last crawl in the validator store to the index, and only parses
+	 * and indexes the pages that changed since then. Once the crawl finishes,
+	 * {@link ValidatorStore#prune(ThreadSafeInvertedIndex)} removes the pages it
+	 * no longer reaches.
+	 * 
+	 * @param seedUrl    URL to crawl
+	 * @param max        Max number of URLs to crawl
+	 * @param checkpoint Checkpoint to record the crawl in, or null to not record it
+	 * @param validators Store of the last crawl to update, or null to crawl every
+	 *                   page from scratch
+	 * @return the task group to wait on for the crawl to finish
+	 * @throws MalformedURLException If this error occurs
+	 * @throws URISyntaxException    If this error occurs
+	 */
+	public WorkQueue.TaskGroup startCrawl(String seedUrl, int max, CrawlCheckpoint checkpoint,
+			ValidatorStore validators) throws MalformedURLException, URISyntaxException {
 		URL url = new URL(seedUrl);
-		crawled.add(url);
-		queue.execute(new Task(url, max, crawled, data, queue));
-		queue.finish();
+		Crawl crawl = new Crawl(max, queue.newGroup(WorkQueue.Priority.BATCH), checkpoint, validators); // yields to searches
+
+		if (validators != null) {
+			validators.replay(data);
+		}
+
+		if (checkpoint == null || checkpoint.seen().isEmpty()) {
+			if (duplicates != null) {
+				duplicates.addAll(data); // copies of the last crawl's pages are still copies
+			}
+			crawl.claim(url);
+			return crawl.group;
+		}
+
+		if (validators != null) {
+			// pages finished before the resume are kept as they were indexed then
+			for (String location : checkpoint.locations()) {
+				if (validators.get(location) != null) {
+					data.remove(location);
+					validators.keep(location);
+				}
+			}
+			data.compact(); // before the checkpoint adds them back
+		}
+
+		checkpoint.replay(data);
+		if (duplicates != null) {
+			duplicates.addAll(data);
+		}
+		for (String seen : checkpoint.seen()) {
+			crawl.seen.add(seen);
+		}
+
+		for (String pending : checkpoint.pending()) {
+			if (crawl.seen.contains(pending)) { // unless the max is lower this time
+				crawl.schedule(new URL(pending));
+			}
+		}
+		return crawl.group;
+	}
+
+	/**
+	 * The state shared by every task of one crawl, which also starts the crawl's
+	 * URLs as the frontier lets them through
+	 */
+	private class Crawl implements Frontier.Starter {
+		/**
+		 * The URLs claimed by the crawl, which holds at most the max number of URLs
+		 */
+		private final SeenSet seen;
+
+		/**
+		 * Task group of the crawl
+		 */
+		private final WorkQueue.TaskGroup group;
+
+		/**
+		 * Records the progress of the crawl, or null
+		 */
+		private final CrawlCheckpoint checkpoint;
+
+		/**
+		 * Remembers the last crawl of each page, or null
+		 */
+		private final ValidatorStore validators;
+
+		/**
+		 * Pages that may still be fetching or waiting to be parsed, or null if the
+		 * WorkQueue is unbounded
+		 */
+		private final Semaphore room;
+
+		/**
+		 * Initializes the crawl
+		 * 
+		 * @param max        Max number of URLs to crawl
+		 * @param group      Task group of the crawl
+		 * @param checkpoint Records the progress of the crawl, or null
+		 * @param validators Remembers the last crawl of each page, or null
+		 */
+		private Crawl(int max, WorkQueue.TaskGroup group, CrawlCheckpoint checkpoint, ValidatorStore validators) {
+			this.seen = new SeenSet(max);
+			this.group = group;
+			this.checkpoint = checkpoint;
+			this.validators = validators;
+			this.room = queue.capacity() == Integer.MAX_VALUE ? null : new Semaphore(queue.capacity());
+		}
+
+		/**
+		 * Returns what the page looked like the last time it was crawled
+		 * 
+		 * @param url the normalized URL
+		 * @return the last crawl of the page, or null if there is none
+		 */
+		private ValidatorStore.Entry previous(URL url) {
+			return validators == null ? null : validators.get(url.toString());
+		}
+
+		/**
+		 * Fetches the page, sending the validators from the last crawl of it
+		 * 
+		 * @param url the normalized URL
+		 * @return the page
+		 * @throws IOException if unable to fetch the page
+		 */
+		private HtmlFetcher.Page fetch(URL url) throws IOException {
+			ValidatorStore.Entry previous = previous(url);
+			return previous == null ? HtmlFetcher.fetchPage(url, 3, null, null)
+					: HtmlFetcher.fetchPage(url, 3, previous.etag(), previous.lastModified());
+		}
+
+		/**
+		 * Fetches the page without blocking, sending the validators from the last
+		 * crawl of it
+		 * 
+		 * @param url the normalized URL
+		 * @return a future for the page
+		 */
+		private CompletableFuture<HtmlFetcher.Page> fetchAsync(URL url) {
+			ValidatorStore.Entry previous = previous(url);
+			return previous == null ? fetcher.fetchPage(url, 3, null, null)
+					: fetcher.fetchPage(url, 3, previous.etag(), previous.lastModified());
+		}
+
+		/**
+		 * Claims the URL for this crawl and schedules it, unless it was already
+		 * claimed or the crawl has reached its max
+		 * 
+		 * @param url URL to crawl
+		 */
+		private void claim(URL url) {
+			String text = url.toString();
+			if (seen.add(text)) {
+				if (checkpoint != null) {
+					checkpoint.claimed(text);
+				}
+				schedule(url);
+			}
+		}
+
+		/**
+		 * Records that the URL finished without being indexed
+		 * 
+		 * @param queued the URL as it was queued
+		 */
+		private void skipped(String queued) {
+			if (checkpoint != null) {
+				checkpoint.skipped(queued);
+			}
+		}
+
+		/**
+		 * Records that the URL finished and was indexed
+		 * 
+		 * @param queued   the URL as it was queued
+		 * @param location the location it was indexed under
+		 * @param stems    the stems indexed
+		 */
+		private void indexed(String queued, String location, List<String> stems) {
+			if (checkpoint != null) {
+				checkpoint.indexed(queued, location, stems);
+			}
+		}
+
+		/**
+		 * Queues the URL in the frontier until its host allows another request. The
+		 * queued URL is counted in the group, so finish() waits for it.
+		 * 
+		 * @param url URL to crawl
+		 */
+		private void schedule(URL url) {
+			group.incrementPending();
+			frontier.add(url, this);
+		}
+
+		/**
+		 * Starts crawling a URL the frontier let through. Without an AsyncFetcher
+		 * or a fetch queue the task fetches the page itself; otherwise the page is
+		 * fetched first and the task only added once it has downloaded.
+		 * 
+		 * @param url URL to crawl
+		 */
+		@Override
+		public void start(URL url) {
+			try {
+				if (fetcher == null && io == null) {
+					try {
+						group.execute(new Task(url, this, data));
+					} catch (RejectedExecutionException e) {
+						frontier.cancel(url);
+						skipped(url.toString());
+						log.catching(Level.WARN, e);
+					}
+					return;
+				}
+
+				URL normalized;
+				try {
+					normalized = LinkFinder.normalize(url);
+				} catch (MalformedURLException | URISyntaxException e) {
+					frontier.cancel(url);
+					skipped(url.toString());
+					System.err.println("Error while running Task");
+					return;
+				}
+
+				if (room != null) {
+					try {
+						room.acquire(); // stops starting fetches while the pages already fetched fill the queue
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						frontier.cancel(url);
+						skipped(url.toString());
+						return;
+					}
+				}
+
+				CompletableFuture<HtmlFetcher.Page> fetched;
+				try {
+					if (fetcher != null) {
+						long start = System.nanoTime();
+						fetched = fetchAsync(normalized)
+								.whenComplete((page, e) -> frontier.done(url, System.nanoTime() - start, e == null));
+					} else {
+						fetched = io.submit(() -> {
+							long start = System.nanoTime(); // not counting the wait for a fetch worker
+							boolean ok = false;
+							try {
+								HtmlFetcher.Page page = fetch(normalized);
+								ok = true;
+								return page;
+							} finally {
+								frontier.done(url, System.nanoTime() - start, ok);
+							}
+						});
+					}
+				} catch (RuntimeException e) {
+					release();
+					throw e;
+				}
+
+				// counted in the group while in flight, so finish() waits for it
+				group.track(fetched.handle((page, e) -> {
+					Task task = new Task(url, this, data);
+					task.fetched(normalized, e == null ? page : null);
+					hand(url, task);
+					return null;
+				}));
+			} finally {
+				group.decrementPending(); // no longer queued in the frontier
+			}
+		}
+
+		/**
+		 * Hands a fetched page to the WorkQueue to be parsed without blocking, since
+		 * this runs on the threads that complete fetches. If other work has filled
+		 * the queue anyway, tries again after {@link Crawler#RETRY} milliseconds,
+		 * counting the retry in the group so finish() waits for it.
+		 * 
+		 * @param url  URL that was fetched
+		 * @param task the task to parse the page
+		 */
+		private void hand(URL url, Task task) {
+			try {
+				boolean added = group.offer(() -> {
+					try {
+						task.run();
+					} finally {
+						release();
+					}
+				});
+
+				if (!added) {
+					group.incrementPending();
+					CompletableFuture.runAsync(() -> {
+						try {
+							hand(url, task);
+						} finally {
+							group.decrementPending();
+						}
+					}, CompletableFuture.delayedExecutor(RETRY, TimeUnit.MILLISECONDS));
+				}
+			} catch (RejectedExecutionException rejected) {
+				release();
+				skipped(url.toString());
+				log.catching(Level.WARN, rejected);
+			}
+		}
+
+		/**
+		 * Makes room for another fetch once a fetched page was parsed or dropped
+		 */
+		private void release() {
+			if (room != null) {
+				room.release();
+			}
+		}
+
+		@Override
+		public void dropped(String url) {
+			group.decrementPending();
+		}
 	}
 
 	/**
@@ -100,14 +668,14 @@ public class Crawler {
 		private URL url;
 
 		/**
-		 * Max number of URLs to crawl
+		 * The URL as it was queued, before it was normalized
 		 */
-		private final int max;
+		private final String queued;
 
 		/**
-		 * HashSet that keeps track of all the visited URLs
+		 * The crawl this task is part of
 		 */
-		private final HashSet<URL> crawled;
+		private final Crawl crawl;
 
 		/**
 		 * ThreadSafeInvertedIndex object to build
@@ -115,59 +683,191 @@ public class Crawler {
 		private final ThreadSafeInvertedIndex data;
 
 		/**
-		 * WorkQueue object to use
+		 * The page if it was already fetched, or null if it failed
+		 */
+		private HtmlFetcher.Page page;
+
+		/**
+		 * Whether the page was already fetched
 		 */
-		private final WorkQueue queue;
+		private boolean fetched;
 
 		/**
 		 * Task constructor that sets the necessary parameters for multi-threading query
 		 * and search
 		 * 
-		 * @param url     URL to crawl
-		 * @param max     Max number of URLs to crawl
-		 * @param data    ThreadSafeInvertedIndex to build
-		 * @param queue   WorkQueue to use
-		 * @param crawled HashSet that keeps track of all the visited URLs
+		 * @param url   URL to crawl
+		 * @param crawl The crawl this task is part of
+		 * @param data  ThreadSafeInvertedIndex to build
 		 * 
 		 */
-		private Task(URL url, int max, HashSet<URL> crawled, ThreadSafeInvertedIndex data, WorkQueue queue) {
+		private Task(URL url, Crawl crawl, ThreadSafeInvertedIndex data) {
 			this.url = url;
-			this.max = max;
-			this.crawled = crawled;
+			this.queued = url.toString();
+			this.crawl = crawl;
 			this.data = data;
-			this.queue = queue;
+			this.page = null;
+			this.fetched = false;
+		}
+
+		/**
+		 * Gives the task the page that was already fetched, so it is not fetched
+		 * again
+		 * 
+		 * @param url  the normalized URL that was fetched
+		 * @param page the fetched page, or null if the fetch failed
+		 */
+		private void fetched(URL url, HtmlFetcher.Page page) {
+			this.url = url;
+			this.page = page;
+			this.fetched = true;
 		}
 
 		@Override
 		public void run() {
 			// Get the length of visited to know counter
 			try {
-				url = LinkFinder.normalize(url);
-				String html = HtmlFetcher.fetch(url, 3);
-				if (html != null) {
+				if (!fetched) {
+					URL unnormalized = url;
+					long start = System.nanoTime();
+					boolean ok = false;
+
+					try {
+						url = LinkFinder.normalize(url);
+						page = crawl.fetch(url);
+						ok = true;
+					} catch (IOException e) {
+						System.err.println("Error fetching url");
+					} finally {
+						frontier.done(unnormalized, System.nanoTime() - start, ok); // frees the host for the next URL
+					}
+				}
+
+				fetches.increment();
+				String location = url.toString();
+				String html = page == null ? null : page.html();
+				ValidatorStore.Entry previous = crawl.previous(url);
+
+				if (previous != null && page != null
+						&& (page.notModified() || html != null && ValidatorStore.hash(html) == previous.hash())) {
+					// its stems from the last crawl are already in the index
+					for (String link : previous.links()) {
+						if (crawl.seen.isFull()) {
+							break;
+						}
+						crawl.claim(new URL(link));
+					}
+
+					crawl.validators.unchanged(location, page.etag(), page.lastModified());
+					crawl.indexed(queued, location, previous.stems());
+				} else if (html != null) {
+					long hash = crawl.validators == null ? 0 : ValidatorStore.hash(html);
+
+					// the same stripped page is used for both links and text
 					html = HtmlCleaner.stripBlockElements(html);
 
 					ArrayList<URL> list = LinkFinder.listUrls(url, html); // normalized URLs
 					for (URL curr : list) {
-						synchronized (crawled) {
-							if (crawled.size() < max && !crawled.contains(curr)) {
-								queue.execute(new Task(curr, max, crawled, data, queue));
-								crawled.add(curr);
-							}
+						if (crawl.seen.isFull()) {
+							break;
 						}
+						crawl.claim(curr);
 					}
 
-					ArrayList<String> parsed = parseHtml(url);
-					int counter = 1;
-					for (String word : parsed) {
-						data.add(word, url.toString(), counter++);
+					ArrayList<String> parsed = parseStripped(html);
+					if (duplicates == null) {
+						index(location, previous, hash, list, parsed);
+					} else {
+						// decided and indexed together, so a replaced original is never indexed after it is removed
+						synchronized (duplicates) {
+							DuplicateDetector.Match match = duplicates.add(location, parsed);
+							if (match != null && match.replaced() == null) {
+								// its links were still followed, only its text is not indexed again
+								log.debug("{} is a near-duplicate of {}", location, match.original());
+								if (previous != null && crawl.validators.gone(location)) {
+									data.remove(location);
+								}
+								crawl.skipped(queued);
+							} else {
+								if (match != null) {
+									unindex(match.replaced(), location);
+								}
+								index(location, previous, hash, list, parsed);
+							}
+						}
+					}
+				} else {
+					if (duplicates != null && page != null) {
+						duplicates.remove(location); // no longer HTML
 					}
+					if (crawl.validators != null) {
+						if (page == null) {
+							crawl.validators.keep(location); // may only be down for now
+						} else if (crawl.validators.gone(location)) {
+							data.remove(location);
+						}
+					}
+					crawl.skipped(queued);
 				}
 
 			} catch (Exception e) {
+				crawl.skipped(queued);
 				System.err.println("Error while running Task");
 			}
 		}
+
+		/**
+		 * Adds the stems of the fetched page to the index and records the page
+		 * 
+		 * @param location the location to index the page under
+		 * @param previous the last crawl of the page, or null
+		 * @param hash     the hash of the page's HTML, if keeping validators
+		 * @param list     the links found in the page
+		 * @param parsed   the stems of the page
+		 */
+		private void index(String location, ValidatorStore.Entry previous, long hash, ArrayList<URL> list,
+				ArrayList<String> parsed) {
+			if (previous != null) {
+				data.replace(location, parsed);
+			} else {
+				int counter = 1;
+				for (String word : parsed) {
+					data.add(word, location, counter++);
+				}
+			}
+			indexed.increment();
+			crawl.indexed(queued, location, parsed); // after the links it claimed
+
+			if (crawl.validators != null) {
+				ArrayList<String> links = new ArrayList<>();
+				for (URL link : list) {
+					links.add(link.toString());
+				}
+				crawl.validators.changed(location,
+						new ValidatorStore.Entry(page.etag(), page.lastModified(), hash, links, parsed));
+			}
+		}
+
+		/**
+		 * Takes a page indexed earlier out of the index, the checkpoint and the
+		 * validators, once a copy of it that sorts first took its place as the
+		 * original
+		 * 
+		 * @param replaced the location of the page no longer indexed
+		 * @param original the location of the page that took its place
+		 */
+		private void unindex(String replaced, String original) {
+			log.debug("{} is a near-duplicate of {}", replaced, original);
+			if (data.remove(replaced)) {
+				indexed.decrement();
+			}
+			if (crawl.checkpoint != null) {
+				crawl.checkpoint.removed(replaced);
+			}
+			if (crawl.validators != null) {
+				crawl.validators.gone(replaced);
+			}
+		}
 	}
 
 }
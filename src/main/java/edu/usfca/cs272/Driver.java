@@ -6,6 +6,9 @@ import java.nio.file.Path;
 //import java.io.Writer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -26,6 +29,23 @@ public class Driver {
 	 */
 	private static final Logger log = LogManager.getLogger();
 
+	/**
+	 * Default maximum number of tasks waiting in the work queue
+	 */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/**
+	 * Most worker threads per processor used by "-threads auto", enough to keep
+	 * the processors busy while most workers wait on the network
+	 */
+	public static final int AUTO_THREADS_PER_PROCESSOR = 8;
+
+	/**
+	 * Default number of fetch workers used by "-iothreads", enough to keep many
+	 * requests waiting on the network at once
+	 */
+	public static final int DEFAULT_IO_THREADS = 16;
+
 	/**
 	 * Initializes the classes necessary based on the provided command-line
 	 * arguments. This includes (but is not limited to) how to build or search an
@@ -47,7 +67,15 @@ public class Driver {
 		ThreadSafeInvertedIndex threadSafe = null;
 		WorkQueue queue = null;
 		Crawler crawler = null;
+		AsyncFetcher fetcher = null;
+		WorkQueue io = null;
+		Frontier frontier = null;
+		CrawlCheckpoint checkpoint = null;
+		ValidatorStore validators = null;
+		FileManifest manifest = null;
 		SearchEngineServer searchEngine = null;
+		WorkQueue.TaskGroup crawl = null;
+		CompletableFuture<Void> build = null;
 
 		if (parser.hasFlag("-threads") || parser.hasFlag("-html") || parser.hasFlag("-server")) { // Allows for
 																									// multi-threading,
@@ -61,25 +89,31 @@ public class Driver {
 			/* Sets ThreadSafeInvertedIndex */
 			threadSafe = new ThreadSafeInvertedIndex();
 			data = threadSafe;
-			/* Initializes WorkQueue to be used for query */
-			queue = new WorkQueue(threads);
-			query = new MultiThreadedQueryBuilder(threadSafe, queue);
-
-			/* ----- Crawler ----- */
-			crawler = new Crawler(threadSafe, queue);
-			String input = parser.getString("-html");
-
-			int maxURLs = 1;
-			if (parser.hasFlag("-crawl")) {
-				maxURLs = parser.getInteger("-crawl");
+			if (parser.hasFlag("-stats")) {
+				threadSafe.setLockProfiling(true);
+			}
+			/* Bounds the number of waiting tasks so large crawls or query files can't exhaust memory */
+			int capacity = parser.getInteger("-capacity", DEFAULT_CAPACITY);
+			if (capacity < 1) {
+				capacity = DEFAULT_CAPACITY;
 			}
 
+			WorkQueue.Overflow overflow = WorkQueue.Overflow.BLOCK;
 			try {
-				crawler.multiThreadCrawl(input, maxURLs);
-			} catch (Exception e) {
-				System.err.println("Error with -html");
-				log.catching(Level.ERROR, e);
+				overflow = WorkQueue.Overflow.valueOf(parser.getString("-overflow", "block").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown -overflow policy, using block");
+			}
+
+			/* Initializes WorkQueue to be used for query */
+			if ("auto".equalsIgnoreCase(parser.getString("-threads"))) {
+				/* "-threads auto" tunes the number of workers to the crawl or build */
+				int processors = Runtime.getRuntime().availableProcessors();
+				queue = new WorkQueue(1, processors * AUTO_THREADS_PER_PROCESSOR, capacity, overflow);
+			} else {
+				queue = new WorkQueue(threads, capacity, overflow);
 			}
+			query = new MultiThreadedQueryBuilder(threadSafe, queue);
 
 			/* ----- Server ----- */
 			searchEngine = new SearchEngineServer();
@@ -95,6 +129,97 @@ public class Driver {
 				log.catching(Level.ERROR, e);
 			}
 
+			/* ----- Crawler ----- */
+			if (parser.hasFlag("-html")) {
+				/* "-maxbytes" cuts off long pages and "-deadline" aborts slow requests (in ms) */
+				long maxBytes = parser.getInteger("-maxbytes", (int) HtmlFetcher.DEFAULT_MAX_BYTES);
+				if (maxBytes < 1) {
+					maxBytes = HtmlFetcher.DEFAULT_MAX_BYTES;
+				}
+				long deadline = parser.getInteger("-deadline", (int) HtmlFetcher.DEFAULT_DEADLINE);
+				if (deadline < 1) {
+					deadline = HtmlFetcher.DEFAULT_DEADLINE;
+				}
+				HtmlFetcher.setLimits(maxBytes, deadline);
+
+				/* "-dnsttl" sets how long each host's addresses are reused (in ms, 0 to look up every time) */
+				if (parser.hasFlag("-dnsttl")) {
+					long ttl = parser.getString("-dnsttl") == null ? HostCache.DEFAULT_TTL : parser.getInteger("-dnsttl");
+					HttpsFetcher.hosts().setTtl(ttl, Math.min(ttl, HostCache.DEFAULT_NEGATIVE_TTL));
+				}
+
+				/* "-async" keeps many requests in flight without a worker per request */
+				if (parser.hasFlag("-async")) {
+					int inFlight = parser.getInteger("-async", AsyncFetcher.DEFAULT_IN_FLIGHT);
+					if (inFlight < 1) {
+						inFlight = AsyncFetcher.DEFAULT_IN_FLIGHT;
+					}
+					fetcher = new AsyncFetcher(inFlight, maxBytes, deadline);
+				}
+
+				/* "-delay" and "-perhost" limit how hard the crawl hits each host */
+				long delay = parser.getInteger("-delay", (int) Frontier.DEFAULT_DELAY);
+				int perHost = parser.getInteger("-perhost", ConnectionPool.DEFAULT_MAX_PER_HOST);
+				if (perHost < 1) {
+					perHost = ConnectionPool.DEFAULT_MAX_PER_HOST;
+				}
+
+				/* "-frontier" sets how many queued URLs stay in memory before spilling to disk */
+				int inMemory = parser.getInteger("-frontier", Frontier.DEFAULT_IN_MEMORY);
+				if (inMemory < 1) {
+					inMemory = Frontier.DEFAULT_IN_MEMORY;
+				}
+				frontier = new Frontier(delay, perHost, inMemory);
+
+				/* "-dedup" skips pages whose text nearly copies a page already indexed */
+				DuplicateDetector duplicates = null;
+				if (parser.hasFlag("-dedup")) {
+					int distance = DuplicateDetector.DEFAULT_DISTANCE;
+					if (parser.getString("-dedup") != null) { // 0 only skips exact copies
+						distance = parser.getInteger("-dedup");
+					}
+					if (distance < 0 || distance > 31) {
+						distance = DuplicateDetector.DEFAULT_DISTANCE;
+					}
+					duplicates = new DuplicateDetector(distance);
+				}
+
+				/* "-iothreads" fetches on separate workers so -threads only sizes the parsing */
+				if (parser.hasFlag("-iothreads") && fetcher == null) {
+					int ioThreads = parser.getInteger("-iothreads", DEFAULT_IO_THREADS);
+					if (ioThreads < 1) {
+						ioThreads = DEFAULT_IO_THREADS;
+					}
+					io = new WorkQueue(ioThreads);
+				}
+
+				crawler = new Crawler(threadSafe, queue, fetcher, frontier, duplicates, io);
+				String input = parser.getString("-html");
+
+				int maxURLs = 1;
+				if (parser.hasFlag("-crawl")) {
+					maxURLs = parser.getInteger("-crawl");
+				}
+
+				try {
+					/* "-checkpoint" saves the crawl as it goes, and "-resume" continues it */
+					if (parser.hasFlag("-checkpoint") || parser.hasFlag("-resume")) {
+						Path directory = parser.getPath("-checkpoint", Path.of("checkpoint"));
+						checkpoint = new CrawlCheckpoint(directory, parser.hasFlag("-resume"));
+					}
+
+					/* "-validators" keeps the last crawl so the next one only indexes what changed */
+					if (parser.hasFlag("-validators")) {
+						validators = new ValidatorStore(parser.getPath("-validators", Path.of("validators.tsv")));
+					}
+
+					crawl = crawler.startCrawl(input, maxURLs, checkpoint, validators);
+				} catch (Exception e) {
+					System.err.println("Error with -html");
+					log.catching(Level.ERROR, e);
+				}
+			}
+
 		} else { // Uses single threaded implementation
 			data = new InvertedIndex();
 			query = new QueryBuilder(data);
@@ -104,36 +229,93 @@ public class Driver {
 		if (parser.hasFlag("-text")) {
 			try {
 				Path input = parser.getPath("-text");
+
+				/* "-incremental" keeps the last build so the next one only reads what changed */
+				if (parser.hasFlag("-incremental")) {
+					manifest = new FileManifest(parser.getPath("-incremental", Path.of("manifest.tsv")));
+				}
+
 				if (threadSafe != null && queue != null) {
 					log.debug("Starting multi-threaded build...");
 
-					MultiThreadedInvertedIndexBuilder.build(input, threadSafe, queue);
-
-					log.debug("Finsihed multi-threaded build...");
+					// runs alongside the crawl (if any) on the same queue
+					if (manifest != null) {
+						build = MultiThreadedInvertedIndexBuilder.start(input, threadSafe, queue, manifest);
+					} else {
+						build = MultiThreadedInvertedIndexBuilder.start(input, threadSafe, queue);
+					}
+				} else if (manifest != null) {
+					InvertedIndexBuilder.build(input, data, manifest);
 				} else {
 					InvertedIndexBuilder.build(input, data);
 				}
-			} catch (NullPointerException | IOException | IllegalArgumentException e) {
+			} catch (NullPointerException | IOException | IllegalArgumentException | RejectedExecutionException e) {
 				System.err.println("Error with -text path");
 				log.catching(Level.ERROR, e);
 			}
 
 		}
 
+		/* waits for the crawl and build jobs before searching the index */
+		if (crawl != null) {
+			crawl.finish();
+
+			if (validators != null) {
+				validators.prune(threadSafe);
+				try {
+					validators.save();
+				} catch (IOException e) {
+					System.err.println("Error saving the validators");
+					log.catching(Level.ERROR, e);
+				}
+			}
+		}
+
+		if (fetcher != null) {
+			fetcher.close();
+		}
+
+		if (io != null) {
+			io.shutdown();
+		}
+
+		if (frontier != null) {
+			frontier.close();
+		}
+
+		if (checkpoint != null) {
+			checkpoint.close();
+		}
+
+		if (build != null) {
+			try {
+				build.join();
+				log.debug("Finsihed multi-threaded build...");
+			} catch (CompletionException e) {
+				System.err.println("Error with -text path");
+				log.catching(Level.ERROR, e.getCause());
+			}
+		}
+
+		if (manifest != null) {
+			try {
+				manifest.save();
+			} catch (IOException e) {
+				System.err.println("Error saving the manifest");
+				log.catching(Level.ERROR, e);
+			}
+		}
+
 		/* "-query" */
 		if (parser.hasFlag("-query")) {
 			Path queryInput = parser.getPath("-query");
 			try {
 				query.buildQueries(queryInput, parser.hasFlag("-partial"));
-			} catch (NullPointerException | IOException e) {
+			} catch (NullPointerException | IOException | RejectedExecutionException e) {
 				System.err.println("Error building Query and/or search");
 			}
 		}
 
-		if (queue != null) {
-			queue.shutdown();
-		}
-
 		/* "-counts" */
 		if (parser.hasFlag("-counts")) {
 			Path countsOutput = parser.getPath("-counts", Path.of("counts.json"));
@@ -168,6 +350,52 @@ public class Driver {
 		long elapsed = Duration.between(start, Instant.now()).toMillis();
 		double seconds = (double) elapsed / Duration.ofSeconds(1).toMillis();
 		System.out.printf("Elapsed: %f seconds%n", seconds);
+
+		/* keeps serving searches with -server, otherwise the server only serves while the run lasts */
+		if (searchEngine != null) {
+			try {
+				if (parser.hasFlag("-server")) {
+					searchEngine.join();
+				} else {
+					searchEngine.stop();
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.WARN, e);
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				System.err.println("Error with server");
+				log.catching(Level.ERROR, e);
+			}
+		}
+
+		if (queue != null) {
+			/* "-stats" prints the work queue metrics, useful for sizing -threads */
+			if (parser.hasFlag("-stats")) {
+				System.out.print(queue.report());
+				if (io != null) {
+					System.out.print(io.report("Fetch queue"));
+				}
+				if (crawler != null) {
+					System.out.print(crawler.report());
+				}
+				if (checkpoint != null) {
+					System.out.print(checkpoint.report());
+				}
+				if (validators != null) {
+					System.out.print(validators.report());
+				}
+				if (manifest != null) {
+					System.out.print(manifest.report());
+				}
+				System.out.printf("Index lock:%n%s", threadSafe.lockProfile());
+			} else if (threadSafe.lockProfile() != null) {
+				log.debug("Index lock:{}{}", System.lineSeparator(), threadSafe.lockProfile());
+			}
+
+			queue.shutdown();
+		} else if (manifest != null && parser.hasFlag("-stats")) {
+			System.out.print(manifest.report());
+		}
 	}
 
 }
\ No newline at end of file
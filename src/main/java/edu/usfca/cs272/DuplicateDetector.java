@@ -0,0 +1,378 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds pages whose text is the same or nearly the same as a page already
+ * indexed, like print views, pages with tracking parameters and mirrors, so
+ * the copies are not indexed again.
+ *
+ * <p>
+ * Each page is summarized by a 64-bit SimHash of its stems, where each stem
+ * votes on every bit by its hash and weighs its vote by how often it appears.
+ * Pages with mostly the same stems get fingerprints that differ in only a few
+ * bits, so two pages are near-duplicates if their fingerprints differ in at
+ * most the maximum distance.
+ *
+ * <p>
+ * To find a near-duplicate without comparing against every page, each
+ * fingerprint is split into one more block than the maximum distance. Two
+ * fingerprints that differ in that few bits must agree on at least one whole
+ * block, so only the pages that share a block with the new one are compared.
+ *
+ * <p>
+ * Of the pages that copy each other, the one whose location sorts first is
+ * kept as the original, so which page is indexed does not depend on which one
+ * a crawl happened to reach first. A page that sorts before the original takes
+ * its place, and the old original and its copies become copies of the new one.
+ *
+ * @author troy
+ *
+ */
+public class DuplicateDetector {
+
+	/**
+	 * What adding a page found: the page kept as the original, and the page the
+	 * added one took the place of, if any
+	 */
+	public static class Match {
+		/**
+		 * The location of the page kept as the original
+		 */
+		private final String original;
+
+		/**
+		 * The location of the original the added page took the place of, or null
+		 */
+		private final String replaced;
+
+		/**
+		 * Initializes a match
+		 *
+		 * @param original the location of the page kept as the original
+		 * @param replaced the location of the original the added page took the
+		 *                 place of, or null if the added page is a copy
+		 */
+		public Match(String original, String replaced) {
+			this.original = original;
+			this.replaced = replaced;
+		}
+
+		/**
+		 * Returns the location of the page kept as the original
+		 *
+		 * @return the original location
+		 */
+		public String original() {
+			return original;
+		}
+
+		/**
+		 * Returns the location of the original the added page took the place of,
+		 * which is now a copy and should no longer be indexed
+		 *
+		 * @return the replaced location, or null if the added page is a copy
+		 */
+		public String replaced() {
+			return replaced;
+		}
+	}
+
+	/**
+	 * Default most bits two fingerprints may differ in to be near-duplicates
+	 */
+	public static final int DEFAULT_DISTANCE = 3;
+
+	/**
+	 * Most bits two fingerprints may differ in to be near-duplicates
+	 */
+	private final int distance;
+
+	/**
+	 * Bits in each block of a fingerprint
+	 */
+	private final int blockBits;
+
+	/**
+	 * For each block, the locations whose fingerprints have each value of it
+	 */
+	private final List<HashMap<Long, ArrayList<String>>> blocks;
+
+	/**
+	 * The fingerprint of each location
+	 */
+	private final HashMap<String, Long> fingerprints;
+
+	/**
+	 * The number of stems in each location with a fingerprint
+	 */
+	private final HashMap<String, Integer> sizes;
+
+	/**
+	 * The location each duplicate was found to copy
+	 */
+	private final HashMap<String, String> canonical;
+
+	/**
+	 * Number of stems not indexed because their page was a duplicate
+	 */
+	private long postings;
+
+	/**
+	 * Initializes a detector with the default distance
+	 */
+	public DuplicateDetector() {
+		this(DEFAULT_DISTANCE);
+	}
+
+	/**
+	 * Initializes a detector
+	 *
+	 * @param distance most bits two fingerprints may differ in to be
+	 *                 near-duplicates, from 0 for exact copies up to 31
+	 */
+	public DuplicateDetector(int distance) {
+		if (distance < 0 || distance > 31) {
+			throw new IllegalArgumentException("Distance must be between 0 and 31");
+		}
+
+		this.distance = distance;
+		this.blockBits = Long.SIZE / (distance + 1); // the last block also takes the leftover bits
+		this.blocks = new ArrayList<>();
+		for (int i = 0; i <= distance; i++) {
+			blocks.add(new HashMap<>());
+		}
+		this.fingerprints = new HashMap<>();
+		this.sizes = new HashMap<>();
+		this.canonical = new HashMap<>();
+		this.postings = 0;
+	}
+
+	/**
+	 * Returns the SimHash of the stems of a page
+	 *
+	 * @param stems the stems of the page
+	 * @return the fingerprint
+	 */
+	public static long simhash(List<String> stems) {
+		HashMap<String, Integer> counts = new HashMap<>();
+		for (String stem : stems) {
+			counts.merge(stem, 1, Integer::sum);
+		}
+		return simhash(counts);
+	}
+
+	/**
+	 * Returns the SimHash of a page given how many times each stem appears in it
+	 *
+	 * @param counts how many times each stem appears
+	 * @return the fingerprint
+	 */
+	public static long simhash(Map<String, Integer> counts) {
+		long[] votes = new long[Long.SIZE];
+		for (var entry : counts.entrySet()) {
+			vote(votes, SeenSet.fingerprint(entry.getKey()), entry.getValue());
+		}
+		return fingerprint(votes);
+	}
+
+	/**
+	 * Adds a stem's weighted vote to every bit
+	 *
+	 * @param votes  the votes for each bit so far
+	 * @param hash   the hash of the stem
+	 * @param weight how many times the stem appears
+	 */
+	private static void vote(long[] votes, long hash, int weight) {
+		for (int bit = 0; bit < Long.SIZE; bit++) {
+			votes[bit] += (hash >>> bit & 1) == 1 ? weight : -weight;
+		}
+	}
+
+	/**
+	 * Sets each bit of the fingerprint that more weight voted for than against
+	 *
+	 * @param votes the votes for each bit
+	 * @return the fingerprint
+	 */
+	private static long fingerprint(long[] votes) {
+		long fingerprint = 0;
+		for (int bit = 0; bit < Long.SIZE; bit++) {
+			if (votes[bit] > 0) {
+				fingerprint |= 1L << bit;
+			}
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the value of one block of a fingerprint
+	 *
+	 * @param fingerprint the fingerprint
+	 * @param block       which block
+	 * @return the bits of the block
+	 */
+	private long block(long fingerprint, int block) {
+		int shift = block * blockBits;
+		int bits = block == distance ? Long.SIZE - shift : blockBits;
+		return bits == Long.SIZE ? fingerprint : fingerprint >>> shift & (1L << bits) - 1;
+	}
+
+	/**
+	 * Adds the page unless it is a near-duplicate of a page already added whose
+	 * location sorts first, in which case it is recorded as a copy of that page
+	 * instead. If the page sorts before the original it copies, it takes that
+	 * page's place. Adding a location again replaces its old fingerprint.
+	 *
+	 * @param location the location of the page
+	 * @param stems    the stems of the page
+	 * @return the original and the page replaced, or null if the page copies
+	 *         nothing
+	 */
+	public Match add(String location, List<String> stems) {
+		if (stems.isEmpty()) {
+			remove(location); // empty pages add nothing to the index anyway
+			return null;
+		}
+		return add(location, simhash(stems), stems.size());
+	}
+
+	/**
+	 * Adds the page unless it is a near-duplicate of a page already added, like
+	 * {@link #add(String, List)}
+	 *
+	 * @param location    the location of the page
+	 * @param fingerprint the SimHash of the page
+	 * @param size        number of stems in the page
+	 * @return the original and the page replaced, or null if the page copies
+	 *         nothing
+	 */
+	public synchronized Match add(String location, long fingerprint, int size) {
+		remove(location);
+
+		String original = null;
+		for (int i = 0; i <= distance; i++) {
+			ArrayList<String> candidates = blocks.get(i).get(block(fingerprint, i));
+			if (candidates != null) {
+				for (String candidate : candidates) {
+					if (Long.bitCount(fingerprints.get(candidate) ^ fingerprint) <= distance
+							&& (original == null || candidate.compareTo(original) < 0)) {
+						original = candidate;
+					}
+				}
+			}
+		}
+
+		if (original == null) {
+			fingerprint(location, fingerprint, size);
+			return null;
+		}
+
+		if (original.compareTo(location) < 0) {
+			canonical.put(location, original);
+			postings += size;
+			return new Match(original, null);
+		}
+
+		// sorts first, so it takes the place of the original
+		int replaced = sizes.get(original);
+		remove(original);
+		for (var entry : canonical.entrySet()) {
+			if (entry.getValue().equals(original)) {
+				entry.setValue(location);
+			}
+		}
+		canonical.put(original, location);
+		postings += replaced;
+
+		fingerprint(location, fingerprint, size);
+		return new Match(location, original);
+	}
+
+	/**
+	 * Adds the fingerprint of a page to the blocks. Must be called while
+	 * synchronized.
+	 *
+	 * @param location    the location of the page
+	 * @param fingerprint the SimHash of the page
+	 * @param size        number of stems in the page
+	 */
+	private void fingerprint(String location, long fingerprint, int size) {
+		fingerprints.put(location, fingerprint);
+		sizes.put(location, size);
+		for (int i = 0; i <= distance; i++) {
+			blocks.get(i).computeIfAbsent(block(fingerprint, i), k -> new ArrayList<>()).add(location);
+		}
+	}
+
+	/**
+	 * Adds every location in the index, like pages replayed from an earlier
+	 * crawl, without checking them against each other
+	 *
+	 * @param index the index to fingerprint the locations of
+	 */
+	public void addAll(InvertedIndex index) {
+		HashMap<String, long[]> votes = new HashMap<>();
+		HashMap<String, Integer> counts = new HashMap<>();
+		for (String word : index.viewWords()) {
+			long hash = SeenSet.fingerprint(word);
+			for (String location : index.viewPaths(word)) {
+				int positions = index.numPositions(word, location);
+				vote(votes.computeIfAbsent(location, k -> new long[Long.SIZE]), hash, positions);
+				counts.merge(location, positions, Integer::sum);
+			}
+		}
+
+		synchronized (this) {
+			for (var entry : votes.entrySet()) {
+				String location = entry.getKey();
+				remove(location);
+				fingerprint(location, fingerprint(entry.getValue()), counts.get(location));
+			}
+		}
+	}
+
+	/**
+	 * Forgets a page, for example because it is gone, so later pages are not
+	 * treated as copies of it
+	 *
+	 * @param location the location of the page
+	 */
+	public synchronized void remove(String location) {
+		Long fingerprint = fingerprints.remove(location);
+		sizes.remove(location);
+		if (fingerprint != null) {
+			for (int i = 0; i <= distance; i++) {
+				long key = block(fingerprint, i);
+				ArrayList<String> locations = blocks.get(i).get(key);
+				locations.remove(location);
+				if (locations.isEmpty()) {
+					blocks.get(i).remove(key);
+				}
+			}
+		}
+		canonical.remove(location);
+	}
+
+	/**
+	 * Returns the location each duplicate found so far copies
+	 *
+	 * @return a copy of the duplicates and their canonical locations
+	 */
+	public synchronized Map<String, String> duplicates() {
+		return new HashMap<>(canonical);
+	}
+
+	/**
+	 * Returns a summary of the duplicates found and the postings they saved
+	 *
+	 * @return the duplicate report
+	 */
+	public synchronized String report() {
+		return String.format("Duplicates: %d pages fingerprinted, %d near-duplicates skipped, %d postings saved%n",
+				fingerprints.size(), canonical.size(), postings);
+	}
+}
@@ -0,0 +1,350 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers every text file indexed by the last build, so building the same
+ * files again only reads and stems the ones that were added or changed since.
+ * For every file the manifest keeps its size, last modified time, a hash of
+ * its contents and the stems indexed from it.
+ *
+ * <p>
+ * A file with the same size and modified time as before, or whose contents
+ * hash the same, is not read again; its stems from the last build are added to
+ * the index as it is checked, see {@link #lastStems(Path)}. The other files are
+ * indexed from scratch, and files that are gone are never added, so the result
+ * is the same index as a build from scratch. Once every file is checked,
+ * {@link #forget()} drops the files that are gone from the manifest.
+ *
+ * <p>
+ * The manifest is read when opened and written back in one go by
+ * {@link #save()}, replacing the old file only once the new one is complete.
+ *
+ * @author troy
+ *
+ */
+public class FileManifest {
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * What a file looked like when it was last indexed
+	 */
+	public static class Entry {
+		/**
+		 * Size of the file in bytes
+		 */
+		private final long size;
+
+		/**
+		 * When the file was last modified
+		 */
+		private final String modified;
+
+		/**
+		 * Hash of the contents
+		 */
+		private final long hash;
+
+		/**
+		 * The stems indexed from the file, in order
+		 */
+		private final List<String> stems;
+
+		/**
+		 * Initializes an entry
+		 *
+		 * @param size     size of the file in bytes
+		 * @param modified when the file was last modified
+		 * @param hash     hash of the contents
+		 * @param stems    the stems indexed from the file, in order
+		 */
+		public Entry(long size, String modified, long hash, List<String> stems) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.stems = stems;
+		}
+
+		/**
+		 * Returns the size of the file
+		 *
+		 * @return the size in bytes
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Returns when the file was last modified
+		 *
+		 * @return the modified time as written by
+		 *         {@link java.nio.file.attribute.FileTime#toString()}
+		 */
+		public String modified() {
+			return modified;
+		}
+
+		/**
+		 * Returns the hash of the contents
+		 *
+		 * @return the hash
+		 */
+		public long hash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the stems indexed from the file
+		 *
+		 * @return the stems in order
+		 */
+		public List<String> stems() {
+			return stems;
+		}
+	}
+
+	/**
+	 * The file the manifest is kept in
+	 */
+	private final Path file;
+
+	/**
+	 * The entries by location
+	 */
+	private final HashMap<String, Entry> entries;
+
+	/**
+	 * The locations found this build, changed or not
+	 */
+	private final HashSet<String> visited;
+
+	/**
+	 * Number of files loaded from the file
+	 */
+	private final int loaded;
+
+	/**
+	 * Number of files found unchanged this build
+	 */
+	private int unchanged;
+
+	/**
+	 * Number of files found changed or new this build
+	 */
+	private int changed;
+
+	/**
+	 * Number of files removed this build
+	 */
+	private int removed;
+
+	/**
+	 * Opens the manifest kept in the file, loading it if it exists
+	 *
+	 * @param file the file to keep the manifest in
+	 * @throws IOException if unable to read the file
+	 */
+	public FileManifest(Path file) throws IOException {
+		this.file = file;
+		this.entries = new HashMap<>();
+		this.visited = new HashSet<>();
+
+		if (Files.exists(file)) {
+			load();
+		}
+
+		this.loaded = entries.size();
+		this.unchanged = 0;
+		this.changed = 0;
+		this.removed = 0;
+	}
+
+	/**
+	 * Loads the entries from the file, one text file per line
+	 *
+	 * @throws IOException if unable to read the file
+	 */
+	private void load() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+
+				try {
+					if (parts.length != 5) {
+						throw new IllegalArgumentException();
+					}
+
+					entries.put(parts[0], new Entry(Long.parseLong(parts[1]), parts[2], Long.parseUnsignedLong(parts[3], 16),
+							parts[4].isEmpty() ? List.of() : Arrays.asList(parts[4].split(" "))));
+				} catch (IllegalArgumentException e) {
+					log.warn("Skipping unreadable manifest record: {}", line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of a file's contents, used to tell whether it changed when
+	 * only its modified time did
+	 *
+	 * @param path the file
+	 * @return the hash
+	 * @throws IOException if unable to read the file
+	 */
+	public static long hash(Path path) throws IOException {
+		return hash(Files.readAllBytes(path));
+	}
+
+	/**
+	 * Returns the hash of a file's contents already read into memory
+	 *
+	 * @param contents the bytes of the file
+	 * @return the hash
+	 */
+	public static long hash(byte[] contents) {
+		return SeenSet.fingerprint(new String(contents, ISO_8859_1)); // one char per byte
+	}
+
+	/**
+	 * Returns the stems indexed from the file by the last build if the file is the
+	 * same as when it was last indexed, in which case they are kept
+	 *
+	 * @param path the file
+	 * @return the stems in order, or null if the file must be indexed again
+	 * @throws IOException if unable to read the file
+	 */
+	public List<String> lastStems(Path path) throws IOException {
+		String location = path.toString();
+		Entry old;
+		synchronized (this) {
+			old = entries.get(location);
+		}
+
+		if (old == null) {
+			return null;
+		}
+
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long size = attributes.size();
+		String modified = attributes.lastModifiedTime().toString();
+
+		if (size == old.size() && modified.equals(old.modified())) {
+			synchronized (this) {
+				visited.add(location);
+				unchanged++;
+			}
+			return old.stems();
+		}
+
+		// only touched, or changed and changed back
+		if (size == old.size() && hash(path) == old.hash()) {
+			synchronized (this) {
+				entries.put(location, new Entry(size, modified, old.hash(), old.stems()));
+				visited.add(location);
+				unchanged++;
+			}
+			return old.stems();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Records the file as it was when it was indexed, after it changed or was
+	 * indexed for the first time. The hash is of the same bytes the stems came
+	 * from, so an edit made after the file was read is seen as a change by the
+	 * next build.
+	 *
+	 * @param path       the file
+	 * @param attributes the attributes of the file, read before its contents
+	 * @param contents   the bytes the stems were indexed from
+	 * @param stems      the stems indexed from the file, in order
+	 */
+	public void changed(Path path, BasicFileAttributes attributes, byte[] contents, List<String> stems) {
+		String location = path.toString();
+		Entry entry = new Entry(contents.length, attributes.lastModifiedTime().toString(), hash(contents), stems);
+
+		synchronized (this) {
+			if (location.indexOf('\t') < 0 && location.indexOf('\n') < 0 && location.indexOf('\r') < 0) {
+				entries.put(location, entry);
+			} else {
+				entries.remove(location); // cannot be saved, so it is indexed again next time
+			}
+			visited.add(location);
+			changed++;
+		}
+	}
+
+	/**
+	 * Forgets the files that are gone since the last build. Only call once every
+	 * file was checked.
+	 */
+	public synchronized void forget() {
+		Iterator<String> locations = entries.keySet().iterator();
+		while (locations.hasNext()) {
+			if (!visited.contains(locations.next())) {
+				locations.remove();
+				removed++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the manifest to its file, replacing the old file only once the new
+	 * one is complete
+	 *
+	 * @throws IOException if unable to write the file
+	 */
+	public synchronized void save() throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+				for (Map.Entry<String, Entry> pair : entries.entrySet()) {
+					Entry entry = pair.getValue();
+					writer.write(String.join("\t", pair.getKey(), Long.toString(entry.size()), entry.modified(),
+							Long.toHexString(entry.hash()), String.join(" ", entry.stems())));
+					writer.newLine();
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Returns a summary of how many files changed since the last build
+	 *
+	 * @return the manifest report
+	 */
+	public synchronized String report() {
+		return String.format("Manifest: %d files from the last build, %d unchanged, %d changed or new, %d removed%n",
+				loaded, unchanged, changed, removed);
+	}
+}
@@ -6,6 +6,8 @@ import java.io.BufferedReader;
 //import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 //import java.nio.file.Files;
@@ -147,6 +149,29 @@ public class FileStemmer {
 		return stems;
 	}
 
+	/**
+	 * Parses the contents of a file already read into memory line by line, like
+	 * {@link #listStems(Path)} does for the file itself.
+	 *
+	 * @param contents the bytes of the file, encoded in UTF-8
+	 * @return a list of stems from the contents in parsed order
+	 * @throws IOException if the contents are not valid UTF-8
+	 *
+	 * @see #listStems(Path)
+	 */
+	public static ArrayList<String> listStems(byte[] contents) throws IOException {
+		ArrayList<String> stems = new ArrayList<>();
+		SnowballStemmer stemmer = new SnowballStemmer(ALGORITHM.ENGLISH);
+		String text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(contents)).toString();
+		try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				addStems(line, stemmer, stems);
+			}
+		}
+		return stems;
+	}
+
 	/**
 	 * Parses the line into a set of unique, sorted, cleaned, and stemmed words.
 	 *
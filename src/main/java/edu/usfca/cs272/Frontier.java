@@ -0,0 +1,738 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Schedules the URLs of a crawl politely: each host has its own queue, requests
+ * to the same host start at least a delay apart, and each host only has as
+ * many requests active as it has shown it can handle. Hosts take turns, so a
+ * page that links mostly to one host does not crowd out the others.
+ *
+ * <p>
+ * The number of requests allowed per host adapts like TCP congestion control.
+ * It grows by about one for every round of requests that come back quickly,
+ * and halves (at most once per response time) when a request fails or takes
+ * more than twice as long as the fastest response seen from that host. It
+ * always stays between one and the maximum per host.
+ *
+ * <p>
+ * Only a limited number of URLs are queued in memory. Once that many are
+ * waiting, further URLs are appended to a temporary file and read back in the
+ * order they were added as the queues in memory drain, so a large crawl does
+ * not need memory for its whole frontier. URLs are kept as text and grouped by
+ * host name without resolving it.
+ *
+ * @author troy
+ *
+ */
+public class Frontier implements Closeable {
+
+	/**
+	 * Default milliseconds between the starts of requests to the same host
+	 */
+	public static final long DEFAULT_DELAY = 0;
+
+	/**
+	 * Number of requests allowed per host before any have completed
+	 */
+	public static final double INITIAL_LIMIT = 2;
+
+	/**
+	 * Responses slower than this many times the fastest response from the host
+	 * count as a sign of overload
+	 */
+	public static final double SLOW = 2;
+
+	/**
+	 * Number of hosts listed by {@link #report()}
+	 */
+	public static final int TOP_HOSTS = 5;
+
+	/**
+	 * Default number of URLs queued in memory before the rest are spilled to disk
+	 */
+	public static final int DEFAULT_IN_MEMORY = 100_000;
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Nanoseconds between the starts of requests to the same host
+	 */
+	private final long delay;
+
+	/**
+	 * Most requests allowed to be active per host
+	 */
+	private final int maxPerHost;
+
+	/**
+	 * Every host seen, by name. Also used as the lock for all of the host state.
+	 */
+	private final HashMap<String, Host> hosts;
+
+	/**
+	 * Hosts with queued URLs, in the order they take turns
+	 */
+	private final ArrayDeque<Host> ready;
+
+	/**
+	 * Starts the queued URLs when their hosts allow it
+	 */
+	private final Dispatcher dispatcher;
+
+	/**
+	 * Most URLs queued in memory before the rest are spilled to disk
+	 */
+	private final int inMemory;
+
+	/**
+	 * Number of URLs queued in memory
+	 */
+	private int queued;
+
+	/**
+	 * The file spilled URLs are written to, or null if none were spilled yet
+	 */
+	private Path spillFile;
+
+	/**
+	 * Appends spilled URLs to the file
+	 */
+	private BufferedWriter spillOut;
+
+	/**
+	 * Reads spilled URLs back from the file
+	 */
+	private BufferedReader spillIn;
+
+	/**
+	 * Number of URLs in the file not read back yet
+	 */
+	private long spilled;
+
+	/**
+	 * Total number of URLs ever spilled
+	 */
+	private long spilledTotal;
+
+	/**
+	 * The starters of the spilled URLs, by the number written with each URL
+	 */
+	private final ArrayList<Starter> starters;
+
+	/**
+	 * The number written for each starter of a spilled URL
+	 */
+	private final IdentityHashMap<Starter, Integer> starterIds;
+
+	/**
+	 * Whether the frontier was closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Initializes a frontier with the default delay and the same maximum per host
+	 * as the connection pool
+	 */
+	public Frontier() {
+		this(DEFAULT_DELAY, ConnectionPool.DEFAULT_MAX_PER_HOST);
+	}
+
+	/**
+	 * Initializes a frontier that queues the default number of URLs in memory
+	 *
+	 * @param delay      milliseconds between the starts of requests to the same
+	 *                   host
+	 * @param maxPerHost most requests allowed to be active per host
+	 */
+	public Frontier(long delay, int maxPerHost) {
+		this(delay, maxPerHost, DEFAULT_IN_MEMORY);
+	}
+
+	/**
+	 * Initializes a frontier
+	 *
+	 * @param delay      milliseconds between the starts of requests to the same
+	 *                   host
+	 * @param maxPerHost most requests allowed to be active per host
+	 * @param inMemory   most URLs queued in memory before the rest are spilled to
+	 *                   disk
+	 */
+	public Frontier(long delay, int maxPerHost, int inMemory) {
+		if (maxPerHost < 1) {
+			throw new IllegalArgumentException("Need at least one request per host");
+		}
+
+		if (inMemory < 1) {
+			throw new IllegalArgumentException("Need room for at least one URL in memory");
+		}
+
+		this.delay = TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		this.maxPerHost = maxPerHost;
+		this.inMemory = inMemory;
+		this.hosts = new HashMap<>();
+		this.ready = new ArrayDeque<>();
+		this.queued = 0;
+		this.spilled = 0;
+		this.spilledTotal = 0;
+		this.starters = new ArrayList<>();
+		this.starterIds = new IdentityHashMap<>();
+		this.closed = false;
+
+		this.dispatcher = new Dispatcher();
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Starts the URLs of one crawl once their hosts allow it
+	 */
+	public static interface Starter {
+		/**
+		 * Starts the request, which must call {@link Frontier#done} (or
+		 * {@link Frontier#cancel}) for the URL once the response is in. Runs on the
+		 * frontier's own thread, so any slow work should be handed off.
+		 *
+		 * @param url the URL to crawl
+		 */
+		void start(URL url);
+
+		/**
+		 * Called instead of {@link #start(URL)} for a URL that will never start,
+		 * because the frontier was closed
+		 *
+		 * @param url the URL text that was dropped
+		 */
+		void dropped(String url);
+	}
+
+	/**
+	 * A queued URL and how to start it
+	 */
+	private static class Entry {
+		/**
+		 * The URL to crawl, kept as text since that takes less memory
+		 */
+		private final String url;
+
+		/**
+		 * Starts the request
+		 */
+		private final Starter starter;
+
+		/**
+		 * Initializes an entry
+		 *
+		 * @param url     the URL to crawl
+		 * @param starter starts the request
+		 */
+		private Entry(String url, Starter starter) {
+			this.url = url;
+			this.starter = starter;
+		}
+	}
+
+	/**
+	 * The queue and limits of one host
+	 */
+	private class Host {
+		/**
+		 * The host name and port
+		 */
+		private final String name;
+
+		/**
+		 * URLs waiting to start
+		 */
+		private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+		/**
+		 * Whether the host is in the ready list
+		 */
+		private boolean ready = false;
+
+		/**
+		 * Number of requests started but not done
+		 */
+		private int active = 0;
+
+		/**
+		 * Number of requests allowed to be active
+		 */
+		private double limit = Math.min(INITIAL_LIMIT, maxPerHost);
+
+		/**
+		 * Earliest time the next request may start
+		 */
+		private long nextStart;
+
+		/**
+		 * Fastest response seen, in nanoseconds
+		 */
+		private long fastest = Long.MAX_VALUE;
+
+		/**
+		 * Average response time, in nanoseconds
+		 */
+		private double average = 0;
+
+		/**
+		 * When the limit was last lowered
+		 */
+		private long lastDecrease = Long.MIN_VALUE;
+
+		/**
+		 * Number of requests done
+		 */
+		private long done = 0;
+
+		/**
+		 * Number of requests that failed
+		 */
+		private long errors = 0;
+
+		/**
+		 * Initializes the host
+		 *
+		 * @param name the host name and port
+		 */
+		private Host(String name) {
+			this.name = name;
+			this.nextStart = System.nanoTime();
+		}
+
+		/**
+		 * Adjusts the limit after a request is done
+		 *
+		 * @param nanos how long the request took
+		 * @param ok    whether the request succeeded
+		 * @param now   the current time
+		 */
+		private void adjust(long nanos, boolean ok, long now) {
+			done++;
+			average = average == 0 ? nanos : average * 0.8 + nanos * 0.2;
+
+			if (ok) {
+				fastest = Math.min(fastest, nanos);
+			} else {
+				errors++;
+			}
+
+			if (!ok || nanos > fastest * SLOW) {
+				if (now - (long) average > lastDecrease) { // once per response time
+					limit = Math.max(1, limit / 2);
+					lastDecrease = now;
+				}
+				if (!ok) {
+					nextStart = Math.max(nextStart, now + (long) average); // backs off after errors
+				}
+			} else {
+				limit = Math.min(maxPerHost, limit + 1 / limit);
+			}
+		}
+	}
+
+	/**
+	 * Queues a URL on its host. The starter is called with the URL on the
+	 * frontier's own thread once the host allows another request, or told the URL
+	 * was dropped if the frontier is closed first.
+	 *
+	 * @param url     the URL to crawl
+	 * @param starter starts the request
+	 */
+	public void add(URL url, Starter starter) {
+		Entry entry = new Entry(url.toString(), starter);
+
+		synchronized (hosts) {
+			if (!closed) {
+				// keeps the order URLs were added in by spilling everything after the first
+				if (!(spilled > 0 || queued >= inMemory) || !spill(entry)) {
+					enqueue(entry, url);
+				}
+
+				hosts.notifyAll();
+				return;
+			}
+		}
+
+		starter.dropped(entry.url);
+	}
+
+	/**
+	 * Adds the entry to the queue of its host. Must be called while synchronized
+	 * on hosts.
+	 *
+	 * @param entry the entry to queue
+	 * @param url   the URL of the entry
+	 */
+	private void enqueue(Entry entry, URL url) {
+		Host host = hosts.computeIfAbsent(key(url), Host::new);
+		host.queue.add(entry);
+		queued++;
+
+		if (!host.ready) {
+			host.ready = true;
+			ready.add(host);
+		}
+	}
+
+	/**
+	 * Appends the entry to the spill file. Must be called while synchronized on
+	 * hosts.
+	 *
+	 * @param entry the entry to spill
+	 * @return true if the entry was spilled, false if it has to stay in memory
+	 *         since the file could not be written
+	 */
+	private boolean spill(Entry entry) {
+		try {
+			if (spillOut == null) {
+				if (spillFile != null) {
+					return false; // failed before
+				}
+
+				spillFile = Files.createTempFile("frontier", ".txt");
+				spillFile.toFile().deleteOnExit();
+				spillOut = Files.newBufferedWriter(spillFile, UTF_8);
+				spillIn = Files.newBufferedReader(spillFile, UTF_8);
+			}
+
+			Integer id = starterIds.get(entry.starter);
+			if (id == null) {
+				id = starters.size();
+				starters.add(entry.starter);
+				starterIds.put(entry.starter, id);
+			}
+
+			spillOut.write(Integer.toString(id));
+			spillOut.write('\t');
+			spillOut.write(entry.url);
+			spillOut.newLine();
+
+			spilled++;
+			spilledTotal++;
+			return true;
+		} catch (IOException e) {
+			log.catching(Level.WARN, e);
+			closeSpill();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads spilled URLs back into memory until the memory queues are full or the
+	 * file is read. Must be called while synchronized on hosts.
+	 *
+	 * @param limit the most entries to read
+	 * @return the entries read back, in the order they were spilled
+	 */
+	private ArrayList<Entry> unspill(long limit) {
+		ArrayList<Entry> entries = new ArrayList<>();
+
+		try {
+			spillOut.flush(); // the reader only sees what was written out
+
+			while (spilled > 0 && entries.size() < limit) {
+				String line = spillIn.readLine();
+				if (line == null) {
+					break;
+				}
+
+				int tab = line.indexOf('\t');
+				entries.add(new Entry(line.substring(tab + 1), starters.get(Integer.parseInt(line.substring(0, tab)))));
+				spilled--;
+			}
+		} catch (IOException e) {
+			log.catching(Level.WARN, e);
+			spilled = 0; // the rest are lost, so the crawl can still finish
+			closeSpill();
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Closes the spill file and deletes it. Must be called while synchronized on
+	 * hosts.
+	 */
+	private void closeSpill() {
+		try {
+			if (spillOut != null) {
+				spillOut.close();
+				spillIn.close();
+				Files.deleteIfExists(spillFile);
+			}
+		} catch (IOException e) {
+			log.catching(Level.DEBUG, e);
+		} finally {
+			spillOut = null;
+			spillIn = null;
+		}
+	}
+
+	/**
+	 * Records that a request started by the frontier is done, freeing its host to
+	 * start another
+	 *
+	 * @param url   the URL that was crawled
+	 * @param nanos how long the request took
+	 * @param ok    whether the request succeeded
+	 */
+	public void done(URL url, long nanos, boolean ok) {
+		synchronized (hosts) {
+			Host host = hosts.get(key(url));
+			if (host != null) {
+				host.active = Math.max(0, host.active - 1);
+				host.adjust(nanos, ok, System.nanoTime());
+				hosts.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Frees the slot of a request started by the frontier that was never sent,
+	 * without counting it toward its host's limit
+	 *
+	 * @param url the URL that was not crawled
+	 */
+	public void cancel(URL url) {
+		synchronized (hosts) {
+			Host host = hosts.get(key(url));
+			if (host != null) {
+				host.active = Math.max(0, host.active - 1);
+				hosts.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of URLs waiting to start
+	 *
+	 * @return the number of queued URLs
+	 */
+	public long queued() {
+		synchronized (hosts) {
+			return queued + spilled;
+		}
+	}
+
+	/**
+	 * Returns the number of URLs waiting in the spill file instead of memory
+	 *
+	 * @return the number of spilled URLs not read back yet
+	 */
+	public long spilled() {
+		synchronized (hosts) {
+			return spilled;
+		}
+	}
+
+	/**
+	 * Returns the number of requests currently allowed for the host of the URL
+	 *
+	 * @param url a URL on the host
+	 * @return the number of requests allowed to be active at once
+	 */
+	public int limit(URL url) {
+		synchronized (hosts) {
+			Host host = hosts.get(key(url));
+			return host == null ? (int) Math.min(INITIAL_LIMIT, maxPerHost) : (int) host.limit;
+		}
+	}
+
+	/**
+	 * Returns a summary of the hosts with the most requests
+	 *
+	 * @return the frontier report
+	 */
+	public String report() {
+		synchronized (hosts) {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("Frontier: %d hosts, %d queued, %d spilled to disk in all%n", hosts.size(),
+					queued(), spilledTotal));
+
+			List<Host> busiest = new ArrayList<>(hosts.values());
+			busiest.sort(Comparator.comparingLong((Host host) -> host.done).reversed());
+
+			for (Host host : busiest.subList(0, Math.min(TOP_HOSTS, busiest.size()))) {
+				report.append(String.format("  %s: %d done, %d failed, average %.3fms, limit %d%n", host.name,
+						host.done, host.errors, host.average / 1e6, (int) host.limit));
+			}
+
+			return report.toString();
+		}
+	}
+
+	/**
+	 * Stops starting queued URLs. URLs still queued, in memory or on disk, are
+	 * dropped and their starters told so.
+	 */
+	@Override
+	public void close() {
+		ArrayList<Entry> dropped = new ArrayList<>();
+
+		synchronized (hosts) {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			for (Host host : hosts.values()) {
+				dropped.addAll(host.queue);
+				host.queue.clear();
+			}
+			ready.clear();
+			queued = 0;
+
+			if (spillOut != null) {
+				dropped.addAll(unspill(Long.MAX_VALUE));
+				closeSpill();
+			}
+			spilled = 0;
+			hosts.notifyAll();
+		}
+
+		for (Entry entry : dropped) {
+			entry.starter.dropped(entry.url);
+		}
+	}
+
+	/**
+	 * Returns the host of the URL that politeness applies to
+	 *
+	 * @param url the URL
+	 * @return the lowercase host name and port
+	 */
+	private static String key(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Takes turns between the ready hosts, starting one URL per host per turn
+	 * while the host is under its limit and past its delay, and otherwise sleeps
+	 * until a request is done, a URL is added, or a delay is up.
+	 */
+	private class Dispatcher extends Thread {
+		/**
+		 * Initializes the dispatcher as a daemon thread
+		 */
+		private Dispatcher() {
+			super("Frontier");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ArrayList<Entry> starting = new ArrayList<>();
+
+			while (true) {
+				synchronized (hosts) {
+					try {
+						while (!closed && !turn(starting)) {
+							continue;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+
+					if (closed) {
+						return;
+					}
+				}
+
+				// started outside the lock since starting may block on a full work queue
+				for (Entry entry : starting) {
+					try {
+						entry.starter.start(new URL(entry.url));
+					} catch (MalformedURLException e) { // was a URL when queued
+						log.catching(Level.WARN, e);
+						entry.starter.dropped(entry.url);
+					} catch (RuntimeException e) {
+						log.catching(Level.WARN, e);
+					}
+				}
+				starting.clear();
+			}
+		}
+
+		/**
+		 * Gives every ready host one turn, or waits if none could start a URL. Must
+		 * be called while synchronized on hosts.
+		 *
+		 * @param starting the list to add the URLs to start to
+		 * @return true if any URLs are ready to start
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private boolean turn(ArrayList<Entry> starting) throws InterruptedException {
+			if (spilled > 0 && queued <= inMemory / 2) {
+				for (Entry entry : unspill(inMemory - queued)) {
+					try {
+						enqueue(entry, new URL(entry.url));
+					} catch (MalformedURLException e) { // was a URL when spilled
+						log.catching(Level.WARN, e);
+						entry.starter.dropped(entry.url);
+					}
+				}
+			}
+
+			long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+
+			for (int i = ready.size(); i > 0; i--) {
+				Host host = ready.poll();
+
+				if (host.active < (int) host.limit) {
+					if (now >= host.nextStart) {
+						starting.add(host.queue.poll());
+						queued--;
+						host.active++;
+						host.nextStart = now + delay;
+					} else {
+						wait = Math.min(wait, host.nextStart - now);
+					}
+				}
+
+				if (host.queue.isEmpty()) {
+					host.ready = false;
+				} else {
+					ready.add(host);
+				}
+			}
+
+			if (!starting.isEmpty()) {
+				return true;
+			}
+
+			if (wait == Long.MAX_VALUE) {
+				hosts.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(hosts, wait);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the addresses each host name resolved to for a while, so opening
+ * many connections to the same host only looks it up once. Host names that
+ * failed to resolve are remembered for a shorter while, so a crawl full of
+ * links to a dead host does not look it up again for every link.
+ *
+ * <p>
+ * Only one thread looks up a host at a time. Other threads that need the same
+ * host wait for its answer instead of sending the same query again.
+ *
+ * @author troy
+ *
+ */
+public class HostCache {
+
+	/**
+	 * Default milliseconds the addresses of a host are remembered
+	 */
+	public static final long DEFAULT_TTL = 60000;
+
+	/**
+	 * Default milliseconds a host that failed to resolve is remembered
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+	/**
+	 * The answer for one host
+	 */
+	private static class Entry {
+		/**
+		 * The addresses of the host, or null if it failed to resolve
+		 */
+		private final InetAddress[] addresses;
+
+		/**
+		 * Why the host failed to resolve, or null
+		 */
+		private final String failure;
+
+		/**
+		 * When the answer expires, in {@link System#nanoTime()}
+		 */
+		private final long expires;
+
+		/**
+		 * Initializes an answer
+		 *
+		 * @param addresses the addresses of the host, or null if it failed to
+		 *                  resolve
+		 * @param failure   why the host failed to resolve, or null
+		 * @param expires   when the answer expires
+		 */
+		private Entry(InetAddress[] addresses, String failure, long expires) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expires = expires;
+		}
+
+		/**
+		 * Returns the addresses of the host
+		 *
+		 * @param host the host name, for the exception
+		 * @return a copy of the addresses
+		 * @throws UnknownHostException if the host failed to resolve
+		 */
+		private InetAddress[] addresses(String host) throws UnknownHostException {
+			if (addresses == null) {
+				throw new UnknownHostException(failure == null ? host : failure);
+			}
+			return addresses.clone();
+		}
+	}
+
+	/**
+	 * The answers by lowercase host name
+	 */
+	private final HashMap<String, Entry> entries;
+
+	/**
+	 * The hosts being looked up right now
+	 */
+	private final HashSet<String> resolving;
+
+	/**
+	 * Nanoseconds the addresses of a host are remembered
+	 */
+	private long ttl;
+
+	/**
+	 * Nanoseconds a host that failed to resolve is remembered
+	 */
+	private long negativeTtl;
+
+	/**
+	 * Number of host names answered from the cache
+	 */
+	private long hits;
+
+	/**
+	 * Number of host names looked up
+	 */
+	private long lookups;
+
+	/**
+	 * Number of host names that failed to resolve when looked up
+	 */
+	private long failures;
+
+	/**
+	 * Initializes a cache with the default times to remember each answer
+	 */
+	public HostCache() {
+		this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * Initializes a cache
+	 *
+	 * @param ttl         milliseconds the addresses of a host are remembered
+	 * @param negativeTtl milliseconds a host that failed to resolve is remembered
+	 */
+	public HostCache(long ttl, long negativeTtl) {
+		this.entries = new HashMap<>();
+		this.resolving = new HashSet<>();
+		setTtl(ttl, negativeTtl);
+		this.hits = 0;
+		this.lookups = 0;
+		this.failures = 0;
+	}
+
+	/**
+	 * Changes how long answers looked up from now on are remembered
+	 *
+	 * @param ttl         milliseconds the addresses of a host are remembered, or 0
+	 *                    to look up every time
+	 * @param negativeTtl milliseconds a host that failed to resolve is remembered,
+	 *                    or 0 to look up every time
+	 */
+	public synchronized void setTtl(long ttl, long negativeTtl) {
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl));
+		this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(Math.max(0, negativeTtl));
+	}
+
+	/**
+	 * Returns the addresses of the host, looking it up only if the last answer
+	 * for it expired
+	 *
+	 * @param host the host name or address
+	 * @return the addresses of the host, in the order to try them
+	 * @throws UnknownHostException   if the host does not resolve
+	 * @throws InterruptedIOException if interrupted while waiting for another
+	 *                                thread to look up the same host
+	 */
+	public InetAddress[] resolve(String host) throws IOException {
+		String key = host.toLowerCase(Locale.ROOT);
+
+		synchronized (this) {
+			while (true) {
+				Entry entry = entries.get(key);
+				if (entry != null && System.nanoTime() - entry.expires < 0) {
+					hits++;
+					return entry.addresses(host);
+				}
+
+				if (!resolving.contains(key)) {
+					break;
+				}
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while resolving " + host);
+				}
+			}
+
+			resolving.add(key);
+		}
+
+		Entry entry = null;
+		try {
+			try {
+				InetAddress[] addresses = InetAddress.getAllByName(host);
+				entry = new Entry(addresses, null, System.nanoTime() + ttl);
+			} catch (UnknownHostException e) {
+				entry = new Entry(null, e.getMessage(), System.nanoTime() + negativeTtl);
+			}
+			return entry.addresses(host);
+		} finally {
+			synchronized (this) {
+				resolving.remove(key);
+				lookups++;
+				if (entry == null || entry.addresses == null) {
+					failures++;
+				}
+
+				if (entry != null) {
+					entries.put(key, entry);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Forgets every answer, for example after the network changed
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns a summary of how many host names were answered from the cache
+	 *
+	 * @return the cache report
+	 */
+	public synchronized String report() {
+		return String.format("Hosts: %d looked up, %d failed, %d answered from the cache%n", lookups, failures, hits);
+	}
+}
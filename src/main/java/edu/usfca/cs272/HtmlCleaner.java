@@ -1,7 +1,5 @@
 package edu.usfca.cs272;
 
-import java.util.regex.Pattern;
-
 import org.apache.commons.text.StringEscapeUtils;
 
 /**
@@ -11,12 +9,12 @@ import org.apache.commons.text.StringEscapeUtils;
  * but does not check that the removed entity was valid.
  *
  * <p>
- * Look at the "See Also" section for useful classes and methods for
- * implementing this class.
+ * Each method scans the text once from left to right without regular
+ * expressions, so it takes linear time on any input, and returns the same
+ * string without copying it when there is nothing to remove. The results are
+ * the same as the regular expressions given in each method's description,
+ * applied with {@link String#replaceAll(String, String)}.
  *
- * @see String#replaceAll(String, String)
- * @see Pattern#DOTALL
- * @see Pattern#CASE_INSENSITIVE
  * @see StringEscapeUtils#unescapeHtml4(String)
  *
  * @author CS 272 Software Development (University of San Francisco)
@@ -30,15 +28,37 @@ public class HtmlCleaner {
 	 * <p>
 	 * <em>(View this comment as HTML in the "Javadoc" view in Eclipse.)</em>
 	 *
+	 * <p>
+	 * Same as removing the matches of {@code <[^><]*>}.
+	 *
 	 * @param html text including HTML tags to remove
 	 * @return text without any HTML tags
-	 *
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripTags(String html) {
-		String regex = "<[^><]*>"; // matches any sequence of characters between "<" and ">" that does not include
-									// the ">" character. This will match HTML tags with or without attributes.
-		return html.replaceAll(regex, "");
+		StringBuilder text = null;
+		int copied = 0; // html before this index is already in text, or skipped
+		int open = html.indexOf('<');
+
+		while (open >= 0) {
+			int end = open + 1;
+			while (end < html.length() && html.charAt(end) != '<' && html.charAt(end) != '>') {
+				end++;
+			}
+
+			if (end == html.length()) {
+				break; // no tag can close after here
+			}
+
+			if (html.charAt(end) == '>') {
+				text = append(text, html, copied, open);
+				copied = end + 1;
+				open = html.indexOf('<', copied);
+			} else {
+				open = end; // starts over at the nested "<"
+			}
+		}
+
+		return finish(text, html, copied);
 	}
 
 	/**
@@ -53,16 +73,36 @@ public class HtmlCleaner {
 	 * <p>
 	 * <em>(View this comment as HTML in the "Javadoc" view in Eclipse.)</em>
 	 *
+	 * <p>
+	 * Same as unescaping and then removing the matches of
+	 * {@code &[a-zA-Z0-9#]+;}.
+	 *
 	 * @see StringEscapeUtils#unescapeHtml4(String)
-	 * @see String#replaceAll(String, String)
 	 *
 	 * @param html text including HTML entities to remove
 	 * @return text with all HTML entities converted or removed
 	 */
 	public static String stripEntities(String html) {
-		String unescaped = StringEscapeUtils.unescapeHtml4(html);
-		String regex = "&[a-zA-Z0-9#]+;";
-		return unescaped.replaceAll(regex, "");
+		String unescaped = html.indexOf('&') < 0 ? html : StringEscapeUtils.unescapeHtml4(html);
+		StringBuilder text = null;
+		int copied = 0;
+		int amp = unescaped.indexOf('&');
+
+		while (amp >= 0) {
+			int end = amp + 1;
+			while (end < unescaped.length() && isEntityChar(unescaped.charAt(end))) {
+				end++;
+			}
+
+			if (end > amp + 1 && end < unescaped.length() && unescaped.charAt(end) == ';') {
+				text = append(text, unescaped, copied, amp);
+				copied = end + 1;
+			}
+
+			amp = unescaped.indexOf('&', end);
+		}
+
+		return finish(text, unescaped, copied);
 	}
 
 	/**
@@ -84,14 +124,29 @@ public class HtmlCleaner {
 	 * <p>
 	 * <em>(View this comment as HTML in the "Javadoc" view in Eclipse.)</em>
 	 *
+	 * <p>
+	 * Same as removing the matches of {@code <!--[\s\S]*?-->}.
+	 *
 	 * @param html text including HTML comments to remove
 	 * @return text without any HTML comments
-	 *
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripComments(String html) {
-		String regex = "<!--[\\s\\S]*?-->";
-		return html.replaceAll(regex, "");
+		StringBuilder text = null;
+		int copied = 0;
+		int open = html.indexOf("<!--");
+
+		while (open >= 0) {
+			int close = html.indexOf("-->", open + 4);
+			if (close < 0) {
+				break; // no comment can close after here
+			}
+
+			text = append(text, html, copied, open);
+			copied = close + 3;
+			open = html.indexOf("<!--", copied);
+		}
+
+		return finish(text, html, copied);
 	}
 
 	/**
@@ -108,17 +163,183 @@ public class HtmlCleaner {
 	 * <p>
 	 * <em>(View this comment as HTML in the "Javadoc" view in Eclipse.)</em>
 	 *
+	 * <p>
+	 * Same as removing the matches of
+	 * {@code (?is)<name\b[^><]*>.*?</name\s*>}, where the name only matches
+	 * ASCII letters regardless of case.
+	 *
 	 * @param html text including HTML elements to remove
 	 * @param name name of the HTML element (like "style" or "script")
 	 * @return text without that HTML element
-	 *
-	 * @see String#formatted(Object...)
-	 * @see String#format(String, Object...)
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripElement(String html, String name) {
-		String regex = String.format("(?is)<" + name + "\\b[^><]*>.*?</" + name + "\\s*>", name);
-		return html.replaceAll(regex, "");
+		StringBuilder text = null;
+		int copied = 0;
+		int open = html.indexOf('<');
+
+		while (open >= 0) {
+			int start = openingEnd(html, open, name);
+			if (start < 0) {
+				open = html.indexOf('<', open + 1);
+				continue;
+			}
+
+			int end = closingEnd(html, start, name);
+			if (end < 0) {
+				break; // later openings have even fewer closings after them
+			}
+
+			text = append(text, html, copied, open);
+			copied = end;
+			open = html.indexOf('<', copied);
+		}
+
+		return finish(text, html, copied);
+	}
+
+	/**
+	 * Returns where the opening tag of the element at the index ends, matching
+	 * {@code <name\b[^><]*>}
+	 *
+	 * @param html  the html
+	 * @param index the index of a "&lt;"
+	 * @param name  the name of the element
+	 * @return the index just past the "&gt;" of the opening tag, or -1 if there
+	 *         is no opening tag for the element at the index
+	 */
+	private static int openingEnd(String html, int index, String name) {
+		int end = index + 1;
+		if (!regionMatchesAscii(html, end, name)) {
+			return -1;
+		}
+		end += name.length();
+
+		// "\b" since the name ends in a word character: the next one must not be
+		if (end < html.length()) {
+			int next = html.codePointAt(end);
+			if (next == '_' || Character.isLetterOrDigit(next) || Character.getType(next) == Character.NON_SPACING_MARK) {
+				return -1;
+			}
+		}
+
+		while (end < html.length() && html.charAt(end) != '<' && html.charAt(end) != '>') {
+			end++;
+		}
+		return end < html.length() && html.charAt(end) == '>' ? end + 1 : -1;
+	}
+
+	/**
+	 * Returns where the first closing tag of the element at or after the index
+	 * ends, matching {@code </name\s*>}
+	 *
+	 * @param html  the html
+	 * @param index where to start looking
+	 * @param name  the name of the element
+	 * @return the index just past the closing tag, or -1 if there is none
+	 */
+	private static int closingEnd(String html, int index, String name) {
+		int close = html.indexOf("</", index);
+
+		while (close >= 0) {
+			int end = close + 2;
+			if (regionMatchesAscii(html, end, name)) {
+				end += name.length();
+				while (end < html.length() && isSpace(html.charAt(end))) {
+					end++;
+				}
+				if (end < html.length() && html.charAt(end) == '>') {
+					return end + 1;
+				}
+			}
+
+			close = html.indexOf("</", close + 1);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Determines whether the text at the index is the name, ignoring the case of
+	 * ASCII letters only (like {@code (?i)} without unicode case)
+	 *
+	 * @param html  the text
+	 * @param index where the name would start
+	 * @param name  the name
+	 * @return true if the name is at the index
+	 */
+	private static boolean regionMatchesAscii(String html, int index, String name) {
+		if (index + name.length() > html.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			if (toLowerAscii(html.charAt(index + i)) != toLowerAscii(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lowercases ASCII letters only
+	 *
+	 * @param c the character
+	 * @return the lowercase letter, or the same character if it is not an ASCII
+	 *         uppercase letter
+	 */
+	private static char toLowerAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Determines whether the character matches {@code \s}
+	 *
+	 * @param c the character
+	 * @return true for a space, tab, line feed, vertical tab, form feed or
+	 *         carriage return
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Determines whether the character matches {@code [a-zA-Z0-9#]}
+	 *
+	 * @param c the character
+	 * @return true if the character can be part of an entity name
+	 */
+	private static boolean isEntityChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '#';
+	}
+
+	/**
+	 * Copies the kept part of the html to the text, creating the text on the
+	 * first removal
+	 *
+	 * @param text  the text kept so far, or null if nothing was removed yet
+	 * @param html  the html
+	 * @param start the start of the part to keep
+	 * @param end   the end of the part to keep
+	 * @return the text
+	 */
+	private static StringBuilder append(StringBuilder text, String html, int start, int end) {
+		if (text == null) {
+			text = new StringBuilder(html.length());
+		}
+		return text.append(html, start, end);
+	}
+
+	/**
+	 * Returns the text kept with the rest of the html, or the html itself if
+	 * nothing was removed
+	 *
+	 * @param text   the text kept so far, or null if nothing was removed
+	 * @param html   the html
+	 * @param copied the start of the rest of the html
+	 * @return the text with nothing removed after the copied index
+	 */
+	private static String finish(StringBuilder text, String html, int copied) {
+		return text == null ? html : text.append(html, copied, html.length()).toString();
 	}
 
 	/**
@@ -1,26 +1,167 @@
 package edu.usfca.cs272;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A specialized version of {@link HttpsFetcher} that follows redirects and
- * returns HTML content if possible.
+ * returns HTML content if possible. Connections are kept open in a shared
+ * {@link ConnectionPool} so later requests to the same host reuse them.
+ *
+ * Requests accept gzip and deflate bodies. The body of an HTML page is
+ * decompressed and decoded as it arrives, and only up to a maximum number of
+ * decoded bytes; longer pages are cut off there. A request that takes longer
+ * than the deadline is aborted. Other bodies are not downloaded.
  *
  * @see HttpsFetcher
+ * @see ConnectionPool
  *
  * @author CS 272 Software Development (University of San Francisco)
  * @version Spring 2023
  */
 public class HtmlFetcher {
+	/**
+	 * Default most bytes of a page to download
+	 */
+	public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+	/**
+	 * Default milliseconds a request may take
+	 */
+	public static final long DEFAULT_DEADLINE = 60000;
+
+	/**
+	 * Number of HTTP requests sent, counting each redirect followed
+	 */
+	private static final LongAdder requests = new LongAdder();
+
+	/**
+	 * Number of pages cut off at the maximum bytes
+	 */
+	private static final LongAdder truncated = new LongAdder();
+
+	/**
+	 * Number of requests aborted at the deadline or read timeout
+	 */
+	private static final LongAdder aborted = new LongAdder();
+
+	/**
+	 * Number of pages sent compressed
+	 */
+	private static final LongAdder compressed = new LongAdder();
+
+	/**
+	 * Number of conditional requests answered 304 Not Modified
+	 */
+	private static final LongAdder notModified = new LongAdder();
+
+	/**
+	 * Most bytes of a page to download
+	 */
+	private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+	/**
+	 * Milliseconds a request may take
+	 */
+	private static volatile long deadline = DEFAULT_DEADLINE;
+
+	/**
+	 * Connections kept open between requests
+	 */
+	private static final ConnectionPool pool = new ConnectionPool();
+
+	/**
+	 * Returns the connection pool used to fetch pages
+	 *
+	 * @return the shared connection pool
+	 */
+	public static ConnectionPool pool() {
+		return pool;
+	}
+
+	/**
+	 * Sets the limits on every request made from now on
+	 *
+	 * @param maxBytes most bytes of a page to download before cutting it off
+	 * @param deadline milliseconds a request may take before it is aborted
+	 */
+	public static void setLimits(long maxBytes, long deadline) {
+		if (maxBytes < 1 || deadline < 1) {
+			throw new IllegalArgumentException("Limits must be positive");
+		}
+
+		HtmlFetcher.maxBytes = maxBytes;
+		HtmlFetcher.deadline = deadline;
+	}
+
+	/**
+	 * Returns the number of pages cut off at the maximum bytes
+	 *
+	 * @return the number of truncated pages
+	 */
+	public static long truncated() {
+		return truncated.sum();
+	}
+
+	/**
+	 * Returns the number of requests aborted because they took too long
+	 *
+	 * @return the number of aborted requests
+	 */
+	public static long aborted() {
+		return aborted.sum();
+	}
+
+	/**
+	 * Returns the number of pages the server sent compressed
+	 *
+	 * @return the number of compressed pages
+	 */
+	public static long compressed() {
+		return compressed.sum();
+	}
+
+	/**
+	 * Returns the number of conditional requests the server answered with 304 Not
+	 * Modified
+	 *
+	 * @return the number of pages not modified
+	 */
+	public static long notModified() {
+		return notModified.sum();
+	}
+
+	/**
+	 * Returns {@code true} if the response is a page to download: a 200 HTML
+	 * response in an encoding that can be decoded.
+	 *
+	 * @param headers the HTTP/1.1 headers to parse
+	 * @return {@code true} if the body should be downloaded
+	 *
+	 * @see #isHtml(Map)
+	 * @see ContentDecoder#supports(String)
+	 */
+	public static boolean isPage(Map<String, List<String>> headers) {
+		return getStatusCode(headers) == 200 && isHtml(headers)
+				&& ContentDecoder.supports(ConnectionPool.header(headers, "Content-Encoding"));
+	}
+
+	/**
+	 * Returns the number of HTTP requests sent so far, counting each redirect
+	 * followed as another request
+	 *
+	 * @return the number of HTTP requests sent
+	 */
+	public static long requests() {
+		return requests.sum();
+	}
+
 	/**
 	 * Returns {@code true} if and only if there is a "Content-Type" header and the
 	 * first value of that header starts with the value "text/html"
@@ -92,56 +233,211 @@ public class HtmlFetcher {
 	}
 
 	/**
-	 * Fetches the resource at the URL using HTTP/1.1 and sockets. If the status
-	 * code is 200 and the content type is HTML, returns the HTML as a single
-	 * string. If the status code is a valid redirect, will follow that redirect if
-	 * the number of redirects is greater than 0. Otherwise, returns {@code null}.
+	 * Fetches the resource at the URL using HTTP/1.1 and pooled keep-alive
+	 * sockets. If the status code is 200 and the content type is HTML, returns the
+	 * HTML as a single string. If the status code is a valid redirect, will follow
+	 * that redirect if the number of redirects is greater than 0. Otherwise,
+	 * returns {@code null}.
 	 *
 	 * @param url       the url to fetch
 	 * @param redirects the number of times to follow redirects
 	 * @return the html or {@code null} if unable to fetch the resource or the
 	 *         resource is not html
 	 *
-	 * @see HttpsFetcher#openConnection(URL)
-	 * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-	 * @see HttpsFetcher#getHeaderFields(BufferedReader)
+	 * @see #fetchHtml(URL, int)
+	 */
+	public static String fetch(URL url, int redirects) {
+		try {
+			return fetchHtml(url, redirects);
+		} catch (IOException e) {
+			System.err.println("Error fetching url");
+			return null;
+		}
+	}
+
+	/**
+	 * Fetches the resource at the URL like {@link #fetch(URL, int)}, but throws an
+	 * exception instead of returning {@code null} if the request failed or the
+	 * server was too busy to answer it (a 429 or 5xx status code), so callers can
+	 * tell a failure apart from a page that is not HTML.
 	 *
-	 * @see String#join(CharSequence, CharSequence...)
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return the html or {@code null} if the resource is not html
+	 * @throws IOException if unable to fetch the resource or the server returned
+	 *                     an error status
+	 *
+	 * @see #fetchPage(URL, int, String, String)
+	 */
+	public static String fetchHtml(URL url, int redirects) throws IOException {
+		return fetchPage(url, redirects, null, null).html();
+	}
+
+	/**
+	 * The result of fetching a page: its HTML and the validators the server sent
+	 * for it, or a note that it has not changed since the validators sent with
+	 * the request
+	 */
+	public static class Page {
+		/**
+		 * The HTML, or null if the resource is not HTML or was not modified
+		 */
+		private final String html;
+
+		/**
+		 * The ETag header of the response, or null
+		 */
+		private final String etag;
+
+		/**
+		 * The Last-Modified header of the response, or null
+		 */
+		private final String lastModified;
+
+		/**
+		 * Whether the server answered 304 Not Modified
+		 */
+		private final boolean notModified;
+
+		/**
+		 * Initializes a page
+		 *
+		 * @param html         the HTML, or null
+		 * @param etag         the ETag header, or null
+		 * @param lastModified the Last-Modified header, or null
+		 * @param notModified  whether the server answered 304 Not Modified
+		 */
+		public Page(String html, String etag, String lastModified, boolean notModified) {
+			this.html = html;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.notModified = notModified;
+		}
+
+		/**
+		 * Returns the HTML of the page
+		 *
+		 * @return the HTML, or null if the resource is not HTML or was not modified
+		 */
+		public String html() {
+			return html;
+		}
+
+		/**
+		 * Returns the ETag the server sent for the page
+		 *
+		 * @return the ETag, or null if there was none
+		 */
+		public String etag() {
+			return etag;
+		}
+
+		/**
+		 * Returns the Last-Modified date the server sent for the page
+		 *
+		 * @return the Last-Modified header, or null if there was none
+		 */
+		public String lastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns whether the server answered 304 Not Modified, so the page is the
+		 * same as when the validators were sent
+		 *
+		 * @return true if the page was not modified
+		 */
+		public boolean notModified() {
+			return notModified;
+		}
+	}
+
+	/**
+	 * Fetches the resource at the URL like {@link #fetchHtml(URL, int)}, but sends
+	 * the validators from an earlier fetch so the server can answer 304 Not
+	 * Modified instead of sending the page again. The validators are only sent
+	 * to the URL itself, not to where it redirects, since they belong to the
+	 * response they came from.
+	 *
+	 * @param url          the url to fetch
+	 * @param redirects    the number of times to follow redirects
+	 * @param etag         the ETag from an earlier fetch, or null
+	 * @param lastModified the Last-Modified header from an earlier fetch, or null
+	 * @return the page, with null HTML if the resource is not html or was not
+	 *         modified
+	 * @throws IOException if unable to fetch the resource or the server returned
+	 *                     an error status
+	 *
+	 * @see ConnectionPool#get(URL, Map, java.util.function.Predicate,
+	 *      java.io.OutputStream, long, long)
+	 * @see PageWriter
 	 *
 	 * @see #isHtml(Map)
 	 * @see #getRedirect(Map)
 	 */
-	public static String fetch(URL url, int redirects) {
-		String html = null;
+	public static Page fetchPage(URL url, int redirects, String etag, String lastModified) throws IOException {
+		Map<String, String> conditions = new HashMap<>();
+		if (etag != null) {
+			conditions.put("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			conditions.put("If-Modified-Since", lastModified);
+		}
 
-		try (Socket socket = HttpsFetcher.openConnection(url);
-				PrintWriter request = new PrintWriter(socket.getOutputStream());
-				InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-				BufferedReader response = new BufferedReader(input);) {
+		PageWriter page = new PageWriter();
+		ConnectionPool.Response response;
 
-			HttpsFetcher.printGetRequest(request, url);
+		try {
+			response = pool.get(url, conditions, HtmlFetcher::isPage, page, maxBytes, deadline);
+		} catch (SocketTimeoutException e) {
+			aborted.increment();
+			throw e;
+		}
+		requests.increment();
 
-			// the headers will be first in the response
-			Map<String, List<String>> headers = HttpsFetcher.getHeaderFields(response);
+		Map<String, List<String>> headers = response.headers();
+		int status = getStatusCode(headers);
 
-			if (getStatusCode(headers) == 200 && isHtml(headers)) {
-				List<String> content = response.lines().toList();
-				html = String.join("\n", content);
-			}
+		if (isError(status)) {
+			throw new IOException("Status " + status + " from " + url);
+		}
 
-			if (getRedirect(headers) != null) {
-				if (redirects > 0) {
-					URL redirect = new URL(getRedirect(headers));
-					return fetch(redirect, redirects - 1);
-				}
+		if (status == 304) {
+			notModified.increment();
+			return new Page(null, etag, lastModified, true);
+		}
+
+		String html = null;
+		if (isPage(headers)) {
+			html = page.text();
+			if (response.truncated()) {
+				truncated.increment();
 			}
+			if (ContentDecoder.isCompressed(ConnectionPool.header(headers, "Content-Encoding"))) {
+				compressed.increment();
+			}
+		}
 
-		} catch (IOException e) {
-			html = null;
-			System.err.println("Error fetching url");
+		if (getRedirect(headers) != null) {
+			if (redirects > 0) {
+				URL redirect = new URL(getRedirect(headers));
+				return fetchPage(redirect, redirects - 1, null, null);
+			}
 		}
 
-		return html;
+		return new Page(html, ConnectionPool.header(headers, "ETag"), ConnectionPool.header(headers, "Last-Modified"),
+				false);
+	}
+
+	/**
+	 * Returns {@code true} if the status code means the server failed or is
+	 * overloaded: 429 Too Many Requests or any 5xx status code.
+	 *
+	 * @param status the HTTP status code
+	 * @return {@code true} if the request should be treated as failed
+	 */
+	public static boolean isError(int status) {
+		return status == 429 || status >= 500;
 	}
 
 	/**
@@ -6,8 +6,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
@@ -15,8 +18,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -27,6 +31,26 @@ import javax.net.ssl.SSLSocketFactory;
  * @version Spring 2023
  */
 public class HttpsFetcher {
+	/**
+	 * Most milliseconds to wait for a connection or a TLS handshake when there is
+	 * no deadline
+	 */
+	public static final int CONNECT_TIMEOUT = 30000;
+
+	/**
+	 * The addresses of the hosts connected to recently
+	 */
+	private static final HostCache hosts = new HostCache();
+
+	/**
+	 * Returns the cache of host addresses used to open connections
+	 *
+	 * @return the host cache
+	 */
+	public static HostCache hosts() {
+		return hosts;
+	}
+
 	/**
 	 * Fetches the headers and content for the specified URL. The content is placed
 	 * as a list of all the lines fetched under the "Content" key.
@@ -70,7 +94,9 @@ public class HttpsFetcher {
 
 	/**
 	 * Uses a {@link Socket} to open a connection to the web server associated with
-	 * the provided URL. Supports HTTP and HTTPS connections.
+	 * the provided URL. Supports HTTP and HTTPS connections. The host is looked up
+	 * through the {@link #hosts()} cache, and each of its addresses is tried in
+	 * turn until one connects.
 	 *
 	 * @param url the url to connect
 	 * @return a socket connection for that url
@@ -80,6 +106,23 @@ public class HttpsFetcher {
 	 * @see URL#openConnection()
 	 */
 	public static Socket openConnection(URL url) throws UnknownHostException, IOException {
+		return openConnection(url, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Opens a connection like {@link #openConnection(URL)}, giving up on
+	 * connecting and on the TLS handshake once the deadline passes
+	 *
+	 * @param url      the url to connect
+	 * @param deadline when to give up, in {@link System#nanoTime()}, or
+	 *                 {@link Long#MAX_VALUE} for no deadline
+	 * @return a socket connection for that url
+	 * @throws UnknownHostException   if the host is not known
+	 * @throws SocketTimeoutException if the deadline passes first
+	 * @throws IOException            if an I/O error occurs when creating the
+	 *                                socket
+	 */
+	public static Socket openConnection(URL url, long deadline) throws UnknownHostException, IOException {
 		String protocol = url.getProtocol();
 		String host = url.getHost();
 
@@ -87,8 +130,58 @@ public class HttpsFetcher {
 		int defaultPort = https ? 443 : 80;
 		int port = url.getPort() < 0 ? defaultPort : url.getPort();
 
-		SocketFactory factory = https ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
-		return factory.createSocket(host, port);
+		IOException failure = null;
+		for (InetAddress address : hosts.resolve(host)) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), remaining(deadline, CONNECT_TIMEOUT));
+			} catch (SocketTimeoutException e) {
+				socket.close();
+				if (deadline - System.nanoTime() <= 0) {
+					throw e;
+				}
+				failure = e;
+				continue;
+			} catch (IOException e) {
+				socket.close();
+				failure = e;
+				continue;
+			}
+
+			if (https) {
+				try {
+					// connected by address, but the handshake still names the host
+					socket.setSoTimeout(remaining(deadline, CONNECT_TIMEOUT));
+					SSLSocket secure = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket,
+							host, port, true);
+					secure.startHandshake();
+					return secure;
+				} catch (IOException e) {
+					socket.close();
+					throw e;
+				}
+			}
+			return socket;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Returns the milliseconds left before the deadline, to use as a socket
+	 * timeout
+	 *
+	 * @param deadline when to give up, in {@link System#nanoTime()}, or
+	 *                 {@link Long#MAX_VALUE} for no deadline
+	 * @param limit    the most milliseconds to return
+	 * @return the milliseconds left, at least 1 and at most the limit
+	 * @throws SocketTimeoutException if the deadline already passed
+	 */
+	public static int remaining(long deadline, int limit) throws SocketTimeoutException {
+		long left = deadline - System.nanoTime();
+		if (left <= 0) {
+			throw new SocketTimeoutException("Response took too long");
+		}
+		return (int) Math.max(1, Math.min(limit, TimeUnit.NANOSECONDS.toMillis(left)));
 	}
 
 	/**
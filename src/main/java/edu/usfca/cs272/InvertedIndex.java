@@ -4,11 +4,18 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -18,6 +25,13 @@ import java.util.TreeSet;
  * and the inverted index for each word. This class also contains helpful
  * methods for each data structure.
  * 
+ * Removing or replacing a location only leaves a tombstone behind, so it takes
+ * time in the size of the location rather than the size of the vocabulary.
+ * Searches and views skip the postings a tombstone hides, and
+ * {@link #compact()} purges them for good. The hidden postings of every word
+ * are counted as they come and go, so telling whether a word is still in the
+ * index does not look through its postings.
+ * 
  * @author troy
  *
  */
@@ -34,12 +48,69 @@ public class InvertedIndex {
 	 */
 	private final TreeMap<String, Integer> counts;
 
+	/**
+	 * The tombstones of the locations removed or replaced since the last
+	 * compaction
+	 */
+	private final HashMap<String, Tombstone> tombstones;
+
+	/**
+	 * The words given a posting for each location, hidden or not. A compaction
+	 * may purge some of these postings before it forgets the tombstone of the
+	 * location, so a word listed here might no longer have one.
+	 */
+	private final HashMap<String, ArrayList<String>> words;
+
+	/**
+	 * The number of hidden postings of each word that has any
+	 */
+	private final HashMap<String, Integer> hidden;
+
+	/**
+	 * The number of words whose every posting is hidden
+	 */
+	private int hiddenWords;
+
+	/**
+	 * Marks the postings of a location that are no longer current. A new
+	 * tombstone is made every time, so a compaction can tell whether the one it
+	 * purged was replaced in the meantime.
+	 */
+	private static class Tombstone {
+		/**
+		 * The words whose postings for the location are current, empty if the
+		 * location was removed
+		 */
+		private final Set<String> words;
+
+		/**
+		 * @param words the words whose postings for the location are current
+		 */
+		private Tombstone(Set<String> words) {
+			this.words = words;
+		}
+
+		/**
+		 * Returns true if the posting of the word for the location is not current
+		 * 
+		 * @param word the word
+		 * @return true if the posting is hidden
+		 */
+		private boolean hides(String word) {
+			return !words.contains(word);
+		}
+	}
+
 	/**
 	 * Initializes new TreeMaps for invertedIndex and pairs
 	 */
 	public InvertedIndex() {
 		invertedIndex = new TreeMap<String, TreeMap<String, TreeSet<Integer>>>();
 		counts = new TreeMap<String, Integer>();
+		tombstones = new HashMap<>();
+		words = new HashMap<>();
+		hidden = new HashMap<>();
+		hiddenWords = 0;
 	}
 
 	/**
@@ -66,6 +137,10 @@ public class InvertedIndex {
 	private void addSearchResult(String query, TreeMap<String, TreeMap<String, TreeSet<Integer>>> invertedIndex,
 			HashMap<String, SearchResult> lookup, ArrayList<SearchResult> results) {
 		for (Entry<String, TreeSet<Integer>> entry : invertedIndex.get(query).entrySet()) {
+			if (!live(query, entry.getKey())) {
+				continue;
+			}
+
 			SearchResult result = lookup.get(entry.getKey());
 			if (result == null) {
 				result = new SearchResult(entry.getKey());
@@ -150,39 +225,156 @@ public class InvertedIndex {
 	 * @param position index of the stem in path
 	 */
 	public void add(String stem, String path, int position) {
-		invertedIndex.putIfAbsent(stem, new TreeMap<>());
-		invertedIndex.get(stem).putIfAbsent(path, new TreeSet<>());
-		invertedIndex.get(stem).get(path).add(position);
+		if (!tombstones.isEmpty()) {
+			revive(path);
+		}
+		put(stem, path, position);
+	}
+
+	/**
+	 * Adds the stems found in the location, numbered from 1 in order. Looks up
+	 * each distinct stem once instead of once per position like
+	 * {@link #add(String, String, int)} does.
+	 * 
+	 * @param location the location the stems are found in
+	 * @param stems    the stems in order
+	 */
+	public void addAll(String location, List<String> stems) {
+		if (!tombstones.isEmpty()) {
+			revive(location);
+		}
+		put(location, stems);
+	}
+
+	/**
+	 * Adds the stem at the position in the path, for
+	 * {@link #add(String, String, int)}
+	 * 
+	 * @param stem     Stem that represents key in data structure
+	 * @param path     the Path the stem is found in
+	 * @param position index of the stem in path
+	 */
+	private void put(String stem, String path, int position) {
+		var entry = entry(stem);
+		TreeMap<String, TreeSet<Integer>> locations = entry.getValue();
+		if (!locations.containsKey(path)) {
+			locations.put(path, new TreeSet<>());
+			words.computeIfAbsent(path, k -> new ArrayList<>()).add(entry.getKey());
+			added(stem, locations.size());
+		}
+		locations.get(path).add(position);
 
 		if (counts.getOrDefault(path, 0) < position) {
 			counts.put(path, position);
 		}
 	}
 
+	/**
+	 * Groups the positions of the stems, numbered from 1 in order
+	 * 
+	 * @param stems the stems in order
+	 * @return the positions of each stem
+	 */
+	private static HashMap<String, TreeSet<Integer>> positions(List<String> stems) {
+		HashMap<String, TreeSet<Integer>> positions = new HashMap<>();
+		int position = 1;
+		for (String stem : stems) {
+			positions.computeIfAbsent(stem, k -> new TreeSet<>()).add(position++);
+		}
+		return positions;
+	}
+
+	/**
+	 * Adds the stems found in the location, numbered from 1 in order, for
+	 * {@link #addAll(String, List)}
+	 * 
+	 * @param location the location the stems are found in
+	 * @param stems    the stems in order
+	 */
+	private void put(String location, List<String> stems) {
+		HashMap<String, TreeSet<Integer>> positions = positions(stems);
+		ArrayList<String> posted = positions.isEmpty() ? null
+				: words.computeIfAbsent(location, k -> new ArrayList<>(positions.size()));
+
+		for (var entry : positions.entrySet()) {
+			var word = entry(entry.getKey());
+			TreeMap<String, TreeSet<Integer>> locations = word.getValue();
+			TreeSet<Integer> found = locations.putIfAbsent(location, entry.getValue());
+			if (found != null) {
+				found.addAll(entry.getValue());
+			} else {
+				posted.add(word.getKey());
+				added(word.getKey(), locations.size());
+			}
+		}
+
+		if (!stems.isEmpty() && counts.getOrDefault(location, 0) < stems.size()) {
+			counts.put(location, stems.size());
+		}
+	}
+
+	/**
+	 * Returns the word as kept by the index along with its postings, adding the
+	 * word if it is new. The words of each location refer to the copy of the
+	 * word kept by the index, so they do not keep other copies alive.
+	 * 
+	 * @param word the word
+	 * @return the word and its postings
+	 */
+	private Entry<String, TreeMap<String, TreeSet<Integer>>> entry(String word) {
+		var entry = invertedIndex.ceilingEntry(word);
+		if (entry != null && entry.getKey().equals(word)) {
+			return entry;
+		}
+
+		TreeMap<String, TreeSet<Integer>> postings = new TreeMap<>();
+		invertedIndex.put(word, postings);
+		return new AbstractMap.SimpleImmutableEntry<>(word, postings);
+	}
+
 	/**
 	 * Adds the data in another InvertedIndex object to this InvertedIndex object
 	 * 
 	 * @param other InvertedIndex object to use
 	 */
 	public void addAll(InvertedIndex other) {
+		if (!other.tombstones.isEmpty()) {
+			other.compact();
+		}
+
+		if (!tombstones.isEmpty()) {
+			for (String location : other.counts.keySet()) {
+				revive(location);
+			}
+		}
+
+		for (var wordsEntry : other.words.entrySet()) {
+			this.words.computeIfAbsent(wordsEntry.getKey(), k -> new ArrayList<>(wordsEntry.getValue().size()));
+		}
+
 		for (var wordEntry : other.invertedIndex.entrySet()) {
 			String otherWord = wordEntry.getKey();
 			TreeMap<String, TreeSet<Integer>> otherLocations = wordEntry.getValue();
-			TreeMap<String, TreeSet<Integer>> thisLocations = this.invertedIndex.get(otherWord);
+			var thisEntry = this.invertedIndex.ceilingEntry(otherWord);
 
-			if (thisLocations == null) {
+			if (thisEntry == null || !thisEntry.getKey().equals(otherWord)) {
 				// Sets initial String-TreeMap<>()
 				this.invertedIndex.put(otherWord, otherLocations);
+				for (String location : otherLocations.keySet()) {
+					this.words.get(location).add(otherWord);
+				}
 			} else {
+				String thisWord = thisEntry.getKey();
+				TreeMap<String, TreeSet<Integer>> thisLocations = thisEntry.getValue();
 				for (var otherEntry : otherLocations.entrySet()) {
 					if (thisLocations.containsKey(otherEntry.getKey())) {
 						// Updates locations if path is already in invertedIndex
-						this.invertedIndex.get(otherWord).get(otherEntry.getKey())
-								.addAll(otherLocations.get(otherEntry.getKey()));
+						thisLocations.get(otherEntry.getKey()).addAll(otherEntry.getValue());
 					} else {
 						// Adds String-TreeSet<>() value to String key in invertedIndex
-						this.invertedIndex.get(otherWord).put(otherEntry.getKey(),
-								otherLocations.get(otherEntry.getKey()));
+						thisLocations.put(otherEntry.getKey(), otherEntry.getValue());
+						this.words.get(otherEntry.getKey()).add(thisWord);
+						added(thisWord, thisLocations.size());
 					}
 				}
 			}
@@ -198,6 +390,348 @@ public class InvertedIndex {
 		}
 	}
 
+	/**
+	 * Removes the location and its word count. Its postings are hidden by a
+	 * tombstone until the next compaction, so this takes time in the size of the
+	 * location rather than the size of the vocabulary.
+	 * 
+	 * @param location the location to remove
+	 * @return true if the location was in the index
+	 */
+	public boolean remove(String location) {
+		if (counts.remove(location) == null) {
+			return false;
+		}
+
+		Tombstone old = tombstones.put(location, new Tombstone(Set.of()));
+		ArrayList<String> posted = words.get(location);
+		if (posted != null) {
+			for (String word : posted) {
+				TreeMap<String, TreeSet<Integer>> postings = invertedIndex.get(word);
+				if ((old == null || !old.hides(word)) && postings != null && postings.containsKey(location)) {
+					hide(word, postings);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every one of the locations, like {@link #remove(String)}
+	 * 
+	 * @param locations the locations to remove
+	 * @return true if any of the locations were in the index
+	 */
+	public boolean removeAll(Collection<String> locations) {
+		boolean removed = false;
+		for (String location : locations) {
+			removed |= remove(location);
+		}
+		return removed;
+	}
+
+	/**
+	 * Replaces the stems found in the location with new ones, numbered from 1 in
+	 * order. The postings of the new stems overwrite the old ones, and the rest
+	 * of the old postings are hidden by a tombstone until the next compaction.
+	 * 
+	 * @param location the location to replace
+	 * @param stems    the stems now found in the location
+	 */
+	public void replace(String location, List<String> stems) {
+		Tombstone old = tombstones.get(location);
+		boolean indexed = counts.containsKey(location) || old != null;
+		HashMap<String, TreeSet<Integer>> positions = positions(stems);
+		ArrayList<String> posted = new ArrayList<>(positions.size());
+
+		ArrayList<String> before = words.get(location);
+		if (before != null) {
+			for (String word : before) {
+				TreeMap<String, TreeSet<Integer>> postings = invertedIndex.get(word);
+				if (postings == null || !postings.containsKey(location)) {
+					continue;
+				}
+
+				boolean live = old == null || !old.hides(word);
+				if (positions.containsKey(word)) {
+					if (!live) {
+						unhide(word, postings);
+					}
+				} else {
+					posted.add(word);
+					if (live) {
+						hide(word, postings);
+					}
+				}
+			}
+		}
+
+		for (var entry : positions.entrySet()) {
+			var word = entry(entry.getKey());
+			TreeMap<String, TreeSet<Integer>> locations = word.getValue();
+			posted.add(word.getKey());
+			if (locations.put(location, entry.getValue()) == null) {
+				added(word.getKey(), locations.size());
+			}
+		}
+
+		if (posted.isEmpty()) {
+			words.remove(location);
+		} else {
+			words.put(location, posted);
+		}
+
+		if (stems.isEmpty()) {
+			counts.remove(location);
+		} else {
+			counts.put(location, stems.size());
+		}
+
+		if (indexed) {
+			tombstones.put(location, new Tombstone(new HashSet<>(positions.keySet())));
+		}
+	}
+
+	/**
+	 * Returns true if the posting of the word for the location is current
+	 * 
+	 * @param word     the word
+	 * @param location the location
+	 * @return true if no tombstone hides the posting
+	 */
+	private boolean live(String word, String location) {
+		if (tombstones.isEmpty()) {
+			return true;
+		}
+		Tombstone tombstone = tombstones.get(location);
+		return tombstone == null || !tombstone.hides(word);
+	}
+
+	/**
+	 * Returns true if any posting of the word is current
+	 * 
+	 * @param word     the word
+	 * @param postings the postings of the word, or null if it has none
+	 * @return true if any posting is not hidden
+	 */
+	private boolean live(String word, TreeMap<String, TreeSet<Integer>> postings) {
+		return postings != null && postings.size() > hidden.getOrDefault(word, 0);
+	}
+
+	/**
+	 * Purges the hidden postings of a location before more stems are added to it,
+	 * so they are not mistaken for new ones. Only looks at the words of the
+	 * location.
+	 * 
+	 * @param location the location about to be added to
+	 */
+	private void revive(String location) {
+		Tombstone tombstone = tombstones.remove(location);
+		ArrayList<String> before = words.get(location);
+		if (tombstone == null || before == null) {
+			return;
+		}
+
+		ArrayList<String> posted = new ArrayList<>();
+		for (String word : before) {
+			TreeMap<String, TreeSet<Integer>> postings = invertedIndex.get(word);
+			if (postings == null || !postings.containsKey(location)) {
+				continue;
+			}
+
+			if (!tombstone.hides(word)) {
+				posted.add(word);
+			} else {
+				postings.remove(location);
+				purged(word, postings);
+				if (postings.isEmpty()) {
+					invertedIndex.remove(word);
+				}
+			}
+		}
+
+		if (posted.isEmpty()) {
+			words.remove(location);
+		} else {
+			words.put(location, posted);
+		}
+	}
+
+	/**
+	 * Counts a posting just added to the word, which makes the word visible
+	 * again if every other posting of it is hidden
+	 * 
+	 * @param word     the word
+	 * @param postings the number of postings of the word, including the new one
+	 */
+	private void added(String word, int postings) {
+		Integer count = hidden.get(word);
+		if (count != null && count == postings - 1) {
+			hiddenWords--;
+		}
+	}
+
+	/**
+	 * Counts a posting of the word that a tombstone now hides
+	 * 
+	 * @param word     the word
+	 * @param postings the postings of the word
+	 */
+	private void hide(String word, TreeMap<String, TreeSet<Integer>> postings) {
+		int count = hidden.merge(word, 1, Integer::sum);
+		if (count == postings.size()) {
+			hiddenWords++;
+		}
+	}
+
+	/**
+	 * Counts a hidden posting of the word that was written over with a current
+	 * one
+	 * 
+	 * @param word     the word
+	 * @param postings the postings of the word
+	 */
+	private void unhide(String word, TreeMap<String, TreeSet<Integer>> postings) {
+		int count = hidden.get(word);
+		if (count == postings.size()) {
+			hiddenWords--;
+		}
+
+		if (count == 1) {
+			hidden.remove(word);
+		} else {
+			hidden.put(word, count - 1);
+		}
+	}
+
+	/**
+	 * Forgets a hidden posting of the word that was just removed from its
+	 * postings. The caller removes the word if it has no postings left.
+	 * 
+	 * @param word     the word
+	 * @param postings the postings of the word left
+	 */
+	private void purged(String word, TreeMap<String, TreeSet<Integer>> postings) {
+		int count = hidden.get(word);
+		if (count == 1) {
+			hidden.remove(word);
+		} else {
+			hidden.put(word, count - 1);
+		}
+
+		if (postings.isEmpty()) {
+			hiddenWords--;
+		}
+	}
+
+	/**
+	 * Returns the number of locations with postings waiting for a compaction
+	 * 
+	 * @return the number of tombstones
+	 */
+	public int numTombstones() {
+		return tombstones.size();
+	}
+
+	/**
+	 * Purges every posting hidden by a tombstone and forgets the tombstones
+	 */
+	public void compact() {
+		if (tombstones.isEmpty()) {
+			return;
+		}
+
+		Map<String, ?> snapshot = tombstones();
+		String next = null;
+		do {
+			next = purge(next, Long.MAX_VALUE);
+		} while (next != null);
+		forget(snapshot);
+	}
+
+	/**
+	 * Returns the tombstones a compaction is about to purge, to pass to
+	 * {@link #forget(Map)} once every word was purged
+	 * 
+	 * @return a copy of the tombstones by location
+	 */
+	Map<String, ?> tombstones() {
+		return new HashMap<>(tombstones);
+	}
+
+	/**
+	 * Purges the postings hidden by tombstones from some of the words, so a
+	 * compaction can be done a little at a time
+	 * 
+	 * @param from  the word to start from, or null to start from the first word
+	 * @param limit about how many postings or tombstones to look at before
+	 *              stopping
+	 * @return the word to continue from, or null if there are no words left
+	 */
+	String purge(String from, long limit) {
+		if (tombstones.isEmpty()) {
+			return null;
+		}
+
+		var entries = (from == null ? invertedIndex : invertedIndex.tailMap(from, true)).entrySet().iterator();
+
+		long looked = 0;
+		while (looked < limit && entries.hasNext()) {
+			var entry = entries.next();
+			String word = entry.getKey();
+			TreeMap<String, TreeSet<Integer>> postings = entry.getValue();
+			looked += Math.min(postings.size(), tombstones.size()) + 1;
+
+			if (!hidden.containsKey(word)) {
+				continue;
+			}
+
+			if (postings.size() < tombstones.size()) {
+				Iterator<String> locations = postings.keySet().iterator();
+				while (locations.hasNext()) {
+					String location = locations.next();
+					if (!live(word, location)) {
+						locations.remove();
+						purged(word, postings);
+					}
+				}
+			} else {
+				for (var tombstone : tombstones.entrySet()) {
+					if (tombstone.getValue().hides(word) && postings.remove(tombstone.getKey()) != null) {
+						purged(word, postings);
+					}
+				}
+			}
+
+			if (postings.isEmpty()) {
+				entries.remove();
+			}
+		}
+
+		return entries.hasNext() ? entries.next().getKey() : null;
+	}
+
+	/**
+	 * Forgets the tombstones a compaction purged, unless they were replaced by
+	 * newer ones while it ran, along with the words of their locations that
+	 * lost their postings
+	 * 
+	 * @param snapshot the tombstones returned by {@link #tombstones()} before the
+	 *                 compaction started
+	 */
+	void forget(Map<String, ?> snapshot) {
+		for (var entry : snapshot.entrySet()) {
+			if (tombstones.remove(entry.getKey(), entry.getValue())) {
+				Set<String> current = ((Tombstone) entry.getValue()).words;
+				if (current.isEmpty()) {
+					words.remove(entry.getKey());
+				} else {
+					words.put(entry.getKey(), new ArrayList<>(current));
+				}
+			}
+		}
+	}
+
 	/**
 	 * Returns an unmodifiable view of counts.
 	 * 
@@ -225,7 +759,7 @@ public class InvertedIndex {
 	 */
 	public Set<Integer> viewIndices(String word, String file) {
 		TreeSet<Integer> indices = invertedIndex.get(word).get(file);
-		if (indices != null) {
+		if (indices != null && live(word, file)) {
 			return Collections.unmodifiableSet(indices);
 		}
 		return Collections.emptySet();
@@ -239,10 +773,21 @@ public class InvertedIndex {
 	 */
 	public Set<String> viewPaths(String word) {
 		TreeMap<String, TreeSet<Integer>> files = invertedIndex.get(word);
-		if (files != null) {
+		if (files == null) {
+			return Collections.emptySet();
+		}
+
+		if (tombstones.isEmpty()) {
 			return Collections.unmodifiableSet(files.keySet());
 		}
-		return Collections.emptySet();
+
+		TreeSet<String> paths = new TreeSet<>();
+		for (String path : files.keySet()) {
+			if (live(word, path)) {
+				paths.add(path);
+			}
+		}
+		return Collections.unmodifiableSet(paths);
 	}
 
 	/**
@@ -251,7 +796,10 @@ public class InvertedIndex {
 	 * @return an unmodifiable view of all the stems in InvertedIndex
 	 */
 	public Set<String> viewWords() {
-		return Collections.unmodifiableSet(invertedIndex.keySet());
+		if (hiddenWords == 0) {
+			return Collections.unmodifiableSet(invertedIndex.keySet());
+		}
+		return Collections.unmodifiableSet(new Visible().keySet());
 	}
 
 	/**
@@ -271,7 +819,7 @@ public class InvertedIndex {
 	 * @return Returns true if a stem is a key, false if not
 	 */
 	public boolean hasWord(String stem) {
-		return invertedIndex.containsKey(stem);
+		return live(stem, invertedIndex.get(stem));
 	}
 
 	/**
@@ -284,7 +832,7 @@ public class InvertedIndex {
 	 *         not
 	 */
 	public boolean hasPath(String word, String path) {
-		return hasWord(word) && invertedIndex.get(word).containsKey(path);
+		return hasWord(word) && invertedIndex.get(word).containsKey(path) && live(word, path);
 	}
 
 	/**
@@ -324,7 +872,7 @@ public class InvertedIndex {
 	 * @return size of invertedIndex
 	 */
 	public int numWords() {
-		return invertedIndex.size();
+		return invertedIndex.size() - hiddenWords;
 	}
 
 	/**
@@ -350,7 +898,7 @@ public class InvertedIndex {
 
 	@Override
 	public String toString() {
-		return "Counts: " + counts.toString() + "\n" + "invertedIndex: " + invertedIndex.toString();
+		return "Counts: " + counts.toString() + "\n" + "invertedIndex: " + visible().toString();
 	}
 
 	/**
@@ -360,7 +908,130 @@ public class InvertedIndex {
 	 * @throws IOException If an IO Error occurs
 	 */
 	public void writeIndex(Path path) throws IOException {
-		JsonWriter.writeInvertedIndex(invertedIndex, path);
+		JsonWriter.writeInvertedIndex(visible(), path);
+	}
+
+	/**
+	 * Returns the postings no tombstone hides, as the index itself if none are
+	 * hidden
+	 * 
+	 * @return the current postings of every word
+	 */
+	private Map<String, ? extends Map<String, TreeSet<Integer>>> visible() {
+		return hidden.isEmpty() ? invertedIndex : new Visible();
+	}
+
+	/**
+	 * Returns the postings of the word no tombstone hides, only copying them if
+	 * any are hidden
+	 * 
+	 * @param word     the word
+	 * @param postings the postings of the word
+	 * @return the current postings of the word
+	 */
+	private Map<String, TreeSet<Integer>> visible(String word, TreeMap<String, TreeSet<Integer>> postings) {
+		if (!hidden.containsKey(word)) {
+			return Collections.unmodifiableMap(postings);
+		}
+
+		TreeMap<String, TreeSet<Integer>> visible = new TreeMap<>();
+		for (var posting : postings.entrySet()) {
+			if (live(word, posting.getKey())) {
+				visible.put(posting.getKey(), posting.getValue());
+			}
+		}
+		return visible;
+	}
+
+	/**
+	 * A read-only view of the postings no tombstone hides. Words are skipped and
+	 * postings filtered as the view is read, so only the postings of one word at
+	 * a time are copied.
+	 */
+	private class Visible extends AbstractMap<String, Map<String, TreeSet<Integer>>> {
+		@Override
+		public Set<Entry<String, Map<String, TreeSet<Integer>>>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<String, Map<String, TreeSet<Integer>>>> iterator() {
+					return new VisibleIterator();
+				}
+
+				@Override
+				public int size() {
+					return invertedIndex.size() - hiddenWords;
+				}
+			};
+		}
+
+		@Override
+		public Map<String, TreeSet<Integer>> get(Object word) {
+			TreeMap<String, TreeSet<Integer>> postings = invertedIndex.get(word);
+			return live((String) word, postings) ? visible((String) word, postings) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object word) {
+			return word instanceof String && live((String) word, invertedIndex.get(word));
+		}
+
+		@Override
+		public int size() {
+			return invertedIndex.size() - hiddenWords;
+		}
+	}
+
+	/**
+	 * Iterates through the words no tombstone hides, in order
+	 */
+	private class VisibleIterator implements Iterator<Entry<String, Map<String, TreeSet<Integer>>>> {
+		/**
+		 * The words of the index
+		 */
+		private final Iterator<Entry<String, TreeMap<String, TreeSet<Integer>>>> entries;
+
+		/**
+		 * The next visible word, or null if there are none left
+		 */
+		private Entry<String, TreeMap<String, TreeSet<Integer>>> next;
+
+		/**
+		 * Initializes the iterator at the first visible word
+		 */
+		private VisibleIterator() {
+			entries = invertedIndex.entrySet().iterator();
+			advance();
+		}
+
+		/**
+		 * Moves to the next visible word
+		 */
+		private void advance() {
+			next = null;
+			while (next == null && entries.hasNext()) {
+				var entry = entries.next();
+				if (live(entry.getKey(), entry.getValue())) {
+					next = entry;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Map<String, TreeSet<Integer>>> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			String word = next.getKey();
+			Map<String, TreeSet<Integer>> postings = visible(word, next.getValue());
+			advance();
+			return new AbstractMap.SimpleImmutableEntry<>(word, postings);
+		}
 	}
 
 	/**
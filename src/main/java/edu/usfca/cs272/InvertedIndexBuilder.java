@@ -6,6 +6,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 
 import opennlp.tools.stemmer.snowball.SnowballStemmer;
 import opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM;
@@ -58,6 +60,31 @@ public class InvertedIndexBuilder {
 		}
 	}
 
+	/**
+	 * Adds the stems of the file from the last build if it is unchanged since the
+	 * manifest last saw it, and otherwise indexes the file and records it in the
+	 * manifest
+	 * 
+	 * @param path     Path to use
+	 * @param data     InvertedIndex data structures
+	 * @param manifest the files indexed by the last build
+	 * @throws IOException if an IO error occurs
+	 */
+	public static void processFile(Path path, InvertedIndex data, FileManifest manifest) throws IOException {
+		List<String> stems = manifest.lastStems(path);
+		if (stems != null) {
+			data.addAll(path.toString(), stems);
+			return;
+		}
+
+		// read once, so the stems and the hash in the manifest are of the same bytes
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		byte[] contents = Files.readAllBytes(path);
+		stems = FileStemmer.listStems(contents);
+		data.addAll(path.toString(), stems);
+		manifest.changed(path, attributes, contents, stems);
+	}
+
 	/**
 	 * Traverses through a path if it is a directory. If it not a directory and is a
 	 * txt/text file, it will update the data structures
@@ -78,6 +105,28 @@ public class InvertedIndexBuilder {
 		}
 	}
 
+	/**
+	 * Traverses through a path like {@link #traverseDirectory(Path, InvertedIndex)},
+	 * only indexing the files that changed since the manifest last saw them
+	 * 
+	 * @param directory path to check
+	 * @param data      Data structures to modify
+	 * @param manifest  the files indexed by the last build
+	 * @throws IOException if an IO error occurs
+	 */
+	public static void traverseDirectory(Path directory, InvertedIndex data, FileManifest manifest)
+			throws IOException {
+		try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+			for (Path path : listing) {
+				if (Files.isDirectory(path)) {
+					traverseDirectory(path, data, manifest);
+				} else if (isTxtFile(path)) {
+					processFile(path, data, manifest);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Builds invertedIndex and counts data structures
 	 * 
@@ -92,4 +141,25 @@ public class InvertedIndexBuilder {
 			processFile(input, data);
 		}
 	}
+
+	/**
+	 * Builds invertedIndex and counts data structures, reusing the stems of the
+	 * files that are unchanged since the last build and only reading the files
+	 * added or changed since. Files that are gone are never added, so the result
+	 * is the same as a build from scratch.
+	 * 
+	 * @param input    Input to use
+	 * @param data     Data structures to build
+	 * @param manifest the files indexed by the last build, updated to this one
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void build(Path input, InvertedIndex data, FileManifest manifest) throws IOException {
+		if (Files.isDirectory(input)) {
+			traverseDirectory(input, data, manifest);
+		} else {
+			processFile(input, data, manifest);
+		}
+
+		manifest.forget();
+	}
 }
@@ -0,0 +1,156 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of durations in nanoseconds with one bucket per power
+ * of two. Recording a duration only updates a few atomic counters and never
+ * blocks, so it is cheap enough to leave on all the time.
+ *
+ * @author troy
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of buckets; bucket i holds durations in [2^(i-1), 2^i) nanoseconds
+	 */
+	private static final int BUCKETS = 65;
+
+	/**
+	 * Number of durations recorded per bucket
+	 */
+	private final AtomicLongArray buckets;
+
+	/**
+	 * Number of durations recorded
+	 */
+	private final LongAdder count;
+
+	/**
+	 * Sum of all durations recorded
+	 */
+	private final LongAdder total;
+
+	/**
+	 * Longest duration recorded
+	 */
+	private final LongAccumulator max;
+
+	/**
+	 * Initializes an empty histogram
+	 */
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		total = new LongAdder();
+		max = new LongAccumulator(Long::max, 0);
+	}
+
+	/**
+	 * Records a duration. Negative durations are recorded as 0.
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(nanos, 0);
+		buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Returns the number of durations recorded
+	 *
+	 * @return the number of durations recorded
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of all durations recorded
+	 *
+	 * @return total nanoseconds recorded
+	 */
+	public long total() {
+		return total.sum();
+	}
+
+	/**
+	 * Returns the average duration recorded
+	 *
+	 * @return average nanoseconds, or 0 if nothing was recorded
+	 */
+	public long mean() {
+		long n = count();
+		return n == 0 ? 0 : total() / n;
+	}
+
+	/**
+	 * Returns the longest duration recorded
+	 *
+	 * @return longest nanoseconds recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns an upper bound on the duration at the given percentile, accurate to
+	 * within a factor of two
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return nanoseconds at or below which the percentile of durations fall
+	 */
+	public long percentile(double percentile) {
+		long[] counts = buckets();
+		long n = 0;
+		for (long c : counts) {
+			n += c;
+		}
+
+		long target = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target && seen > 0) {
+				return i == 0 ? 0 : Math.min((1L << (i - 1)) * 2 - 1, max());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a copy of the bucket counts, where bucket i counts the durations
+	 * from 2^(i-1) up to 2^i nanoseconds (and bucket 0 counts durations of 0)
+	 *
+	 * @return number of durations recorded per bucket
+	 */
+	public long[] buckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Formats nanoseconds as milliseconds
+	 *
+	 * @param nanos nanoseconds to format
+	 * @return the formatted milliseconds
+	 */
+	private static String millis(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count %d, mean %s, p50 %s, p90 %s, p99 %s, max %s", count(), millis(mean()),
+				millis(percentile(50)), millis(percentile(90)), millis(percentile(99)), millis(max()));
+	}
+}
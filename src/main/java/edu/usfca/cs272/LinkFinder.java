@@ -7,6 +7,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,6 +18,41 @@ import java.util.regex.Pattern;
  * @version Spring 2023
  */
 public class LinkFinder {
+	/**
+	 * Matches the HREF attribute of an anchor tag
+	 */
+	private static final Pattern ANCHOR = Pattern.compile("(?i)<a\\s[^>]*href\\s*=\\s*\"([^\"]+)\"[^>]*>");
+
+	/**
+	 * The characters {@link #normalize(URL)} leaves as they are, indexed by
+	 * character. Any other character, including '%', would be encoded.
+	 */
+	private static final boolean[] LEGAL = new boolean[128];
+
+	/**
+	 * Most hosts {@link #HOSTS} remembers before it starts over
+	 */
+	private static final int MAX_HOSTS = 10000;
+
+	/**
+	 * Whether each host seen so far is one {@link URI} accepts as a server
+	 * authority, which normalizing checks every time
+	 */
+	private static final ConcurrentHashMap<String, Boolean> HOSTS = new ConcurrentHashMap<>();
+
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			LEGAL[c] = true;
+			LEGAL[Character.toUpperCase(c)] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			LEGAL[c] = true;
+		}
+		for (char c : "-_.!~*'();/?:@&=+$,".toCharArray()) {
+			LEGAL[c] = true;
+		}
+	}
+
 	/**
 	 * Returns a list of all the valid HTTP(S) URLs found in the HREF attribute of
 	 * the anchor tags in the provided HTML. The URLs will be converted to absolute
@@ -39,9 +75,7 @@ public class LinkFinder {
 	 */
 	public static void findUrls(URL base, String html, Collection<URL> urls) {
 		if (html.length() > 0) {
-			String regex = "(?i)<a\\s[^>]*href\\s*=\\s*\"([^\"]+)\"[^>]*>";
-			Pattern pattern = Pattern.compile(regex);
-			Matcher matcher = pattern.matcher(html);
+			Matcher matcher = ANCHOR.matcher(html);
 			while (matcher.find()) {
 				try {
 					URL url = new URL(base, matcher.group(1));
@@ -92,7 +126,8 @@ public class LinkFinder {
 
 	/**
 	 * Removes the fragment component of a URL (if present), and properly encodes
-	 * the query string (if necessary).
+	 * the query string (if necessary). A URL with no fragment and nothing to
+	 * encode is returned as it is, without building a {@link URI} for it.
 	 *
 	 * @param url the URL to normalize
 	 * @return normalized URL
@@ -100,10 +135,70 @@ public class LinkFinder {
 	 * @throws MalformedURLException if unable to craft new URL
 	 */
 	public static URL normalize(URL url) throws MalformedURLException, URISyntaxException {
+		if (isNormalized(url)) {
+			return url;
+		}
+
 		return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(),
 				url.getQuery(), null).toURL();
 	}
 
+	/**
+	 * Determines whether normalizing the URL would leave it the same, because it
+	 * has no fragment or user info, its host is valid and written the way
+	 * {@link URI} would write it, and every character is legal in a URI other
+	 * than '%'.
+	 *
+	 * @param url the URL to check
+	 * @return true if the URL is already normalized
+	 */
+	private static boolean isNormalized(URL url) {
+		String host = url.getHost();
+		if (url.getRef() != null || url.getUserInfo() != null || host.isEmpty()) {
+			return false;
+		}
+
+		// like "host:" with an empty port, which URI would drop
+		String authority = url.getPort() < 0 ? host : host + ":" + url.getPort();
+		if (!authority.equals(url.getAuthority()) || !isValidHost(host)) {
+			return false;
+		}
+
+		String text = url.toString();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= LEGAL.length || !LEGAL[c]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines whether {@link URI} accepts the host as a server authority,
+	 * remembering the answer for each host
+	 *
+	 * @param host the host of a URL
+	 * @return true if the host is valid
+	 */
+	private static boolean isValidHost(String host) {
+		Boolean valid = HOSTS.get(host);
+		if (valid == null) {
+			try {
+				new URI("http", null, host, -1, null, null, null);
+				valid = true;
+			} catch (URISyntaxException e) {
+				valid = false;
+			}
+
+			if (HOSTS.size() >= MAX_HOSTS) {
+				HOSTS.clear();
+			}
+			HOSTS.put(host, valid);
+		}
+		return valid;
+	}
+
 	/**
 	 * Determines whether the URL provided uses the HTTP or HTTPS protocol.
 	 *
@@ -111,6 +206,7 @@ public class LinkFinder {
 	 * @return true if the URL uses the HTTP or HTTPS protocol
 	 */
 	public static boolean isHttp(URL url) {
-		return url.getProtocol().matches("(?i)https?");
+		String protocol = url.getProtocol();
+		return protocol.equalsIgnoreCase("http") || protocol.equalsIgnoreCase("https");
 	}
 }
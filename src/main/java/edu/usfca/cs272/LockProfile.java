@@ -0,0 +1,262 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention and hold-time statistics for a {@link MultiReaderLock}: how long
+ * threads waited to acquire the read and write locks, how long they held them,
+ * how often optimistic reads had to fall back to the read lock, and which call
+ * sites spent the most time waiting. Only acquisitions that actually had to
+ * wait walk the stack to find their call site, so the common uncontended case
+ * only costs a few clock reads and counter updates.
+ *
+ * @author troy
+ *
+ */
+public class LockProfile {
+
+	/**
+	 * Number of call sites listed by {@link #toString()}
+	 */
+	public static final int TOP_SITES = 5;
+
+	/**
+	 * Finds the code that asked for the lock, skipping the frames inside the lock
+	 */
+	private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+	/**
+	 * The class whose methods lock on behalf of their callers, or null if the lock
+	 * is used directly
+	 */
+	private final Class<?> owner;
+
+	/**
+	 * Time spent waiting to acquire the read lock
+	 */
+	private final LatencyHistogram readWaits;
+
+	/**
+	 * Time spent waiting to acquire the write lock
+	 */
+	private final LatencyHistogram writeWaits;
+
+	/**
+	 * Time the read lock was held, from a thread's first acquire to its last
+	 * release
+	 */
+	private final LatencyHistogram readHolds;
+
+	/**
+	 * Time the write lock was held, from the first acquire to the last release
+	 */
+	private final LatencyHistogram writeHolds;
+
+	/**
+	 * Number of optimistic reads that were valid without locking
+	 */
+	private final LongAdder optimistic;
+
+	/**
+	 * Number of optimistic reads that fell back to the read lock
+	 */
+	private final LongAdder fallbacks;
+
+	/**
+	 * Total nanoseconds waited per call site, only counting acquisitions that had
+	 * to wait
+	 */
+	private final ConcurrentHashMap<String, LongAdder> siteWaits;
+
+	/**
+	 * Initializes an empty profile of a lock used directly
+	 */
+	public LockProfile() {
+		this(null);
+	}
+
+	/**
+	 * Initializes an empty profile of a lock owned by a class that wraps its own
+	 * methods in the lock. Frames from the owner and its superclasses are skipped
+	 * when finding a call site, so the site is the code that called the owner
+	 * rather than the owner's wrapper.
+	 *
+	 * @param owner the class that owns the lock, or null if the lock is used
+	 *              directly
+	 */
+	public LockProfile(Class<?> owner) {
+		this.owner = owner;
+		readWaits = new LatencyHistogram();
+		writeWaits = new LatencyHistogram();
+		readHolds = new LatencyHistogram();
+		writeHolds = new LatencyHistogram();
+		optimistic = new LongAdder();
+		fallbacks = new LongAdder();
+		siteWaits = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Records an acquisition of the read or write lock
+	 *
+	 * @param write  whether the write lock was acquired
+	 * @param nanos  nanoseconds spent acquiring the lock
+	 * @param waited whether the thread had to wait for other threads
+	 */
+	void acquired(boolean write, long nanos, boolean waited) {
+		(write ? writeWaits : readWaits).record(nanos);
+
+		if (waited) {
+			siteWaits.computeIfAbsent(callSite(), site -> new LongAdder()).add(nanos);
+		}
+	}
+
+	/**
+	 * Records a final release of the read or write lock
+	 *
+	 * @param write whether the write lock was released
+	 * @param nanos nanoseconds the lock was held
+	 */
+	void released(boolean write, long nanos) {
+		(write ? writeHolds : readHolds).record(nanos);
+	}
+
+	/**
+	 * Records an optimistic read
+	 *
+	 * @param valid whether the read was valid without locking
+	 */
+	void optimistic(boolean valid) {
+		(valid ? optimistic : fallbacks).increment();
+	}
+
+	/**
+	 * Returns the first stack frame outside of the lock classes and the class that
+	 * owns the lock
+	 *
+	 * @return the class, method and line that asked for the lock
+	 */
+	private String callSite() {
+		Optional<StackWalker.StackFrame> frame = walker.walk(frames -> frames
+				.dropWhile(f -> f.getClassName().startsWith(LockProfile.class.getName())
+						|| f.getClassName().startsWith(MultiReaderLock.class.getName())
+						|| (owner != null && f.getDeclaringClass().isAssignableFrom(owner)))
+				.findFirst());
+
+		return frame.map(f -> {
+			String name = f.getClassName();
+			return name.substring(name.lastIndexOf('.') + 1) + "." + f.getMethodName() + ":" + f.getLineNumber();
+		}).orElse("unknown");
+	}
+
+	/**
+	 * Returns the time spent waiting to acquire the read lock
+	 *
+	 * @return the read lock wait times
+	 */
+	public LatencyHistogram readWaits() {
+		return readWaits;
+	}
+
+	/**
+	 * Returns the time spent waiting to acquire the write lock
+	 *
+	 * @return the write lock wait times
+	 */
+	public LatencyHistogram writeWaits() {
+		return writeWaits;
+	}
+
+	/**
+	 * Returns the time the read lock was held
+	 *
+	 * @return the read lock hold times
+	 */
+	public LatencyHistogram readHolds() {
+		return readHolds;
+	}
+
+	/**
+	 * Returns the time the write lock was held
+	 *
+	 * @return the write lock hold times
+	 */
+	public LatencyHistogram writeHolds() {
+		return writeHolds;
+	}
+
+	/**
+	 * Returns the number of read lock acquisitions, including reentrant ones
+	 *
+	 * @return the number of read lock acquisitions
+	 */
+	public long reads() {
+		return readWaits.count();
+	}
+
+	/**
+	 * Returns the number of write lock acquisitions, including reentrant ones
+	 *
+	 * @return the number of write lock acquisitions
+	 */
+	public long writes() {
+		return writeWaits.count();
+	}
+
+	/**
+	 * Returns the number of optimistic reads that were valid without locking
+	 *
+	 * @return the number of optimistic reads that did not lock
+	 */
+	public long optimisticReads() {
+		return optimistic.sum();
+	}
+
+	/**
+	 * Returns the number of optimistic reads that fell back to the read lock
+	 *
+	 * @return the number of optimistic reads that locked
+	 */
+	public long fallbacks() {
+		return fallbacks.sum();
+	}
+
+	/**
+	 * Returns the call sites that spent the most time waiting for the lock
+	 *
+	 * @param limit the most call sites to return
+	 * @return call sites and their total nanoseconds waited, longest first
+	 */
+	public List<Map.Entry<String, Long>> topSites(int limit) {
+		List<Map.Entry<String, Long>> sites = new ArrayList<>();
+		for (var entry : siteWaits.entrySet()) {
+			sites.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+		}
+
+		sites.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+		return sites.subList(0, Math.min(limit, sites.size()));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("  Read: %d acquired, %d optimistic, %d optimistic fell back%n", reads(),
+				optimisticReads(), fallbacks()));
+		report.append(String.format("    wait: %s%n", readWaits));
+		report.append(String.format("    hold: %s%n", readHolds));
+		report.append(String.format("  Write: %d acquired%n", writes()));
+		report.append(String.format("    wait: %s%n", writeWaits));
+		report.append(String.format("    hold: %s%n", writeHolds));
+
+		for (Map.Entry<String, Long> site : topSites(TOP_SITES)) {
+			report.append(String.format("  Waited %.3fms at %s%n", site.getValue() / 1e6, site.getKey()));
+		}
+
+		return report.toString();
+	}
+}
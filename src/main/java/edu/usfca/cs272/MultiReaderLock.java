@@ -1,12 +1,16 @@
 package edu.usfca.cs272;
 
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -16,6 +20,26 @@ import org.apache.logging.log4j.Logger;
  * threads, so long as there are no writers. The write lock is exclusive. The
  * active writer is able to acquire read or write locks as long as it is active.
  *
+ * <p>
+ * Also supports optimistic reads similar to {@link StampedLock}: a reader takes
+ * a stamp with {@link #tryOptimisticRead()}, reads without locking, and then
+ * checks with {@link #validate(long)} that no writer was active in between. If
+ * the stamp is not valid, the reader falls back to the read lock. See
+ * {@link #read(Supplier)}.
+ *
+ * <p>
+ * A {@link Policy} decides who goes next when readers and writers are both
+ * waiting. Each waiting thread waits on its own condition, so releasing the
+ * lock only wakes the threads that can now acquire it instead of every waiting
+ * thread. Read locks are reentrant under every policy, so a thread that already
+ * holds the read lock is never made to wait behind a queued writer.
+ *
+ * <p>
+ * Profiling of wait and hold times can be turned on with
+ * {@link #setProfiling(boolean)}, or for every lock by setting the level of
+ * this class's logger to DEBUG. When profiling is off, locking only checks one
+ * extra field. See {@link LockProfile}.
+ *
  * <!-- simplified lock used for this class -->
  * 
  * @see SimpleLock
@@ -30,6 +54,34 @@ import org.apache.logging.log4j.Logger;
  * @version Spring 2023
  */
 public class MultiReaderLock {
+	/**
+	 * Decides the order in which waiting readers and writers acquire the lock.
+	 */
+	public static enum Policy {
+		/**
+		 * New readers are let in whenever no writer is active, even if writers are
+		 * waiting. Gives the most read throughput but writers can starve while there
+		 * is a steady stream of readers.
+		 */
+		READER_PREFERRED,
+
+		/**
+		 * New readers wait while any writer is waiting, and a released lock goes to a
+		 * waiting writer before any waiting reader. Readers can starve while there
+		 * is a steady stream of writers.
+		 */
+		WRITER_PREFERRED,
+
+		/**
+		 * Threads acquire the lock in the order they asked for it, with consecutive
+		 * waiting readers let in together. Neither readers nor writers starve.
+		 */
+		FAIR
+	}
+
+	/** The policy deciding who acquires the lock next. */
+	private final Policy policy;
+
 	/** The conditional lock used for reading. */
 	private final SimpleLock readerLock;
 
@@ -45,9 +97,33 @@ public class MultiReaderLock {
 	/** The thread that holds the write lock. */
 	private Thread activeWriter;
 
+	/** The threads waiting for either lock, in the order they started waiting. */
+	private final ArrayDeque<Waiter> waiting;
+
+	/**
+	 * The number of read locks held by the current thread, and when it first
+	 * acquired them if profiling.
+	 */
+	private final ThreadLocal<long[]> holds;
+
+	/** When the write lock was first acquired, if profiling. */
+	private long writeAcquired;
+
+	/** The contention statistics, or null if not profiling. */
+	private volatile LockProfile profile;
+
+	/** The class that locks on behalf of its callers, or null if none. */
+	private final Class<?> owner;
+
 	/** The log4j2 logger. */
 	private static final Logger log = LogManager.getLogger();
 
+	/**
+	 * Incremented whenever the write lock is first acquired and finally released,
+	 * so it is odd while a writer is active and changes whenever one was.
+	 */
+	private volatile long version;
+
 	/**
 	 * The lock object used for synchronized access of readers and writers. For
 	 * security reasons, a separate private final lock object is used.
@@ -56,21 +132,80 @@ public class MultiReaderLock {
 	 *      "https://wiki.sei.cmu.edu/confluence/display/java/LCK00-J.+Use+private+final+lock+objects+to+synchronize+classes+that+may+interact+with+untrusted+code">
 	 *      SEI CERT Oracle Coding Standard for Java</a>
 	 */
-	private final Object lock;
+	private final ReentrantLock lock;
 
 	/**
-	 * Initializes a new simple read/write lock.
+	 * Initializes a new simple read/write lock that prefers readers.
 	 */
 	public MultiReaderLock() {
+		this(Policy.READER_PREFERRED);
+	}
+
+	/**
+	 * Initializes a new simple read/write lock with the provided policy.
+	 *
+	 * @param policy the policy deciding who acquires the lock next
+	 */
+	public MultiReaderLock(Policy policy) {
+		this(policy, null);
+	}
+
+	/**
+	 * Initializes a new simple read/write lock with the provided policy, owned by
+	 * a class that wraps its own methods in the lock. Profiling reports the code
+	 * that called the owner as the call site instead of the owner's methods.
+	 *
+	 * @param policy the policy deciding who acquires the lock next
+	 * @param owner  the class that owns the lock, or null if the lock is used
+	 *               directly
+	 * @see LockProfile#LockProfile(Class)
+	 */
+	public MultiReaderLock(Policy policy, Class<?> owner) {
+		this.policy = policy;
+		this.owner = owner;
+
 		readerLock = new ReadLock();
 		writerLock = new WriteLock();
 
-		lock = new Object();
+		lock = new ReentrantLock();
+		waiting = new ArrayDeque<>();
+		holds = ThreadLocal.withInitial(() -> new long[2]);
 
 		readers = 0;
 		writers = 0;
 
 		activeWriter = null;
+		version = 0;
+
+		profile = log.isDebugEnabled() ? new LockProfile(owner) : null;
+	}
+
+	/**
+	 * Returns the policy deciding who acquires the lock next.
+	 *
+	 * @return the policy of this lock
+	 */
+	public Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * Turns profiling on or off. Turning it on again starts a new profile.
+	 *
+	 * @param enabled whether to profile this lock
+	 * @see #profile()
+	 */
+	public void setProfiling(boolean enabled) {
+		profile = enabled ? new LockProfile(owner) : null;
+	}
+
+	/**
+	 * Returns the contention statistics collected since profiling was turned on.
+	 *
+	 * @return the profile, or null if not profiling
+	 */
+	public LockProfile profile() {
+		return profile;
 	}
 
 	/**
@@ -91,14 +226,84 @@ public class MultiReaderLock {
 		return writerLock;
 	}
 
+	/**
+	 * Returns a stamp for an optimistic read, without locking. The stamp is only
+	 * valid if no writer is active now and none becomes active before the stamp
+	 * is validated.
+	 *
+	 * @return a stamp to check with {@link #validate(long)} after reading
+	 */
+	public long tryOptimisticRead() {
+		return version;
+	}
+
+	/**
+	 * Determines whether no writer was active since the stamp was returned by
+	 * {@link #tryOptimisticRead()}, in which case anything read in between is
+	 * consistent.
+	 *
+	 * @param stamp the stamp returned by {@link #tryOptimisticRead()}
+	 * @return true if the reads since the stamp was taken can be trusted
+	 */
+	public boolean validate(long stamp) {
+		VarHandle.acquireFence(); // keeps the reads before this from moving after it
+		return (stamp & 1) == 0 && stamp == version;
+	}
+
+	/**
+	 * Reads optimistically without locking, and only if a writer interferes reads
+	 * again while holding the read lock. The reader may see inconsistent data
+	 * while a writer is active, so like {@link StampedLock} it should only copy
+	 * fields such as a size or counter. Walking a map or set that a writer may be
+	 * changing can loop forever before the read is validated, so use the read
+	 * lock for those. Any runtime exception thrown during the optimistic attempt
+	 * is ignored.
+	 *
+	 * @param <T>    the type of value read
+	 * @param reader the read to perform
+	 * @return the value read
+	 */
+	public <T> T read(Supplier<T> reader) {
+		long stamp = tryOptimisticRead();
+		LockProfile profile = this.profile;
+
+		if ((stamp & 1) == 0) {
+			try {
+				T value = reader.get();
+				if (validate(stamp)) {
+					if (profile != null) {
+						profile.optimistic(true);
+					}
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// inconsistent state seen while a writer was active; read again below
+			}
+		}
+
+		if (profile != null) {
+			profile.optimistic(false);
+		}
+
+		readerLock.lock();
+		try {
+			return reader.get();
+		} finally {
+			readerLock.unlock();
+		}
+	}
+
 	/**
 	 * Returns the number of active readers.
 	 *
 	 * @return the number of active readers
 	 */
 	public int readers() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return readers;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -108,8 +313,11 @@ public class MultiReaderLock {
 	 * @return the number of active writers
 	 */
 	public int writers() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return writers;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -123,8 +331,190 @@ public class MultiReaderLock {
 	 * @see Thread#currentThread()
 	 */
 	public boolean isActiveWriter() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return Thread.currentThread().equals(activeWriter);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of threads waiting for either lock.
+	 *
+	 * @return the number of waiting threads
+	 */
+	public int waiting() {
+		lock.lock();
+		try {
+			return waiting.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A thread waiting for the read or write lock.
+	 */
+	private class Waiter {
+		/** Whether the thread is waiting for the write lock. */
+		private final boolean writer;
+
+		/** Whether the thread already holds the read lock it is waiting for. */
+		private final boolean reentrant;
+
+		/** The condition the thread waits on until it may acquire the lock. */
+		private final Condition turn;
+
+		/**
+		 * Initializes a waiter for the current thread.
+		 *
+		 * @param writer whether the thread is waiting for the write lock
+		 */
+		private Waiter(boolean writer) {
+			this.writer = writer;
+			this.reentrant = !writer && holds.get()[0] > 0;
+			this.turn = lock.newCondition();
+		}
+	}
+
+	/**
+	 * Determines whether the current thread may acquire the read lock now. Must
+	 * be called while holding {@link #lock}.
+	 *
+	 * @param self the waiter for the thread, or null if it is not waiting yet
+	 * @return true if the thread may acquire the read lock
+	 */
+	private boolean canRead(Waiter self) {
+		if (writers > 0) {
+			return activeWriter == Thread.currentThread();
+		}
+
+		if (policy == Policy.READER_PREFERRED || holds.get()[0] > 0) {
+			return true; // reentrant readers never wait behind a writer
+		}
+
+		for (Waiter other : waiting) {
+			if (other == self && policy == Policy.FAIR) {
+				return true;
+			}
+			if (other.writer) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines whether the current thread may acquire the write lock now.
+	 * Waiting writers always go in the order they started waiting. Must be called
+	 * while holding {@link #lock}.
+	 *
+	 * @param self the waiter for the thread, or null if it is not waiting yet
+	 * @return true if the thread may acquire the write lock
+	 */
+	private boolean canWrite(Waiter self) {
+		if (writers > 0) {
+			return activeWriter == Thread.currentThread();
+		}
+
+		if (readers > 0) {
+			return false;
+		}
+
+		for (Waiter other : waiting) {
+			if (other == self) {
+				return true;
+			}
+			if (other.writer || policy == Policy.FAIR) {
+				return false;
+			}
+		}
+		return self == null;
+	}
+
+	/**
+	 * Waits until the current thread may acquire the lock. Must be called while
+	 * holding {@link #lock}.
+	 *
+	 * @param writer whether the thread wants the write lock
+	 * @return true if the thread had to wait for other threads
+	 */
+	private boolean await(boolean writer) {
+		if (writer ? canWrite(null) : canRead(null)) {
+			return false;
+		}
+
+		Waiter self = new Waiter(writer);
+		waiting.addLast(self);
+
+		try {
+			while (!(writer ? canWrite(self) : canRead(self))) {
+				self.turn.awaitUninterruptibly();
+			}
+		} finally {
+			waiting.remove(self);
+		}
+
+		if (!writer) {
+			wakeReaders(); // lets the readers right behind this one in too
+		}
+		return true;
+	}
+
+	/**
+	 * Wakes the waiting threads that may now acquire the lock, and no others.
+	 * Must be called while holding {@link #lock}.
+	 */
+	private void wake() {
+		if (writers > 0 || waiting.isEmpty()) {
+			return;
+		}
+
+		Waiter writer = null;
+		boolean readerWaiting = false;
+
+		for (Waiter other : waiting) {
+			if (other.writer) {
+				writer = writer == null ? other : writer;
+			} else if (other.reentrant) {
+				other.turn.signal(); // holds the read lock already, so goes first
+			} else {
+				readerWaiting = true;
+			}
+		}
+
+		boolean writerFirst;
+		if (policy == Policy.READER_PREFERRED) {
+			writerFirst = !readerWaiting;
+		} else if (policy == Policy.WRITER_PREFERRED) {
+			writerFirst = writer != null;
+		} else {
+			writerFirst = waiting.peekFirst().writer;
+		}
+
+		if (!writerFirst) {
+			wakeReaders();
+		} else if (readers == 0) {
+			writer.turn.signal();
+		}
+	}
+
+	/**
+	 * Wakes the waiting readers that may now acquire the read lock. Must be
+	 * called while holding {@link #lock}.
+	 */
+	private void wakeReaders() {
+		if (writers > 0) {
+			return;
+		}
+
+		for (Waiter other : waiting) {
+			if (!other.writer) {
+				other.turn.signal();
+			} else if (policy != Policy.READER_PREFERRED) {
+				return; // readers behind a waiting writer keep waiting
+			}
 		}
 	}
 
@@ -157,23 +547,34 @@ public class MultiReaderLock {
 	private class ReadLock implements SimpleLock {
 		/**
 		 * Controls access to the read lock. The active thread is forced to wait while
-		 * there are any active writers and it is not the active writer thread. Once
-		 * safe, the thread is allowed to acquire a read lock by incrementing the number
-		 * of active readers.
+		 * there are any active writers and it is not the active writer thread, or
+		 * while the policy lets a waiting writer go first. Once safe, the thread is
+		 * allowed to acquire a read lock by incrementing the number of active
+		 * readers.
 		 */
 		@Override
 		public void lock() {
+			LockProfile profile = MultiReaderLock.this.profile;
+			long start = profile == null ? 0 : System.nanoTime();
+			boolean waited;
+
+			lock.lock();
 			try {
-				synchronized (lock) {
-					while (writers > 0 && !isActiveWriter()) {
-						lock.wait();
-					}
+				waited = await(false);
+				readers++;
+			} finally {
+				lock.unlock();
+			}
 
-					readers++;
+			if (profile != null) {
+				long now = System.nanoTime();
+				long[] held = holds.get();
+				if (held[0]++ == 0) {
+					held[1] = now;
 				}
-			} catch (InterruptedException ex) {
-				log.catching(Level.DEBUG, ex);
-				Thread.currentThread().interrupt();
+				profile.acquired(false, now - start, waited);
+			} else {
+				holds.get()[0]++;
 			}
 		}
 
@@ -185,16 +586,28 @@ public class MultiReaderLock {
 		 */
 		@Override
 		public void unlock() throws IllegalStateException {
-			synchronized (lock) {
+			lock.lock();
+			try {
 				if (readers == 0) {
 					throw new IllegalStateException();
 				} else {
 					readers--;
 
+					long[] held = holds.get();
+					if (held[0] > 0 && --held[0] == 0 && held[1] != 0) {
+						LockProfile profile = MultiReaderLock.this.profile;
+						if (profile != null) {
+							profile.released(false, System.nanoTime() - held[1]);
+						}
+						held[1] = 0;
+					}
+
 					if (readers == 0) { // Hey there no more readers, so writers can execute
-						lock.notifyAll(); // notifies every thread waiting
+						wake();
 					}
 				}
+			} finally {
+				lock.unlock();
 			}
 		}
 	}
@@ -212,18 +625,26 @@ public class MultiReaderLock {
 		 */
 		@Override
 		public void lock() {
+			LockProfile profile = MultiReaderLock.this.profile;
+			long start = profile == null ? 0 : System.nanoTime();
+			boolean waited;
+
+			lock.lock();
 			try {
-				synchronized (lock) {
-					while ((writers > 0 || readers > 0) && !isActiveWriter()) {
-						lock.wait();
-					}
+				waited = await(true);
 
-					writers++;
-					activeWriter = Thread.currentThread();
+				if (writers++ == 0) {
+					version++; // now odd so optimistic reads fail
+					VarHandle.storeStoreFence(); // the odd version is seen before any write
+					writeAcquired = profile == null ? 0 : System.nanoTime();
 				}
-			} catch (InterruptedException ex) {
-				log.catching(Level.DEBUG, ex);
-				Thread.currentThread().interrupt();
+				activeWriter = Thread.currentThread();
+			} finally {
+				lock.unlock();
+			}
+
+			if (profile != null) {
+				profile.acquired(true, System.nanoTime() - start, waited);
 			}
 		}
 
@@ -238,7 +659,8 @@ public class MultiReaderLock {
 		 */
 		@Override
 		public void unlock() throws IllegalStateException, ConcurrentModificationException {
-			synchronized (lock) {
+			lock.lock();
+			try {
 				if (writers == 0) {
 					throw new IllegalStateException();
 				}
@@ -248,9 +670,18 @@ public class MultiReaderLock {
 					writers--;
 					if (writers == 0) { // Hey there no more writers, so readers can execute
 						activeWriter = null; // Set it to null when there are no more writers
-						lock.notifyAll(); // notifies every thread waiting
+						version++; // even again, but different from any earlier stamp
+
+						LockProfile profile = MultiReaderLock.this.profile;
+						if (profile != null && writeAcquired != 0) {
+							profile.released(true, System.nanoTime() - writeAcquired);
+						}
+
+						wake();
 					}
 				}
+			} finally {
+				lock.unlock();
 			}
 		}
 	}
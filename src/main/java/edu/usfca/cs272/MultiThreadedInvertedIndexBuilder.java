@@ -1,10 +1,13 @@
 package edu.usfca.cs272;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -12,7 +15,15 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * Multi-threaded implementation of InvertedIndexBuilder that uses a static
- * inner class to build the InvertedIndex data structure path by path
+ * inner class to build the InvertedIndex data structure path by path. Each file
+ * is indexed into its own local InvertedIndex returned through a future, and
+ * each local index is added to the shared ThreadSafeInvertedIndex as soon as
+ * it completes, so the index fills in as the build goes and never needs a
+ * second copy of the whole build.
+ * 
+ * Each subdirectory is listed by its own task too, so the files found in one
+ * directory start indexing while others are still being listed, and a huge or
+ * slow tree is listed by every worker instead of only the calling thread.
  * 
  * @author troy
  *
@@ -26,24 +37,19 @@ public class MultiThreadedInvertedIndexBuilder {
 
 	/**
 	 * Traverses through a path if it is a directory. If it not a directory and is a
-	 * txt/text file, it will update the data structures
+	 * txt/text file, it will submit a task to index the file and add its result to
+	 * the data structures. Only the directory itself is listed on the calling
+	 * thread; each subdirectory is listed by a task of its own.
 	 * 
 	 * @param directory path to check
 	 * @param data      Data structures to modify
 	 * @param queue     current queue
+	 * @return a future that completes once every file is added to data
 	 * @throws IOException if an IO error occurs
 	 */
-	public static void traverseDirectory(Path directory, ThreadSafeInvertedIndex data, WorkQueue queue)
-			throws IOException {
-		try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
-			for (Path path : listing) {
-				if (Files.isDirectory(path)) {
-					traverseDirectory(path, data, queue);
-				} else if (InvertedIndexBuilder.isTxtFile(path)) {
-					queue.execute(new Task(path, data));
-				}
-			}
-		}
+	public static CompletableFuture<Void> traverseDirectory(Path directory, ThreadSafeInvertedIndex data,
+			WorkQueue queue) throws IOException {
+		return index(directory, data, queue, null);
 	}
 
 	/**
@@ -53,55 +59,258 @@ public class MultiThreadedInvertedIndexBuilder {
 	 * @throws IOException If an IO error occurs
 	 */
 	public static void build(Path path, ThreadSafeInvertedIndex data, WorkQueue queue) throws IOException {
+		start(path, data, queue).join();
+	}
+
+	/**
+	 * Starts building from the path without waiting for the build to finish, so
+	 * other work can share the same WorkQueue
+	 * 
+	 * @param path  Path to process
+	 * @param data  Data structure to update
+	 * @param queue Current WorkQueue
+	 * @return a future that completes once every file is added to data
+	 * @throws IOException If an IO error occurs
+	 */
+	public static CompletableFuture<Void> start(Path path, ThreadSafeInvertedIndex data, WorkQueue queue)
+			throws IOException {
+		return index(path, data, queue, null);
+	}
+
+	/**
+	 * Starts building from the path like
+	 * {@link #start(Path, ThreadSafeInvertedIndex, WorkQueue)}, only reading the
+	 * files added or changed since the last build. The files that are unchanged
+	 * are added with their stems from the last build as they are checked, and the
+	 * files that are gone are forgotten once every file was checked.
+	 * 
+	 * @param path     Path to process
+	 * @param data     Data structure to update
+	 * @param queue    Current WorkQueue
+	 * @param manifest the files indexed by the last build, updated to this one
+	 * @return a future that completes once every file is added to data
+	 * @throws IOException If an IO error occurs
+	 */
+	public static CompletableFuture<Void> start(Path path, ThreadSafeInvertedIndex data, WorkQueue queue,
+			FileManifest manifest) throws IOException {
+		return index(path, data, queue, manifest).thenRun(manifest::forget);
+	}
+
+	/**
+	 * Submits the tasks to index the path, adding each local index to the data
+	 * structures as it completes
+	 * 
+	 * @param path     Path to process
+	 * @param data     Data structure to update
+	 * @param queue    Current WorkQueue
+	 * @param manifest the files indexed by the last build, or null to index every
+	 *                 file
+	 * @return a future that completes once every file is added to data
+	 * @throws IOException If an IO error occurs
+	 */
+	private static CompletableFuture<Void> index(Path path, ThreadSafeInvertedIndex data, WorkQueue queue,
+			FileManifest manifest) throws IOException {
+		Traversal traversal = new Traversal(queue, data, manifest);
 
 		if (Files.isDirectory(path)) {
-			traverseDirectory(path, data, queue);
+			traversal.list(path);
 		} else {
-			queue.execute(new Task(path, data));
+			try {
+				traversal.file(path);
+			} finally {
+				traversal.done(); // the path itself, counted when the traversal started
+			}
 		}
-
-		queue.finish();
+		return traversal.finished;
 	}
 
 	/**
+	 * The state shared by the listing tasks of one directory tree. Counts the
+	 * directories not yet listed and the files not yet added to the index, so the
+	 * build is known to be finished once both are done.
+	 * 
 	 * @author troy
 	 *
 	 */
-	private static class Task implements Runnable {
+	private static class Traversal {
+
+		/**
+		 * Queue to submit the listing and indexing tasks to
+		 */
+		private final WorkQueue queue;
 
 		/**
-		 * data structure to set
+		 * Data structure to add each file to
 		 */
 		private final ThreadSafeInvertedIndex data;
 
+		/**
+		 * The files indexed by the last build, or null to index every file
+		 */
+		private final FileManifest manifest;
+
+		/**
+		 * Number of directories not done being listed and files not yet added
+		 */
+		private int remaining;
+
+		/**
+		 * Completes once every directory is listed and every file added, or
+		 * exceptionally if any task failed
+		 */
+		private final CompletableFuture<Void> finished;
+
+		/**
+		 * @param queue    Queue to submit the listing and indexing tasks to
+		 * @param data     Data structure to add each file to
+		 * @param manifest The files indexed by the last build, or null to index
+		 *                 every file
+		 */
+		private Traversal(WorkQueue queue, ThreadSafeInvertedIndex data, FileManifest manifest) {
+			this.queue = queue;
+			this.data = data;
+			this.manifest = manifest;
+			this.remaining = 1; // the path listed or indexed on the calling thread
+			this.finished = new CompletableFuture<>();
+		}
+
+		/**
+		 * Lists a directory, submitting a task to list each subdirectory and a task
+		 * to index each txt/text file. A task the queue rejects is run on this
+		 * thread instead, so no part of the tree is dropped.
+		 * 
+		 * @param directory directory to list
+		 * @throws IOException if an IO error occurs
+		 */
+		private void list(Path directory) throws IOException {
+			try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+				for (Path path : listing) {
+					if (Files.isDirectory(path)) {
+						started();
+						try {
+							queue.execute(() -> listSubdirectory(path));
+						} catch (RejectedExecutionException e) {
+							log.catching(Level.DEBUG, e);
+							listSubdirectory(path);
+						}
+					} else if (InvertedIndexBuilder.isTxtFile(path)) {
+						started();
+						file(path);
+					}
+				}
+			} catch (DirectoryIteratorException e) {
+				throw e.getCause();
+			} finally {
+				done();
+			}
+		}
+
+		/**
+		 * Submits a task to index the file, adding its local index to the data
+		 * structures once it completes. The file must already be counted.
+		 * 
+		 * @param path file to index
+		 */
+		private void file(Path path) {
+			Task task = new Task(path, manifest);
+			CompletableFuture<InvertedIndex> local;
+			try {
+				local = queue.submit(task);
+			} catch (RejectedExecutionException e) {
+				log.catching(Level.DEBUG, e);
+				local = CompletableFuture.completedFuture(task.call());
+			}
+
+			local.thenAccept(data::addAll).whenComplete((added, e) -> {
+				if (e != null) {
+					finished.completeExceptionally(e);
+				}
+				done();
+			});
+		}
+
+		/**
+		 * Lists a subdirectory on a worker, skipping it if it cannot be listed
+		 * 
+		 * @param directory directory to list
+		 */
+		private void listSubdirectory(Path directory) {
+			try {
+				list(directory);
+			} catch (IOException e) {
+				// keeps whatever was found before the listing failed
+				System.err.printf("Error: unable to list %s%n", directory);
+				log.catching(Level.ERROR, e);
+			} catch (RuntimeException e) {
+				finished.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Counts a directory about to be listed or a file about to be indexed
+		 */
+		private synchronized void started() {
+			remaining++;
+		}
+
+		/**
+		 * Counts a directory done being listed or a file done being added,
+		 * completing {@link #finished} once there are none left
+		 */
+		private synchronized void done() {
+			remaining--;
+			if (remaining == 0) {
+				finished.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * Indexes a single file into its own local InvertedIndex
+	 * 
+	 * @author troy
+	 *
+	 */
+	private static class Task implements Callable<InvertedIndex> {
+
 		/**
 		 * Path to set
 		 */
 		private final Path path;
 
 		/**
-		 * @param data Data object to ubdate
-		 * @param path Path to search
+		 * The files indexed by the last build, or null to index the file anyway
 		 */
-		private Task(Path path, ThreadSafeInvertedIndex data) {
-			this.data = data;
+		private final FileManifest manifest;
+
+		/**
+		 * @param path     Path to search
+		 * @param manifest The files indexed by the last build, or null to index the
+		 *                 file anyway
+		 */
+		private Task(Path path, FileManifest manifest) {
 			this.path = path;
+			this.manifest = manifest;
 			log.debug("In Constructor. Path: " + this.path);
 		}
 
 		@Override
-		public void run() {
-			log.debug("Starting run() method on path: " + path);
+		public InvertedIndex call() {
+			log.debug("Starting call() method on path: " + path);
+			InvertedIndex local = new InvertedIndex();
 			try {
-				InvertedIndex local = new InvertedIndex();
-				InvertedIndexBuilder.processFile(path, local);
-				data.addAll(local);
+				if (manifest == null) {
+					InvertedIndexBuilder.processFile(path, local);
+				} else {
+					InvertedIndexBuilder.processFile(path, local, manifest);
+				}
 			} catch (IOException e) {
+				System.err.printf("Error: unable to index %s%n", path);
 				log.catching(Level.ERROR, e);
-				throw new UncheckedIOException(e);
 			}
-			log.debug("Completed run() method on: " + path);
+			log.debug("Completed call() method on: " + path);
+			return local;
 		}
 
 	}
-}
+}
\ No newline at end of file
@@ -9,10 +9,17 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -20,7 +27,9 @@ import edu.usfca.cs272.InvertedIndex.SearchResult;
 
 /**
  * Multi-threaded implementation of QueryBuilder that uses inner static class to
- * build the Query line by line
+ * build the Query line by line. Each task returns its search results through a
+ * future, and the results are only added to the query data structure once the
+ * tasks are done, so the tasks never contend over a shared lock.
  * 
  * @author troy
  *
@@ -40,9 +49,20 @@ public class MultiThreadedQueryBuilder implements Query {
 	private final ThreadSafeInvertedIndex data;
 
 	/**
-	 * WorkQueue object to use to add Task
+	 * Task group on the shared WorkQueue used to add Task
 	 */
-	private final WorkQueue queue;
+	private final WorkQueue.TaskGroup group;
+
+	/**
+	 * Results of the submitted tasks that are not yet added to query
+	 */
+	private final ConcurrentLinkedQueue<CompletableFuture<Map.Entry<String, ArrayList<SearchResult>>>> pending;
+
+	/**
+	 * Query keys that have already been claimed by a task, used to avoid searching
+	 * the same query twice
+	 */
+	private final Set<String> claimed;
 
 	/**
 	 * Constructor that initializes a new TreeSet and TreeMap for queryWords and
@@ -54,7 +74,9 @@ public class MultiThreadedQueryBuilder implements Query {
 	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex data, WorkQueue queue) {
 		query = new TreeMap<>();
 		this.data = data;
-		this.queue = queue;
+		this.group = queue.newGroup();
+		this.pending = new ConcurrentLinkedQueue<>();
+		this.claimed = ConcurrentHashMap.newKeySet();
 	}
 
 	/**
@@ -68,7 +90,7 @@ public class MultiThreadedQueryBuilder implements Query {
 	@Override
 	public void buildQueries(Path path, boolean partial) throws IOException {
 		Query.super.buildQueries(path, partial);
-		queue.finish();
+		collect();
 	}
 
 	/**
@@ -80,7 +102,33 @@ public class MultiThreadedQueryBuilder implements Query {
 	 */
 	@Override
 	public void buildQueries(String line, boolean partial) {
-		queue.execute(new Task(line, partial));
+		pending.add(group.submit(new Task(line, partial)).exceptionally(e -> {
+			log.catching(Level.ERROR, e);
+			return null;
+		}));
+	}
+
+	/**
+	 * Waits for the submitted tasks to finish and adds their results to query
+	 */
+	private void collect() {
+		group.finish();
+
+		ArrayList<CompletableFuture<Map.Entry<String, ArrayList<SearchResult>>>> done = new ArrayList<>();
+		CompletableFuture<Map.Entry<String, ArrayList<SearchResult>>> next;
+		while ((next = pending.poll()) != null) {
+			done.add(next);
+		}
+
+		List<Map.Entry<String, ArrayList<SearchResult>>> results = WorkQueue.collect(done).join();
+
+		synchronized (query) {
+			for (Map.Entry<String, ArrayList<SearchResult>> result : results) {
+				if (result != null) {
+					query.put(result.getKey(), result.getValue());
+				}
+			}
+		}
 	}
 
 	/**
@@ -90,6 +138,7 @@ public class MultiThreadedQueryBuilder implements Query {
 	 */
 	@Override
 	public void addAll(QueryBuilder other) {
+		collect();
 		synchronized (query) {
 			for (String currentQuery : other.viewQueries()) {
 				query.putIfAbsent(currentQuery, new ArrayList<>());
@@ -107,6 +156,7 @@ public class MultiThreadedQueryBuilder implements Query {
 	 */
 	@Override
 	public Set<String> viewQueries() {
+		collect();
 		synchronized (query) {
 			return Collections.unmodifiableSet(query.keySet());
 		}
@@ -122,6 +172,7 @@ public class MultiThreadedQueryBuilder implements Query {
 	 */
 	@Override
 	public Collection<SearchResult> viewSearchResults(String line) {
+		collect();
 		synchronized (query) {
 			TreeSet<String> words = FileStemmer.uniqueStems(line); // Stems line to get unique words
 			String queryLine = ""; // Initialize String value that is used as the key in query
@@ -144,6 +195,7 @@ public class MultiThreadedQueryBuilder implements Query {
 	 */
 	@Override
 	public void writeQuery(Path path) throws IOException {
+		collect();
 		synchronized (query) {
 			try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
 				Query.writeQuery(query, writer, 0);
@@ -157,10 +209,13 @@ public class MultiThreadedQueryBuilder implements Query {
 	private static final Logger log = LogManager.getLogger();
 
 	/**
+	 * Searches a single query line and returns the query key and its results, or
+	 * null if the line is empty or the query was already claimed by another task
+	 * 
 	 * @author troy
 	 *
 	 */
-	private class Task implements Runnable {
+	private class Task implements Callable<Map.Entry<String, ArrayList<SearchResult>>> {
 
 		/**
 		 * Query line to use
@@ -185,26 +240,20 @@ public class MultiThreadedQueryBuilder implements Query {
 		}
 
 		@Override
-		public void run() {
+		public Map.Entry<String, ArrayList<SearchResult>> call() {
 			TreeSet<String> words = FileStemmer.uniqueStems(line);
 			if (words.isEmpty()) {
-				return;
+				return null;
 			}
 			String key = String.join(" ", words);
 
-			synchronized (query) {
-				if (query.containsKey(key)) {
-					return;
-				}
-				query.put(key, null);
+			if (!claimed.add(key)) {
+				return null;
 			}
 			var local = data.search(words, partial);
 
-			synchronized (query) {
-				query.put(key, local);
-			}
-
-			log.debug("Completed run() method on: " + line);
+			log.debug("Completed call() method on: " + line);
+			return Map.entry(key, local);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the UTF-8 bytes of a page as they arrive into its text, with every
+ * line ending turned into a single line feed and no line ending at the end.
+ * This is the same text as decoding the whole body at once and joining its
+ * {@link String#lines()} with line feeds, without keeping the bytes, the
+ * decoded body or its lines around at the same time.
+ *
+ * @author troy
+ *
+ */
+public class PageWriter extends OutputStream {
+
+	/**
+	 * Size of the decoding buffers
+	 */
+	private static final int BUFFER = 8192;
+
+	/**
+	 * Decodes UTF-8, replacing malformed input like {@link String#String(byte[],
+	 * java.nio.charset.Charset)}
+	 */
+	private final CharsetDecoder decoder;
+
+	/**
+	 * Bytes not decoded yet, like the start of a character split between writes
+	 */
+	private final ByteBuffer bytes;
+
+	/**
+	 * Characters decoded but not added to the text yet
+	 */
+	private final CharBuffer chars;
+
+	/**
+	 * The text so far, or null once finished
+	 */
+	private StringBuilder text;
+
+	/**
+	 * Whether the last character was a carriage return, so a line feed right
+	 * after it is part of the same line ending
+	 */
+	private boolean afterReturn;
+
+	/**
+	 * The finished text, or null until {@link #text()} is called
+	 */
+	private String finished;
+
+	/**
+	 * Initializes an empty page
+	 */
+	public PageWriter() {
+		this.decoder = UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate(BUFFER);
+		this.chars = CharBuffer.allocate(BUFFER);
+		this.text = new StringBuilder();
+		this.afterReturn = false;
+		this.finished = null;
+	}
+
+	@Override
+	public void write(int b) {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Decodes all of the remaining bytes in the buffer
+	 *
+	 * @param buffer the bytes to decode
+	 */
+	public void write(ByteBuffer buffer) {
+		if (finished != null) {
+			throw new IllegalStateException("Page already finished");
+		}
+
+		while (buffer.hasRemaining()) {
+			int n = Math.min(buffer.remaining(), bytes.remaining());
+			ByteBuffer slice = buffer.slice();
+			slice.limit(n);
+			bytes.put(slice);
+			buffer.position(buffer.position() + n);
+
+			bytes.flip();
+			decode(false);
+			bytes.compact();
+		}
+	}
+
+	/**
+	 * Decodes the bytes in the buffer into the text
+	 *
+	 * @param end whether no more bytes will follow
+	 */
+	private void decode(boolean end) {
+		CoderResult result;
+		do {
+			result = decoder.decode(bytes, chars, end);
+			append();
+		} while (result.isOverflow());
+	}
+
+	/**
+	 * Adds the decoded characters to the text, turning each line ending into a
+	 * line feed
+	 */
+	private void append() {
+		chars.flip();
+		while (chars.hasRemaining()) {
+			char c = chars.get();
+
+			if (c == '\r') {
+				text.append('\n');
+				afterReturn = true;
+			} else {
+				if (c != '\n' || !afterReturn) {
+					text.append(c);
+				}
+				afterReturn = false;
+			}
+		}
+		chars.clear();
+	}
+
+	/**
+	 * Finishes decoding and returns the text of the page. Bytes may not be
+	 * written after this.
+	 *
+	 * @return the text
+	 */
+	public String text() {
+		if (finished == null) {
+			bytes.flip();
+			decode(true);
+			while (decoder.flush(chars).isOverflow()) {
+				append();
+			}
+			append();
+
+			// the last line does not keep its line ending
+			if (text.length() > 0 && text.charAt(text.length() - 1) == '\n') {
+				text.setLength(text.length() - 1);
+			}
+
+			finished = text.toString();
+			text = null;
+		}
+
+		return finished;
+	}
+}
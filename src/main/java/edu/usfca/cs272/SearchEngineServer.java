@@ -14,16 +14,25 @@ import org.eclipse.jetty.servlet.ServletHolder;
  */
 public class SearchEngineServer {
 	/**
-	 * Creates a server on the provided port and the InvertedIndex object to use
-	 * 
+	 * The Jetty server started by this object, or null if not started
+	 */
+	private Server server;
+
+	/**
+	 * Creates a server on the provided port and the InvertedIndex object to use.
+	 * Returns once the server is started so that the WorkQueue can keep being used
+	 * for other work (like crawling) while the server handles requests.
+	 *
 	 * @param port  Port to bind to
 	 * @param data  InvertedIndex object for Servlet to use
 	 * @param queue WorkQueue object for Servlet to use
 	 * @throws Exception   If an Exception occurs
 	 * @throws IOException If an IO error occurs
+	 *
+	 * @see #join()
 	 */
 	public void startServer(int port, ThreadSafeInvertedIndex data, WorkQueue queue) throws Exception {
-		Server server = new Server(port);
+		server = new Server(port);
 
 		ServletHandler handler = new ServletHandler();
 
@@ -31,6 +40,28 @@ public class SearchEngineServer {
 
 		server.setHandler(handler);
 		server.start();
-		server.join();
+	}
+
+	/**
+	 * Waits for the started server to stop. Does nothing if the server was never
+	 * started.
+	 *
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void join() throws InterruptedException {
+		if (server != null) {
+			server.join();
+		}
+	}
+
+	/**
+	 * Stops the started server. Does nothing if the server was never started.
+	 *
+	 * @throws Exception If an Exception occurs while stopping
+	 */
+	public void stop() throws Exception {
+		if (server != null) {
+			server.stop();
+		}
 	}
 }
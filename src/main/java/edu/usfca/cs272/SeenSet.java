@@ -0,0 +1,211 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent set of the URLs a crawl has already claimed, stored as 64-bit
+ * fingerprints of their text instead of {@link java.net.URL} objects. Takes
+ * about 16 bytes per URL, never resolves host names the way
+ * {@link java.net.URL#equals(Object)} can, and splits the fingerprints across
+ * stripes with their own locks so threads adding different URLs rarely wait on
+ * each other.
+ *
+ * <p>
+ * Two different URLs share a fingerprint with a probability of about n²/2⁶⁵ for
+ * n URLs (around one in 40 million for a million URLs), in which case the
+ * second URL is treated as already seen and skipped.
+ *
+ * @author troy
+ *
+ */
+public class SeenSet {
+
+	/**
+	 * Number of stripes; a power of two
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * Initial slots per stripe; a power of two
+	 */
+	private static final int INITIAL_SLOTS = 64;
+
+	/**
+	 * Fingerprints per slot a stripe may hold before it doubles
+	 */
+	private static final double LOAD = 0.6;
+
+	/**
+	 * The stripes, each an open-addressing hash table of fingerprints
+	 */
+	private final Stripe[] stripes;
+
+	/**
+	 * Most fingerprints the set will hold
+	 */
+	private final int limit;
+
+	/**
+	 * Number of fingerprints in the set
+	 */
+	private final AtomicInteger size;
+
+	/**
+	 * Initializes an empty set with no limit
+	 */
+	public SeenSet() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Initializes an empty set that stops accepting new URLs once it holds the
+	 * limit
+	 *
+	 * @param limit the most URLs the set will hold
+	 */
+	public SeenSet(int limit) {
+		this.limit = limit;
+		this.size = new AtomicInteger();
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * One lock's share of the fingerprints, using linear probing with 0 marking
+	 * an empty slot
+	 */
+	private static class Stripe {
+		/**
+		 * The slots
+		 */
+		private long[] slots = new long[INITIAL_SLOTS];
+
+		/**
+		 * Number of fingerprints in the slots
+		 */
+		private int count = 0;
+
+		/**
+		 * Finds the slot holding the fingerprint, or the empty slot where it belongs
+		 *
+		 * @param slots       the slots to search
+		 * @param fingerprint the fingerprint to find
+		 * @return the index of the slot
+		 */
+		private static int find(long[] slots, long fingerprint) {
+			int mask = slots.length - 1;
+			int i = (int) (fingerprint >>> 32) & mask; // the low bits picked the stripe
+
+			while (slots[i] != 0 && slots[i] != fingerprint) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		/**
+		 * Doubles the number of slots
+		 */
+		private void grow() {
+			long[] bigger = new long[slots.length * 2];
+			for (long fingerprint : slots) {
+				if (fingerprint != 0) {
+					bigger[find(bigger, fingerprint)] = fingerprint;
+				}
+			}
+			slots = bigger;
+		}
+	}
+
+	/**
+	 * Adds the URL if it is not in the set yet and the set is not full.
+	 *
+	 * @param url the normalized URL text
+	 * @return true if the URL was added, false if it was already in the set or the
+	 *         set is full
+	 */
+	public boolean add(String url) {
+		long fingerprint = fingerprint(url);
+		Stripe stripe = stripes[(int) fingerprint & (STRIPES - 1)];
+
+		synchronized (stripe) {
+			int i = Stripe.find(stripe.slots, fingerprint);
+			if (stripe.slots[i] == fingerprint) {
+				return false;
+			}
+
+			// claims room under the limit before adding, so the limit is exact
+			int current;
+			do {
+				current = size.get();
+				if (current >= limit) {
+					return false;
+				}
+			} while (!size.compareAndSet(current, current + 1));
+
+			stripe.slots[i] = fingerprint;
+			if (++stripe.count > stripe.slots.length * LOAD) {
+				stripe.grow();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Determines whether the URL is in the set
+	 *
+	 * @param url the normalized URL text
+	 * @return true if the URL (or one with the same fingerprint) is in the set
+	 */
+	public boolean contains(String url) {
+		long fingerprint = fingerprint(url);
+		Stripe stripe = stripes[(int) fingerprint & (STRIPES - 1)];
+
+		synchronized (stripe) {
+			return stripe.slots[Stripe.find(stripe.slots, fingerprint)] == fingerprint;
+		}
+	}
+
+	/**
+	 * Returns the number of URLs in the set
+	 *
+	 * @return the number of URLs in the set
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Determines whether the set has reached its limit
+	 *
+	 * @return true if no more URLs will be added
+	 */
+	public boolean isFull() {
+		return size.get() >= limit;
+	}
+
+	/**
+	 * Returns the 64-bit fingerprint of the text: FNV-1a over its characters,
+	 * followed by the MurmurHash3 finalizer to spread the bits. Never 0, which
+	 * marks empty slots.
+	 *
+	 * @param text the text to fingerprint
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -3,6 +3,8 @@ package edu.usfca.cs272;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,6 +13,21 @@ import java.util.Set;
  * and the inverted index for each word. This class also contains helpful
  * methods for each data structure.
  * 
+ * Counters like {@link #numWords()} and {@link #countsSize()} are read
+ * optimistically without locking and only take the read lock if a writer was
+ * active at the same time. Lookups in the maps and sets always take the read
+ * lock, since a writer changing them could send an unlocked reader down a
+ * broken branch before the read is ever validated.
+ * 
+ * The lock is fair, so a crawler adding pages keeps making progress while the
+ * server is busy with searches, and searches are not held up by a long run of
+ * writers either.
+ * 
+ * Removed and replaced locations are purged by a compactor thread once enough
+ * tombstones pile up. It takes the write lock for a small batch of words at a
+ * time, so searches and writers never wait for a pass over the whole
+ * vocabulary.
+ * 
  * @author Troy Sorongon
  *
  */
@@ -21,12 +38,49 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	 */
 	private final MultiReaderLock lock;
 
+	/**
+	 * Number of tombstones that starts a compaction in the background
+	 */
+	public static final int COMPACTION_THRESHOLD = 32;
+
+	/**
+	 * About how many postings or tombstones are looked at per hold of the write
+	 * lock while compacting
+	 */
+	private static final long COMPACTION_BATCH = 4096;
+
+	/**
+	 * Compacts the index in the background, started by the first removal that
+	 * needs it
+	 */
+	private Compactor compactor;
+
 	/**
 	 * Initializes new TreeMaps for invertedIndex and pairs
 	 */
 	public ThreadSafeInvertedIndex() {
 		super();
-		lock = new MultiReaderLock();
+		lock = new MultiReaderLock(MultiReaderLock.Policy.FAIR, ThreadSafeInvertedIndex.class);
+		compactor = null;
+	}
+
+	/**
+	 * Turns profiling of the index lock on or off
+	 * 
+	 * @param enabled whether to profile the index lock
+	 * @see MultiReaderLock#setProfiling(boolean)
+	 */
+	public void setLockProfiling(boolean enabled) {
+		lock.setProfiling(enabled);
+	}
+
+	/**
+	 * Returns the contention statistics of the index lock
+	 * 
+	 * @return the lock profile, or null if not profiling
+	 */
+	public LockProfile lockProfile() {
+		return lock.profile();
 	}
 
 	/**
@@ -92,6 +146,177 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	@Override
+	public boolean remove(String location) {
+		boolean removed;
+		int pending;
+		lock.writeLock().lock();
+		try {
+			removed = super.remove(location);
+			pending = super.numTombstones();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		compactLater(pending);
+		return removed;
+	}
+
+	@Override
+	public void addAll(String location, List<String> stems) {
+		lock.writeLock().lock();
+		try {
+			super.addAll(location, stems);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<String> locations) {
+		boolean removed;
+		int pending;
+		lock.writeLock().lock();
+		try {
+			removed = super.removeAll(locations);
+			pending = super.numTombstones();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		compactLater(pending);
+		return removed;
+	}
+
+	/**
+	 * Replaces the stems found in the location with new ones in one write, so
+	 * searches see either the old stems or the new ones but never neither
+	 * 
+	 * @param location the location to replace
+	 * @param stems    the stems now found in the location
+	 */
+	@Override
+	public void replace(String location, List<String> stems) {
+		int pending;
+		lock.writeLock().lock();
+		try {
+			super.replace(location, stems);
+			pending = super.numTombstones();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		compactLater(pending);
+	}
+
+	@Override
+	public int numTombstones() {
+		return lock.read(() -> super.numTombstones());
+	}
+
+	/**
+	 * Purges every posting hidden by a tombstone, taking the write lock for a
+	 * small batch of words at a time instead of for the whole vocabulary
+	 */
+	@Override
+	public void compact() {
+		Map<String, ?> snapshot;
+		lock.readLock().lock();
+		try {
+			snapshot = tombstones();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (snapshot.isEmpty()) {
+			return;
+		}
+
+		String next = null;
+		do {
+			lock.writeLock().lock();
+			try {
+				next = purge(next, COMPACTION_BATCH);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} while (next != null);
+
+		lock.writeLock().lock();
+		try {
+			forget(snapshot);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Asks the compactor for a compaction once enough tombstones piled up,
+	 * starting it the first time
+	 * 
+	 * @param pending the number of tombstones
+	 */
+	private void compactLater(int pending) {
+		if (pending < COMPACTION_THRESHOLD) {
+			return;
+		}
+
+		Compactor current;
+		synchronized (this) {
+			if (compactor == null) {
+				compactor = new Compactor();
+				compactor.start();
+			}
+			current = compactor;
+		}
+		current.request();
+	}
+
+	/**
+	 * Compacts the index whenever asked to, one compaction at a time. Requests
+	 * made during a compaction are served by one more compaction after it.
+	 */
+	private class Compactor extends Thread {
+		/**
+		 * Whether a compaction was asked for since the last one started
+		 */
+		private boolean requested;
+
+		/**
+		 * Initializes the compactor as a daemon thread
+		 */
+		private Compactor() {
+			setName("IndexCompactor");
+			setDaemon(true);
+			requested = false;
+		}
+
+		/**
+		 * Asks for a compaction
+		 */
+		private synchronized void request() {
+			requested = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (this) {
+						while (!requested) {
+							wait();
+						}
+						requested = false;
+					}
+					compact();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	/**
 	 * Returns an unmodifiable view of counts.
 	 * 
@@ -255,13 +480,7 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	 */
 	@Override
 	public int countsSize() {
-		lock.readLock().lock();
-
-		try {
-			return super.countsSize();
-		} finally {
-			lock.readLock().unlock();
-		}
+		return lock.read(() -> super.countsSize());
 	}
 
 	/**
@@ -288,13 +507,7 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	 */
 	@Override
 	public int numWords() {
-		lock.readLock().lock();
-
-		try {
-			return super.numWords();
-		} finally {
-			lock.readLock().unlock();
-		}
+		return lock.read(() -> super.numWords());
 	}
 
 	/**
@@ -0,0 +1,397 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers what each page looked like the last time it was crawled, so the
+ * next crawl of the same site only parses and indexes the pages that changed.
+ * For every page the store keeps the validators the server sent (its ETag and
+ * Last-Modified date), a hash of its HTML, the links found on it and the stems
+ * indexed from it.
+ *
+ * <p>
+ * The next crawl starts by adding the stored stems to the index, then sends the
+ * validators with each request. A page the server answers 304 Not Modified, or
+ * whose HTML hashes the same as before, is not parsed or indexed again; its
+ * stored links are followed instead. Only the pages that changed have their
+ * stems replaced in the index. Pages the crawl no longer reaches are removed
+ * once it finishes, so the index ends up the same as a crawl from scratch.
+ *
+ * <p>
+ * The store is read when opened and written back in one go by
+ * {@link #save()}, replacing the old file only once the new one is complete.
+ *
+ * @author troy
+ *
+ */
+public class ValidatorStore {
+
+	/**
+	 * The log4j2 logger
+	 */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * What a page looked like when it was last crawled
+	 */
+	public static class Entry {
+		/**
+		 * The ETag the server sent, or null
+		 */
+		private final String etag;
+
+		/**
+		 * The Last-Modified date the server sent, or null
+		 */
+		private final String lastModified;
+
+		/**
+		 * Hash of the HTML
+		 */
+		private final long hash;
+
+		/**
+		 * The normalized links found on the page, in order
+		 */
+		private final List<String> links;
+
+		/**
+		 * The stems indexed from the page, in order
+		 */
+		private final List<String> stems;
+
+		/**
+		 * Initializes an entry
+		 *
+		 * @param etag         the ETag the server sent, or null
+		 * @param lastModified the Last-Modified date the server sent, or null
+		 * @param hash         hash of the HTML
+		 * @param links        the normalized links found on the page, in order
+		 * @param stems        the stems indexed from the page, in order
+		 *
+		 * @see #hash(String)
+		 */
+		public Entry(String etag, String lastModified, long hash, List<String> links, List<String> stems) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.links = links;
+			this.stems = stems;
+		}
+
+		/**
+		 * Returns the ETag the server sent
+		 *
+		 * @return the ETag, or null if there was none
+		 */
+		public String etag() {
+			return etag;
+		}
+
+		/**
+		 * Returns the Last-Modified date the server sent
+		 *
+		 * @return the Last-Modified date, or null if there was none
+		 */
+		public String lastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns the hash of the HTML
+		 *
+		 * @return the hash
+		 */
+		public long hash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the normalized links found on the page
+		 *
+		 * @return the links in order
+		 */
+		public List<String> links() {
+			return links;
+		}
+
+		/**
+		 * Returns the stems indexed from the page
+		 *
+		 * @return the stems in order
+		 */
+		public List<String> stems() {
+			return stems;
+		}
+	}
+
+	/**
+	 * The file the store is kept in
+	 */
+	private final Path file;
+
+	/**
+	 * The entries by location
+	 */
+	private final HashMap<String, Entry> entries;
+
+	/**
+	 * The locations crawled this run
+	 */
+	private final HashSet<String> visited;
+
+	/**
+	 * Number of pages loaded from the file
+	 */
+	private final int loaded;
+
+	/**
+	 * Number of pages found unchanged this run
+	 */
+	private int unchanged;
+
+	/**
+	 * Number of pages found changed or new this run
+	 */
+	private int changed;
+
+	/**
+	 * Number of pages removed this run
+	 */
+	private int removed;
+
+	/**
+	 * Opens the store kept in the file, loading it if it exists
+	 *
+	 * @param file the file to keep the store in
+	 * @throws IOException if unable to read the file
+	 */
+	public ValidatorStore(Path file) throws IOException {
+		this.file = file;
+		this.entries = new HashMap<>();
+		this.visited = new HashSet<>();
+
+		if (Files.exists(file)) {
+			load();
+		}
+
+		this.loaded = entries.size();
+		this.unchanged = 0;
+		this.changed = 0;
+		this.removed = 0;
+	}
+
+	/**
+	 * Loads the entries from the file, one page per line
+	 *
+	 * @throws IOException if unable to read the file
+	 */
+	private void load() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+
+				try {
+					if (parts.length != 6) {
+						throw new IllegalArgumentException();
+					}
+
+					entries.put(parts[0], new Entry(field(parts[1]), field(parts[2]), Long.parseUnsignedLong(parts[3], 16),
+							words(parts[4]), words(parts[5])));
+				} catch (IllegalArgumentException e) {
+					log.warn("Skipping unreadable validator record: {}", line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of an optional field
+	 *
+	 * @param field the field as saved
+	 * @return the value, or null if the field is empty
+	 */
+	private static String field(String field) {
+		return field.isEmpty() ? null : field;
+	}
+
+	/**
+	 * Splits a field of space-separated words
+	 *
+	 * @param field the field as saved
+	 * @return the words, or an empty list if the field is empty
+	 */
+	private static List<String> words(String field) {
+		return field.isEmpty() ? List.of() : Arrays.asList(field.split(" "));
+	}
+
+	/**
+	 * Returns the hash of a page's HTML, used to tell whether it changed when the
+	 * server sends no validators
+	 *
+	 * @param html the HTML
+	 * @return the hash
+	 */
+	public static long hash(String html) {
+		return SeenSet.fingerprint(html);
+	}
+
+	/**
+	 * Returns the entry for the location from the last crawl
+	 *
+	 * @param location the normalized URL the page is indexed under
+	 * @return the entry, or null if the page was not crawled last time
+	 */
+	public synchronized Entry get(String location) {
+		return entries.get(location);
+	}
+
+	/**
+	 * Adds the stems of every stored page to the index, so the index holds the
+	 * last crawl before any page is fetched again
+	 *
+	 * @param index the index to add the pages to
+	 */
+	public void replay(ThreadSafeInvertedIndex index) {
+		InvertedIndex pages = new InvertedIndex();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				pages.addAll(entry.getKey(), entry.getValue().stems());
+			}
+		}
+		index.addAll(pages);
+	}
+
+	/**
+	 * Records that the page has not changed since the last crawl, keeping any
+	 * new validators the server sent
+	 *
+	 * @param location     the normalized URL the page is indexed under
+	 * @param etag         the ETag the server sent, or null
+	 * @param lastModified the Last-Modified date the server sent, or null
+	 */
+	public synchronized void unchanged(String location, String etag, String lastModified) {
+		Entry old = entries.get(location);
+		if (old != null) {
+			entries.put(location, new Entry(etag, lastModified, old.hash(), old.links(), old.stems()));
+			visited.add(location);
+			unchanged++;
+		}
+	}
+
+	/**
+	 * Records the page as it is now, after it changed or was crawled for the
+	 * first time
+	 *
+	 * @param location the normalized URL the page is indexed under
+	 * @param entry    the page as it is now
+	 */
+	public synchronized void changed(String location, Entry entry) {
+		entries.put(location, entry);
+		visited.add(location);
+		changed++;
+	}
+
+	/**
+	 * Records that the page was reached but the last crawl of it is kept, because
+	 * it could not be fetched this time or was indexed again before a resume
+	 *
+	 * @param location the normalized URL the page is indexed under
+	 */
+	public synchronized void keep(String location) {
+		if (entries.containsKey(location)) {
+			visited.add(location);
+		}
+	}
+
+	/**
+	 * Records that the page is gone or no longer HTML
+	 *
+	 * @param location the normalized URL the page is indexed under
+	 * @return true if the page was in the store
+	 */
+	public synchronized boolean gone(String location) {
+		if (entries.remove(location) != null) {
+			removed++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the pages the crawl did not reach this time from the store and the
+	 * index. Only call once the crawl has finished.
+	 *
+	 * @param index the index to remove the pages from
+	 */
+	public void prune(ThreadSafeInvertedIndex index) {
+		HashSet<String> stale = new HashSet<>();
+		synchronized (this) {
+			Iterator<String> locations = entries.keySet().iterator();
+			while (locations.hasNext()) {
+				String location = locations.next();
+				if (!visited.contains(location)) {
+					locations.remove();
+					stale.add(location);
+				}
+			}
+			removed += stale.size();
+		}
+
+		index.removeAll(stale);
+	}
+
+	/**
+	 * Writes the store to its file, replacing the old file only once the new
+	 * one is complete
+	 *
+	 * @throws IOException if unable to write the file
+	 */
+	public synchronized void save() throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+				for (Map.Entry<String, Entry> pair : entries.entrySet()) {
+					Entry entry = pair.getValue();
+					writer.write(String.join("\t", pair.getKey(), entry.etag() == null ? "" : entry.etag(),
+							entry.lastModified() == null ? "" : entry.lastModified(), Long.toHexString(entry.hash()),
+							String.join(" ", entry.links()), String.join(" ", entry.stems())));
+					writer.newLine();
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Returns a summary of how many pages changed since the last crawl
+	 *
+	 * @return the store report
+	 */
+	public synchronized String report() {
+		return String.format("Validators: %d pages from the last crawl, %d unchanged, %d changed or new, %d removed%n",
+				loaded, unchanged, changed, removed);
+	}
+}
@@ -1,6 +1,18 @@
 package edu.usfca.cs272;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -11,6 +23,31 @@ import org.apache.logging.log4j.Logger;
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * <p>
+ * Implements {@link Executor} so that the queue can also run the dependent
+ * stages of the {@link CompletableFuture} objects returned by
+ * {@link #submit(Callable)}.
+ *
+ * <p>
+ * The queue may optionally be bounded to a maximum number of waiting tasks, in
+ * which case the {@link Overflow} policy decides what happens to tasks added
+ * while the queue is full.
+ *
+ * <p>
+ * Each task has a {@link Priority}, and workers take the oldest task of the
+ * most urgent priority first. To keep lower priority work from starving, a
+ * waiting task is treated as one priority more urgent for every
+ * {@link #AGING} it has waited.
+ *
+ * <p>
+ * The queue keeps low-overhead metrics on how long tasks wait and run, how busy
+ * each worker is, and how many tasks threw exceptions. See {@link #report()}.
+ *
+ * <p>
+ * When created with fewer minimum than maximum threads, the queue tunes its
+ * own number of workers within those bounds. See
+ * {@link #WorkQueue(int, int, int, Overflow)}.
+ *
  * @see <a href=
  *      "https://web.archive.org/web/20210126172022/https://www.ibm.com/developerworks/library/j-jtp0730/index.html">
  *      Java Theory and Practice: Thread Pools and Work Queues</a>
@@ -18,12 +55,27 @@ import org.apache.logging.log4j.Logger;
  * @author CS 272 Software Development (University of San Francisco)
  * @version Spring 2023
  */
-public class WorkQueue {
+public class WorkQueue implements Executor {
 	/** Workers that wait until work (or tasks) are available. */
-	private final Worker[] workers;
+	private final ArrayList<Worker> workers;
+
+	/** Fewest worker threads the queue may tune down to. */
+	private final int minThreads;
+
+	/** Most worker threads the queue may tune up to. */
+	private final int maxThreads;
 
-	/** Queue of pending work (or tasks). */
-	private final LinkedList<Runnable> tasks;
+	/** Number of idle workers asked to exit by the tuner; guarded by tasks. */
+	private int retiring;
+
+	/** Adjusts the number of workers, or null if the number of workers is fixed. */
+	private final Tuner tuner;
+
+	/** Queues of pending work (or tasks) for each priority. */
+	private final EnumMap<Priority, LinkedList<Queued>> tasks;
+
+	/** Total number of tasks waiting in all of the queues; guarded by tasks. */
+	private int queued;
 
 	/** Used to signal the workers should terminate. */
 	private volatile boolean shutdown;
@@ -37,6 +89,76 @@ public class WorkQueue {
 	/** Counter for the number of tasks to be done */
 	private int pending;
 
+	/** Maximum number of tasks waiting in the queue. */
+	private final int capacity;
+
+	/** What to do with tasks added while the queue is at capacity. */
+	private final Overflow overflow;
+
+	/** Largest number of tasks seen waiting in the queue; guarded by tasks. */
+	private int highWaterMark;
+
+	/** Number of tasks rejected because the queue was full; guarded by tasks. */
+	private int rejected;
+
+	/** How long tasks waited in the queue per priority. */
+	private final LatencyHistogram[] waitTimes;
+
+	/** How long tasks took to run on a worker. */
+	private final LatencyHistogram runTimes;
+
+	/** Number of tasks that threw an exception on a worker. */
+	private final LongAdder exceptions;
+
+	/** Nanoseconds every worker, current or retired, spent running tasks. */
+	private final LongAdder busyTime;
+
+	/** CPU nanoseconds used by workers that retired; guarded by workers. */
+	private long retiredCpu;
+
+	/**
+	 * How long a task waits before it is treated as one priority more urgent, so
+	 * that a steady stream of urgent work can't starve less urgent work.
+	 */
+	public static final long AGING = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * How urgently a task should be run. Tasks of a more urgent priority run
+	 * before tasks of a less urgent priority that have waited for less time.
+	 */
+	public static enum Priority {
+		/** Latency-sensitive work, like searches requested by a user. */
+		INTERACTIVE,
+
+		/** Regular work; the default priority. */
+		NORMAL,
+
+		/** Bulk background work, like crawling. */
+		BATCH
+	}
+
+	/**
+	 * What to do with a task added to a bounded work queue that is already at
+	 * capacity.
+	 */
+	public static enum Overflow {
+		/**
+		 * Blocks the thread adding the task until there is room in the queue. Worker
+		 * threads of the same queue run the task themselves instead, since blocking
+		 * them could leave no thread to drain the queue.
+		 */
+		BLOCK,
+
+		/** Runs the task directly on the thread that tried to add it. */
+		CALLER_RUNS,
+
+		/**
+		 * Counts the task as rejected and throws a
+		 * {@link RejectedExecutionException}.
+		 */
+		REJECT
+	}
+
 	/**
 	 * Starts a work queue with the default number of threads.
 	 *
@@ -47,40 +169,306 @@ public class WorkQueue {
 	}
 
 	/**
-	 * Starts a work queue with the specified number of threads.
+	 * Starts an unbounded work queue with the specified number of threads.
 	 *
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
-		this.tasks = new LinkedList<Runnable>();
-		this.workers = new Worker[threads];
+		this(threads, Integer.MAX_VALUE, Overflow.BLOCK);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads that holds at most
+	 * capacity waiting tasks, using the overflow policy when it is full.
+	 *
+	 * @param threads  number of worker threads; should be greater than 1
+	 * @param capacity maximum number of waiting tasks; must be positive
+	 * @param overflow what to do with tasks added while the queue is full
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public WorkQueue(int threads, int capacity, Overflow overflow) throws IllegalArgumentException {
+		this(threads, threads, capacity, overflow);
+	}
+
+	/**
+	 * Starts a work queue that tunes its number of worker threads between the
+	 * minimum and maximum. It starts with the number of available processors
+	 * (within the bounds) and every {@link Tuner#INTERVAL} moves toward the number
+	 * of threads with the best throughput, in the style of a hill-climbing
+	 * controller. If the minimum and maximum are equal, the number of threads is
+	 * fixed.
+	 *
+	 * @param minThreads fewest worker threads; must be positive
+	 * @param maxThreads most worker threads; must be at least minThreads
+	 * @param capacity   maximum number of waiting tasks; must be positive
+	 * @param overflow   what to do with tasks added while the queue is full
+	 * @throws IllegalArgumentException if the bounds or capacity are invalid
+	 */
+	public WorkQueue(int minThreads, int maxThreads, int capacity, Overflow overflow)
+			throws IllegalArgumentException {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+
+		if (minThreads < 1 || maxThreads < minThreads) {
+			throw new IllegalArgumentException("Invalid thread bounds: " + minThreads + " to " + maxThreads);
+		}
+
+		this.tasks = new EnumMap<>(Priority.class);
+		this.queued = 0;
+		this.workers = new ArrayList<>();
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.retiring = 0;
 		this.shutdown = false;
 		this.pending = 0; // Initializes number of tasks to 0
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.highWaterMark = 0;
+		this.rejected = 0;
+		this.waitTimes = new LatencyHistogram[Priority.values().length];
+		this.runTimes = new LatencyHistogram();
+		this.exceptions = new LongAdder();
+		this.busyTime = new LongAdder();
+		this.retiredCpu = 0;
+
+		for (Priority priority : Priority.values()) {
+			tasks.put(priority, new LinkedList<>());
+			waitTimes[priority.ordinal()] = new LatencyHistogram();
+		}
+
+		int threads = minThreads == maxThreads ? minThreads
+				: Math.max(minThreads, Math.min(maxThreads, Runtime.getRuntime().availableProcessors()));
 
 		// start the threads so they are waiting in the background
 		for (int i = 0; i < threads; i++) {
-			workers[i] = new Worker();
-			workers[i].start();
+			addWorker();
+		}
+
+		if (minThreads < maxThreads) {
+			tuner = new Tuner();
+			tuner.start();
+		} else {
+			tuner = null;
 		}
 	}
 
 	/**
-	 * Adds a work (or task) request to the queue. A worker thread will process this
-	 * request when available.
+	 * Adds a work (or task) request to the queue with {@link Priority#NORMAL}
+	 * priority. A worker thread will process this request when available.
 	 *
 	 * @param task work request (in the form of a {@link Runnable} object)
+	 * @throws RejectedExecutionException if the queue is full and rejects tasks,
+	 *                                    or if the queue is shutdown while waiting
+	 *                                    for room
+	 *
+	 * @see #execute(Runnable, Priority)
 	 */
-	public void execute(Runnable task) {
-		incrementPending();
+	@Override
+	public void execute(Runnable task) throws RejectedExecutionException {
+		execute(task, Priority.NORMAL);
+	}
+
+	/**
+	 * Adds a work (or task) request to the queue. A worker thread will process this
+	 * request when available, taking more urgent requests first.
+	 *
+	 * <p>
+	 * If the queue is at capacity, the {@link Overflow} policy of this queue
+	 * decides whether to wait for room, run the task directly, or reject it.
+	 * {@link Priority#INTERACTIVE} tasks are always admitted so that they never
+	 * wait behind bulk work for room in the queue.
+	 *
+	 * @param task     work request (in the form of a {@link Runnable} object)
+	 * @param priority how urgently the task should be run
+	 * @throws RejectedExecutionException if the queue is full and rejects tasks,
+	 *                                    or if the queue is shutdown while waiting
+	 *                                    for room
+	 */
+	public void execute(Runnable task, Priority priority) throws RejectedExecutionException {
 		synchronized (tasks) {
-			tasks.addLast(task);
-			tasks.notifyAll();
+			while (queued >= capacity && priority != Priority.INTERACTIVE) {
+				if (overflow == Overflow.REJECT) {
+					rejected++;
+					throw new RejectedExecutionException("Work queue is full.");
+				}
+
+				if (overflow == Overflow.CALLER_RUNS || isWorker()) {
+					break;
+				}
+
+				if (shutdown) {
+					throw new RejectedExecutionException("Work queue is shutdown.");
+				}
+
+				try {
+					tasks.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for room.", e);
+				}
+			}
+
+			if (queued < capacity || priority == Priority.INTERACTIVE) {
+				enqueue(task, priority);
+				return;
+			}
+		}
+
+		// queue is full and the task must run on this thread instead
+		task.run();
+	}
+
+	/**
+	 * Adds a work (or task) request to the queue only if there is room for it
+	 * now. Unlike {@link #execute(Runnable, Priority)}, never waits for room or
+	 * runs the task on the calling thread, whatever the {@link Overflow} policy,
+	 * so it is safe to call from threads that must not block.
+	 *
+	 * @param task     work request (in the form of a {@link Runnable} object)
+	 * @param priority how urgently the task should be run
+	 * @return true if the task was added, false if the queue is full
+	 * @throws RejectedExecutionException if the queue is shutdown
+	 */
+	public boolean offer(Runnable task, Priority priority) throws RejectedExecutionException {
+		synchronized (tasks) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Work queue is shutdown.");
+			}
+
+			if (queued >= capacity && priority != Priority.INTERACTIVE) {
+				return false;
+			}
+
+			enqueue(task, priority);
+			return true;
+		}
+	}
+
+	/**
+	 * Adds the task to the queue of its priority and wakes the workers. Must be
+	 * called while synchronized on tasks.
+	 *
+	 * @param task     work request (in the form of a {@link Runnable} object)
+	 * @param priority how urgently the task should be run
+	 */
+	private void enqueue(Runnable task, Priority priority) {
+		incrementPending();
+		tasks.get(priority).addLast(new Queued(task, priority));
+		queued++;
+		highWaterMark = Math.max(highWaterMark, queued);
+		tasks.notifyAll();
+	}
+
+	/**
+	 * Determines whether the current thread is one of the workers of this queue.
+	 *
+	 * @return true if called from a worker thread of this queue
+	 */
+	private boolean isWorker() {
+		return Thread.currentThread() instanceof Worker worker && worker.owner() == this;
+	}
+
+	/**
+	 * Adds a work (or task) request that produces a result to the queue. The
+	 * returned future completes with the result of the task, or exceptionally with
+	 * whatever the task throws.
+	 *
+	 * @param <T>  the type of result produced by the task
+	 * @param task work request (in the form of a {@link Callable} object)
+	 * @return a future for the result of the task
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		return submit(task, Priority.NORMAL);
+	}
+
+	/**
+	 * Adds a work (or task) request that produces a result to the queue with the
+	 * given priority.
+	 *
+	 * @param <T>      the type of result produced by the task
+	 * @param task     work request (in the form of a {@link Callable} object)
+	 * @param priority how urgently the task should be run
+	 * @return a future for the result of the task
+	 *
+	 * @see #submit(Callable)
+	 * @see #execute(Runnable, Priority)
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task, Priority priority) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		execute(() -> complete(future, task), priority);
+		return future;
+	}
+
+	/**
+	 * Combines the results of several futures into a single future of a list of
+	 * results, in the same order as the futures were provided. Lets each task
+	 * return its own partial result instead of writing into a shared data
+	 * structure. The combined future completes exceptionally if any of the
+	 * futures do.
+	 *
+	 * @param <T>     the type of result produced by the futures
+	 * @param futures the futures to combine
+	 * @return a future for the list of all results
+	 */
+	public static <T> CompletableFuture<List<T>> collect(Collection<? extends CompletableFuture<? extends T>> futures) {
+		List<CompletableFuture<? extends T>> copy = List.copyOf(futures);
+		CompletableFuture<?>[] array = copy.toArray(new CompletableFuture<?>[0]);
+		return CompletableFuture.allOf(array).thenApply(done -> {
+			List<T> results = new ArrayList<>(copy.size());
+
+			for (CompletableFuture<? extends T> future : copy) {
+				results.add(future.join());
+			}
+
+			return results;
+		});
+	}
+
+	/**
+	 * Runs the task and completes the future with its result or exception.
+	 *
+	 * @param <T>    the type of result produced by the task
+	 * @param future the future to complete
+	 * @param task   the task to run
+	 */
+	private static <T> void complete(CompletableFuture<T> future, Callable<T> task) {
+		try {
+			future.complete(task.call());
+		} catch (Exception e) {
+			future.completeExceptionally(e);
 		}
 	}
 
+	/**
+	 * Creates a new group of tasks that share the worker threads of this queue but
+	 * track their own pending work. Waiting on a group only waits for the tasks
+	 * submitted through that group (including tasks those tasks submit), so
+	 * independent jobs can run on the same queue without blocking each other.
+	 *
+	 * @return a new, empty task group of {@link Priority#NORMAL} priority
+	 */
+	public TaskGroup newGroup() {
+		return newGroup(Priority.NORMAL);
+	}
+
+	/**
+	 * Creates a new group of tasks that all run with the given priority.
+	 *
+	 * @param priority how urgently the tasks of the group should be run
+	 * @return a new, empty task group
+	 *
+	 * @see #newGroup()
+	 */
+	public TaskGroup newGroup(Priority priority) {
+		return new TaskGroup(priority);
+	}
+
 	/**
 	 * Waits for all pending work (or tasks) to be finished. Does not terminate the
 	 * worker threads so that the work queue can continue to be used.
+	 *
+	 * @see TaskGroup#finish()
 	 */
 	public synchronized void finish() {
 		try {
@@ -124,7 +512,11 @@ public class WorkQueue {
 			finish();
 			shutdown();
 
-			for (Worker worker : workers) {
+			if (tuner != null) {
+				tuner.join();
+			}
+
+			for (Worker worker : workers()) {
 				worker.join();
 			}
 		} catch (InterruptedException e) {
@@ -145,6 +537,10 @@ public class WorkQueue {
 		synchronized (tasks) {
 			tasks.notifyAll();
 		}
+
+		if (log.isInfoEnabled()) {
+			log.info(report());
+		}
 	}
 
 	/**
@@ -153,7 +549,575 @@ public class WorkQueue {
 	 * @return number of worker threads
 	 */
 	public int size() {
-		return workers.length;
+		synchronized (workers) {
+			return workers.size();
+		}
+	}
+
+	/**
+	 * Returns a copy of the current list of workers.
+	 *
+	 * @return the current workers
+	 */
+	private List<Worker> workers() {
+		synchronized (workers) {
+			return List.copyOf(workers);
+		}
+	}
+
+	/**
+	 * Starts a new worker thread unless the queue is shutdown.
+	 */
+	private void addWorker() {
+		synchronized (workers) {
+			if (!shutdown) {
+				Worker worker = new Worker();
+				workers.add(worker);
+				worker.start();
+			}
+		}
+	}
+
+	/**
+	 * Asks one idle worker thread to exit, as long as that leaves the minimum
+	 * number of workers running.
+	 */
+	private void removeWorker() {
+		synchronized (tasks) {
+			if (size() - retiring > minThreads) {
+				retiring++;
+				tasks.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum number of tasks that may wait in the queue.
+	 *
+	 * @return capacity of the queue, or {@link Integer#MAX_VALUE} if unbounded
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of tasks currently waiting in the queue.
+	 *
+	 * @return number of waiting tasks
+	 */
+	public int queued() {
+		synchronized (tasks) {
+			return queued;
+		}
+	}
+
+	/**
+	 * Returns the largest number of tasks that have waited in the queue at once.
+	 *
+	 * @return high-water mark of the queue
+	 */
+	public int highWaterMark() {
+		synchronized (tasks) {
+			return highWaterMark;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks rejected because the queue was full.
+	 *
+	 * @return number of rejected tasks
+	 */
+	public int rejected() {
+		synchronized (tasks) {
+			return rejected;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks of the given priority taken from the queue by
+	 * the workers so far.
+	 *
+	 * @param priority the priority to check
+	 * @return number of tasks taken
+	 */
+	public long taken(Priority priority) {
+		return waitTimes(priority).count();
+	}
+
+	/**
+	 * Returns the average time tasks of the given priority waited in the queue
+	 * before a worker took them.
+	 *
+	 * @param priority the priority to check
+	 * @return average wait time in nanoseconds, or 0 if no tasks were taken
+	 */
+	public long averageWait(Priority priority) {
+		return waitTimes(priority).mean();
+	}
+
+	/**
+	 * Returns the longest time a task of the given priority waited in the queue
+	 * before a worker took it.
+	 *
+	 * @param priority the priority to check
+	 * @return longest wait time in nanoseconds
+	 */
+	public long maxWait(Priority priority) {
+		return waitTimes(priority).max();
+	}
+
+	/**
+	 * Returns the histogram of how long tasks of the given priority waited in the
+	 * queue before a worker took them.
+	 *
+	 * @param priority the priority to check
+	 * @return histogram of wait times
+	 */
+	public LatencyHistogram waitTimes(Priority priority) {
+		return waitTimes[priority.ordinal()];
+	}
+
+	/**
+	 * Returns the histogram of how long tasks took to run on a worker.
+	 *
+	 * @return histogram of run times
+	 */
+	public LatencyHistogram runTimes() {
+		return runTimes;
+	}
+
+	/**
+	 * Returns the number of tasks that threw an exception while run by a worker.
+	 *
+	 * @return number of exceptions caught by the workers
+	 */
+	public long exceptions() {
+		return exceptions.sum();
+	}
+
+	/**
+	 * Returns the fraction of time each worker has spent running tasks since it
+	 * started.
+	 *
+	 * @return fraction between 0 and 1 of busy time per worker
+	 */
+	public double[] utilization() {
+		List<Worker> current = workers();
+		double[] busy = new double[current.size()];
+		for (int i = 0; i < busy.length; i++) {
+			busy[i] = current.get(i).utilization();
+		}
+		return busy;
+	}
+
+	/**
+	 * Returns a multi-line summary of the queue depth, wait and run times, worker
+	 * utilization and exceptions, useful for choosing the number of threads.
+	 *
+	 * @return summary of the metrics of this queue
+	 */
+	public String report() {
+		return report("Work queue");
+	}
+
+	/**
+	 * Returns a multi-line summary of the metrics of this queue like
+	 * {@link #report()}, under a different title to tell it apart from other
+	 * queues.
+	 *
+	 * @param title what to call this queue in the summary
+	 * @return summary of the metrics of this queue
+	 */
+	public String report(String title) {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%s: %d workers, %d queued, high-water mark %d of capacity %d, "
+				+ "%d rejected, %d exceptions%n", title, size(), queued(), highWaterMark(), capacity, rejected(), exceptions()));
+
+		for (Priority priority : Priority.values()) {
+			report.append(String.format("  %s wait: %s%n", priority, waitTimes(priority)));
+		}
+
+		report.append(String.format("  Run: %s%n", runTimes));
+
+		if (tuner != null) {
+			report.append(String.format("  Tuned between %d and %d workers, %d adjustments%n", minThreads, maxThreads,
+					tuner.adjustments));
+		}
+
+		report.append("  Busy:");
+		for (Worker worker : workers()) {
+			report.append(String.format(" %s %.1f%%", worker.getName(), worker.utilization() * 100));
+		}
+		report.append(System.lineSeparator());
+
+		return report.toString();
+	}
+
+	/**
+	 * Removes the next task for a worker to run. Picks the head of the priority
+	 * queue whose task is most overdue, where every {@link #AGING} of waiting
+	 * makes up for one level of priority. Must be called while synchronized on
+	 * tasks with at least one task waiting.
+	 *
+	 * @return the next task to run
+	 */
+	private Runnable takeTask() {
+		long now = System.nanoTime();
+		LinkedList<Queued> next = null;
+		long best = Long.MIN_VALUE;
+
+		for (LinkedList<Queued> queue : tasks.values()) {
+			if (!queue.isEmpty()) {
+				Queued head = queue.getFirst();
+				long score = now - head.enqueued - head.priority.ordinal() * AGING;
+
+				if (next == null || score > best) {
+					next = queue;
+					best = score;
+				}
+			}
+		}
+
+		Queued head = next.removeFirst();
+		queued--;
+
+		waitTimes(head.priority).record(now - head.enqueued);
+		return head.task;
+	}
+
+	/**
+	 * A handle for a group of related tasks submitted to this work queue. Each
+	 * group keeps its own pending count so that {@link #finish()} only waits for
+	 * the work submitted through this group.
+	 *
+	 * <p>
+	 * Tasks that submit more work to the same group should do so before they
+	 * return, so that the group is never seen as finished while work remains.
+	 */
+	public class TaskGroup {
+		/** Counter for the number of tasks in this group left to be done. */
+		private int pending;
+
+		/** The priority of every task in this group. */
+		private final Priority priority;
+
+		/**
+		 * Initializes an empty task group. Use {@link WorkQueue#newGroup(Priority)} to
+		 * create groups.
+		 *
+		 * @param priority the priority of every task in this group
+		 */
+		private TaskGroup(Priority priority) {
+			this.pending = 0;
+			this.priority = priority;
+		}
+
+		/**
+		 * Adds a work (or task) request to the work queue as part of this group.
+		 *
+		 * @param task work request (in the form of a {@link Runnable} object)
+		 * @throws RejectedExecutionException if the work queue rejects the task
+		 *
+		 * @see WorkQueue#execute(Runnable)
+		 */
+		public void execute(Runnable task) throws RejectedExecutionException {
+			incrementPending();
+			try {
+				WorkQueue.this.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						decrementPending();
+					}
+				}, priority);
+			} catch (RejectedExecutionException e) {
+				decrementPending();
+				throw e;
+			}
+		}
+
+		/**
+		 * Adds a work (or task) request to the work queue as part of this group, only
+		 * if there is room for it now.
+		 *
+		 * @param task work request (in the form of a {@link Runnable} object)
+		 * @return true if the task was added, false if the queue is full
+		 * @throws RejectedExecutionException if the work queue is shutdown
+		 *
+		 * @see WorkQueue#offer(Runnable, Priority)
+		 */
+		public boolean offer(Runnable task) throws RejectedExecutionException {
+			incrementPending();
+			boolean added = false;
+			try {
+				added = WorkQueue.this.offer(() -> {
+					try {
+						task.run();
+					} finally {
+						decrementPending();
+					}
+				}, priority);
+				return added;
+			} finally {
+				if (!added) {
+					decrementPending();
+				}
+			}
+		}
+
+		/**
+		 * Adds a work (or task) request that produces a result to the work queue as
+		 * part of this group.
+		 *
+		 * @param <T>  the type of result produced by the task
+		 * @param task work request (in the form of a {@link Callable} object)
+		 * @return a future for the result of the task
+		 *
+		 * @see WorkQueue#submit(Callable)
+		 */
+		public <T> CompletableFuture<T> submit(Callable<T> task) {
+			CompletableFuture<T> future = new CompletableFuture<>();
+			execute(() -> complete(future, task));
+			return future;
+		}
+
+		/**
+		 * Counts asynchronous work that is not running on the work queue, like a
+		 * request in flight, as pending in this group until it completes, so that
+		 * {@link #finish()} also waits for it.
+		 *
+		 * @param <T>    the type of result of the work
+		 * @param future the future for the work
+		 * @return the same future
+		 */
+		public <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+			incrementPending();
+			future.whenComplete((result, e) -> decrementPending());
+			return future;
+		}
+
+		/**
+		 * Waits for all pending work (or tasks) in this group to be finished. Work
+		 * submitted to the queue outside of this group is not waited on.
+		 */
+		public synchronized void finish() {
+			try {
+				while (pending > 0) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Returns whether all of the work submitted to this group so far is done.
+		 *
+		 * @return true if there is no pending work in this group
+		 */
+		public synchronized boolean isDone() {
+			return pending == 0;
+		}
+
+		/**
+		 * Returns the number of tasks in this group that are queued or running.
+		 *
+		 * @return number of pending tasks in this group
+		 */
+		public synchronized int pending() {
+			return pending;
+		}
+
+		/**
+		 * Safely increments the pending count for this group. Also used by the
+		 * crawler to count URLs waiting outside the queue.
+		 */
+		synchronized void incrementPending() {
+			pending++;
+		}
+
+		/**
+		 * Safely decrements the pending count for this group, and wakes up any
+		 * threads waiting on this group when all of its work is done.
+		 */
+		synchronized void decrementPending() {
+			assert pending > 0;
+			pending--;
+
+			if (pending == 0) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Periodically adjusts the number of workers between the minimum and maximum
+	 * by climbing toward the number of workers with the best throughput. Grows
+	 * while adding workers increases the number of tasks completed, backs off
+	 * when it does not, and shrinks when workers sit idle with nothing queued.
+	 * How much time workers spend blocked (for example, waiting on the network
+	 * instead of using the CPU) caps how far it grows past the number of
+	 * processors.
+	 */
+	private class Tuner extends Thread {
+		/** How often the number of workers is adjusted, in milliseconds. */
+		public static final long INTERVAL = 500;
+
+		/** Relative change in throughput treated as noise rather than a trend. */
+		private static final double NOISE = 0.05;
+
+		/** Used to measure the CPU time of the workers, if supported. */
+		private final ThreadMXBean threads;
+
+		/** Direction of the last adjustment: 1 to grow, -1 to shrink. */
+		private int direction;
+
+		/** Tasks completed per interval before the last adjustment. */
+		private double lastThroughput;
+
+		/** Number of times the number of workers was changed. */
+		private volatile int adjustments;
+
+		/**
+		 * Initializes the tuner as a daemon thread.
+		 */
+		public Tuner() {
+			setName("WorkQueueTuner");
+			setDaemon(true);
+			threads = ManagementFactory.getThreadMXBean();
+			direction = 1;
+			lastThroughput = 0;
+			adjustments = 0;
+		}
+
+		@Override
+		public void run() {
+			long lastCompleted = runTimes.count();
+			long lastBusy = totalBusy();
+			long lastCpu = totalCpu();
+
+			try {
+				while (!shutdown) {
+					Thread.sleep(INTERVAL);
+
+					long completed = runTimes.count();
+					long busy = totalBusy();
+					long cpu = totalCpu();
+
+					double throughput = completed - lastCompleted;
+					double blocking = busy <= lastBusy || cpu < 0 ? 0
+							: Math.max(0, 1 - (double) (cpu - lastCpu) / (busy - lastBusy));
+
+					adjust(throughput, blocking);
+
+					lastCompleted = completed;
+					lastBusy = busy;
+					lastCpu = cpu;
+				}
+			} catch (InterruptedException e) {
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Grows or shrinks the number of workers by one step.
+		 *
+		 * @param throughput tasks completed in the last interval
+		 * @param blocking   fraction of busy time the workers spent blocked
+		 */
+		private void adjust(double throughput, double blocking) {
+			int size = size();
+			int processors = Runtime.getRuntime().availableProcessors();
+
+			// workers that block half the time can keep twice as many processors busy
+			int ceiling = (int) Math.ceil(processors / Math.max(0.05, 1 - blocking));
+			int step = Math.max(1, size / 4);
+
+			if (queued() == 0) {
+				direction = -1; // nothing waiting, so fewer workers will do
+			} else if (throughput < lastThroughput * (1 - NOISE)) {
+				direction = -direction; // last change made things worse
+			} else if (throughput <= lastThroughput * (1 + NOISE)) {
+				direction = size < ceiling ? 1 : -1; // flat, so head toward the estimate
+			}
+
+			if (direction > 0 && size < Math.min(maxThreads, Math.max(ceiling, minThreads))) {
+				for (int i = 0; i < step && size() < maxThreads; i++) {
+					addWorker();
+				}
+				adjustments++;
+			} else if (direction < 0 && size > minThreads) {
+				for (int i = 0; i < step; i++) {
+					removeWorker();
+				}
+				adjustments++;
+			}
+
+			log.debug("Tuner: {} workers, {} tasks per interval, {} blocked", size(), throughput, blocking);
+			lastThroughput = throughput;
+		}
+
+		/**
+		 * Returns the total time the workers have spent running tasks, counting
+		 * the ones that retired so the total never goes down.
+		 *
+		 * @return total busy nanoseconds
+		 */
+		private long totalBusy() {
+			return busyTime.sum();
+		}
+
+		/**
+		 * Returns the total CPU time used by the workers, counting the ones that
+		 * retired so the total never goes down.
+		 *
+		 * @return total CPU nanoseconds, or -1 if unable to measure
+		 */
+		private long totalCpu() {
+			if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) {
+				return -1;
+			}
+
+			long total;
+			List<Worker> current;
+			synchronized (workers) {
+				total = retiredCpu;
+				current = List.copyOf(workers);
+			}
+
+			for (Worker worker : current) {
+				long cpu = threads.getThreadCpuTime(worker.getId());
+				total += Math.max(cpu, 0);
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * A task waiting in the queue along with when it was added.
+	 */
+	private static class Queued {
+		/** The work request. */
+		private final Runnable task;
+
+		/** How urgently the task should be run. */
+		private final Priority priority;
+
+		/** The {@link System#nanoTime()} when the task was added. */
+		private final long enqueued;
+
+		/**
+		 * Initializes a waiting task added now.
+		 *
+		 * @param task     the work request
+		 * @param priority how urgently the task should be run
+		 */
+		private Queued(Runnable task, Priority priority) {
+			this.task = task;
+			this.priority = priority;
+			this.enqueued = System.nanoTime();
+		}
 	}
 
 	/**
@@ -166,11 +1130,38 @@ public class WorkQueue {
 	 * is requested.
 	 */
 	private class Worker extends Thread {
+		/** The {@link System#nanoTime()} when this worker was created. */
+		private final long started;
+
+		/** Total nanoseconds spent running tasks; only written by this worker. */
+		private volatile long busy;
+
 		/**
 		 * Initializes a worker thread with a custom name.
 		 */
 		public Worker() {
 			setName("Worker" + getName());
+			started = System.nanoTime();
+			busy = 0;
+		}
+
+		/**
+		 * Returns the fraction of time this worker has spent running tasks.
+		 *
+		 * @return fraction between 0 and 1 of busy time
+		 */
+		private double utilization() {
+			long elapsed = System.nanoTime() - started;
+			return elapsed <= 0 ? 0 : Math.min(1.0, (double) busy / elapsed);
+		}
+
+		/**
+		 * Returns the work queue this worker belongs to.
+		 *
+		 * @return the work queue of this worker
+		 */
+		private WorkQueue owner() {
+			return WorkQueue.this;
 		}
 
 		@Override
@@ -180,18 +1171,35 @@ public class WorkQueue {
 			try {
 				while (true) {
 					synchronized (tasks) {
-						while (tasks.isEmpty() && !shutdown) {
+						while (queued == 0 && !shutdown && retiring == 0) {
 							tasks.wait();
 						}
 
-						// exit while for one of two reasons:
-						// (a) queue has work, or (b) shutdown has been called
+						// exit while for one of three reasons: (a) queue has work,
+						// (b) shutdown has been called, or (c) a worker should retire
 
 						if (shutdown) {
 							break;
 						}
 
-						task = tasks.removeFirst();
+						if (retiring > 0) {
+							retiring--;
+							ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+							synchronized (workers) {
+								if (threads.isCurrentThreadCpuTimeSupported()) {
+									retiredCpu += Math.max(threads.getCurrentThreadCpuTime(), 0);
+								}
+								workers.remove(this);
+							}
+							break;
+						}
+
+						task = takeTask();
+
+						if (queued + 1 == capacity) {
+							// wakes up any producers waiting for room
+							tasks.notifyAll();
+						}
 					}
 
 					// Think about whether decrementPending should be inside the try or in a
@@ -200,13 +1208,20 @@ public class WorkQueue {
 					// for the case when if a task is run but not executed, will cause an exception
 					// if decrementPending is in try
 
+					long start = System.nanoTime();
+
 					try {
 						task.run(); // Does not guarentee that it will execute
 					} catch (RuntimeException e) {
 						// catch runtime exceptions to avoid leaking threads
+						exceptions.increment();
 						System.err.printf("Error: %s encountered an exception while running.%n", this.getName());
 						log.catching(Level.ERROR, e);
 					} finally {
+						long ran = System.nanoTime() - start;
+						runTimes.record(ran);
+						busy += ran; // only this worker writes busy
+						busyTime.add(ran);
 						decrementPending(); // decrements the number of pending tasks after a task is completed by
 											// thread
 					}